@@ -0,0 +1,41 @@
+package jar2bpl_bench;
+
+import org.joogie.GlobalsCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+import soot.SootClass;
+import soot.jimple.StringConstant;
+
+/**
+ * Lookups in the GlobalsCache. Apart from the first invocation of an
+ * iteration, these are the hits that the translation of every body does.
+ */
+public class GlobalsCacheBenchmark {
+
+	@Benchmark
+	public void internStrings(LoadedBodies state, Blackhole bh) {
+		GlobalsCache gc = GlobalsCache.v();
+		for (StringConstant s : state.strings) {
+			bh.consume(gc.lookupInternString(s));
+		}
+	}
+
+	@Benchmark
+	public void lookupClassVariables(LoadedBodies state, Blackhole bh) {
+		GlobalsCache gc = GlobalsCache.v();
+		for (SootClass c : state.classes) {
+			bh.consume(gc.lookupClassVariable(c));
+		}
+	}
+
+	@Benchmark
+	public void subTypeChecks(LoadedBodies state, Blackhole bh) {
+		GlobalsCache gc = GlobalsCache.v();
+		for (SootClass sub : state.classes) {
+			for (SootClass sup : state.classes) {
+				bh.consume(gc.isSubTypeOrEqual(sub, sup));
+			}
+		}
+	}
+}
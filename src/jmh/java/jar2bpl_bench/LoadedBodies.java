@@ -0,0 +1,178 @@
+package jar2bpl_bench;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.joogie.GlobalsCache;
+import org.joogie.Options;
+import org.joogie.soot.SootPrelude;
+import org.joogie.soot.SootProcedureInfo;
+import org.joogie.util.MhpInfo;
+import org.joogie.util.TranslationCache;
+import org.joogie.util.TranslationHelpers;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import soot.Body;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.Unit;
+import soot.Value;
+import soot.ValueBox;
+import soot.jimple.AssignStmt;
+import soot.jimple.FieldRef;
+import soot.jimple.InvokeExpr;
+import soot.jimple.NewExpr;
+import soot.jimple.Stmt;
+import soot.jimple.StringConstant;
+
+/**
+ * Jimple bodies of the Workload class, loaded once per trial so the
+ * benchmarks only measure the translation and not soot. The GlobalsCache
+ * and the prelude are created again for every iteration, otherwise the
+ * Boogie program keeps growing with the locals of every invocation.
+ */
+@State(Scope.Benchmark)
+public class LoadedBodies {
+
+	public final List<Body> bodies = new ArrayList<Body>();
+
+	/**
+	 * The procedure of each body, in the order of bodies.
+	 */
+	public final List<SootProcedureInfo> procedures = new ArrayList<SootProcedureInfo>();
+
+	/**
+	 * Assignments without calls, which are mostly translated by the
+	 * SootValueSwitch.
+	 */
+	public final List<Stmt> expressionStmts = new ArrayList<Stmt>();
+
+	/**
+	 * Statements that contain a call.
+	 */
+	public final List<Stmt> invokeStmts = new ArrayList<Stmt>();
+
+	/**
+	 * The procedure of each statement in expressionStmts and invokeStmts.
+	 */
+	public final List<SootProcedureInfo> expressionProcedures = new ArrayList<SootProcedureInfo>();
+	public final List<SootProcedureInfo> invokeProcedures = new ArrayList<SootProcedureInfo>();
+
+	/**
+	 * String constants, classes, methods, and fields that occur in the
+	 * bodies, with repetitions.
+	 */
+	public final List<StringConstant> strings = new ArrayList<StringConstant>();
+	public final List<SootClass> classes = new ArrayList<SootClass>();
+	public final List<SootMethod> methods = new ArrayList<SootMethod>();
+	public final List<SootField> fields = new ArrayList<SootField>();
+
+	@Setup(Level.Trial)
+	public void loadBodies() throws URISyntaxException {
+		File classDir = new File(Workload.class.getProtectionDomain()
+				.getCodeSource().getLocation().toURI());
+		File javaLib = new File(System.getProperty("java.home"), "lib");
+		List<String> cp = Arrays.asList(new File(javaLib, "rt.jar").getPath(),
+				new File(javaLib, "jce.jar").getPath(), classDir.getPath());
+		StringBuilder sb = new StringBuilder();
+		for (String entry : cp) {
+			if (sb.length() > 0) {
+				sb.append(File.pathSeparatorChar);
+			}
+			sb.append(entry);
+		}
+
+		soot.G.reset();
+		soot.options.Options.v().set_soot_classpath(sb.toString());
+		soot.options.Options.v().set_keep_line_number(true);
+		soot.options.Options.v().set_allow_phantom_refs(true);
+		soot.options.Options.v().set_src_prec(
+				soot.options.Options.src_prec_class);
+		soot.options.Options.v().set_output_format(
+				soot.options.Options.output_format_none);
+		SootClass c = Scene.v().loadClassAndSupport(Workload.class.getName());
+		Scene.v().loadNecessaryClasses();
+		c.setApplicationClass();
+		for (SootMethod m : c.getMethods()) {
+			if (m.isConcrete()) {
+				this.bodies.add(m.retrieveActiveBody());
+			}
+		}
+		for (Body body : this.bodies) {
+			this.methods.add(body.getMethod());
+			this.classes.add(body.getMethod().getDeclaringClass());
+			for (ValueBox vb : body.getUseAndDefBoxes()) {
+				Value v = vb.getValue();
+				if (v instanceof StringConstant) {
+					this.strings.add((StringConstant) v);
+				} else if (v instanceof FieldRef) {
+					this.fields.add(((FieldRef) v).getField());
+				} else if (v instanceof InvokeExpr) {
+					this.methods.add(((InvokeExpr) v).getMethod());
+					this.classes.add(((InvokeExpr) v).getMethod()
+							.getDeclaringClass());
+				} else if (v instanceof NewExpr) {
+					this.classes.add(((NewExpr) v).getBaseType()
+							.getSootClass());
+				}
+			}
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void createProcedures() {
+		resetGlobals();
+		for (Body body : this.bodies) {
+			GlobalsCache.v().setCurrentMethod(body.getMethod());
+			SootProcedureInfo procInfo = GlobalsCache.v().lookupProcedure(
+					body.getMethod());
+			procInfo.buildAnalyses();
+			this.procedures.add(procInfo);
+			for (Unit u : body.getUnits()) {
+				Stmt s = (Stmt) u;
+				if (s.containsInvokeExpr()) {
+					this.invokeStmts.add(s);
+					this.invokeProcedures.add(procInfo);
+				} else if (s instanceof AssignStmt) {
+					this.expressionStmts.add(s);
+					this.expressionProcedures.add(procInfo);
+				}
+			}
+		}
+		GlobalsCache.v().setCurrentMethod(null);
+	}
+
+	@TearDown(Level.Trial)
+	public void reset() {
+		resetGlobals();
+		Options.resetInstance();
+		soot.G.reset();
+		this.bodies.clear();
+		this.strings.clear();
+		this.classes.clear();
+		this.methods.clear();
+		this.fields.clear();
+	}
+
+	private void resetGlobals() {
+		GlobalsCache.resetInstance();
+		SootPrelude.resetInstance();
+		MhpInfo.resetInstance();
+		TranslationCache.resetInstance();
+		TranslationHelpers.resetNames();
+		this.procedures.clear();
+		this.expressionStmts.clear();
+		this.invokeStmts.clear();
+		this.expressionProcedures.clear();
+		this.invokeProcedures.clear();
+	}
+}
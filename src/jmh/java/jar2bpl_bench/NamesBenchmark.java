@@ -0,0 +1,36 @@
+package jar2bpl_bench;
+
+import org.joogie.util.TranslationHelpers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+
+/**
+ * Boogie names of classes, methods, and fields.
+ */
+public class NamesBenchmark {
+
+	@Benchmark
+	public void replaceIllegalChars(LoadedBodies state, Blackhole bh) {
+		for (SootMethod m : state.methods) {
+			bh.consume(TranslationHelpers.replaceIllegalChars(m
+					.getBytecodeSignature()));
+		}
+	}
+
+	@Benchmark
+	public void qualifiedNames(LoadedBodies state, Blackhole bh) {
+		for (SootClass c : state.classes) {
+			bh.consume(TranslationHelpers.getQualifiedName(c));
+		}
+		for (SootMethod m : state.methods) {
+			bh.consume(TranslationHelpers.getQualifiedName(m));
+		}
+		for (SootField f : state.fields) {
+			bh.consume(TranslationHelpers.getQualifiedName(f));
+		}
+	}
+}
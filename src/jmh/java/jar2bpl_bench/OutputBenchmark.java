@@ -0,0 +1,73 @@
+package jar2bpl_bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import org.joogie.GlobalsCache;
+import org.joogie.soot.SootProcedureInfo;
+import org.joogie.soot.SootStmtSwitch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import soot.Body;
+import soot.Unit;
+import soot.jimple.Stmt;
+import boogie.ast.statement.Statement;
+
+/**
+ * Printing the Boogie program of the Workload class with
+ * ProgramFactory.toFile.
+ */
+@State(Scope.Benchmark)
+public class OutputBenchmark {
+
+	private File outFile;
+
+	@Setup(Level.Trial)
+	public void createFile() throws IOException {
+		this.outFile = File.createTempFile("jar2bpl_bench", ".bpl");
+	}
+
+	/**
+	 * Adds the implementations of all bodies to the program. Runs after
+	 * LoadedBodies has created the procedures of the iteration.
+	 * 
+	 * @param state
+	 */
+	@Setup(Level.Iteration)
+	public void translate(LoadedBodies state) {
+		for (int i = 0; i < state.bodies.size(); i++) {
+			Body body = state.bodies.get(i);
+			SootProcedureInfo procInfo = state.procedures.get(i);
+			GlobalsCache.v().setCurrentMethod(body.getMethod());
+			LinkedList<Statement> stmts = new LinkedList<Statement>();
+			for (Unit u : body.getUnits()) {
+				SootStmtSwitch ss = new SootStmtSwitch(procInfo);
+				((Stmt) u).apply(ss);
+				stmts.addAll(ss.popAll());
+			}
+			procInfo.setProcedureImplementation(GlobalsCache.v().getPf()
+					.mkProcedure(procInfo.getProcedureDeclaration(),
+							stmts.toArray(new Statement[stmts.size()]),
+							procInfo.getLocalVariables()));
+		}
+		GlobalsCache.v().setCurrentMethod(null);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFile() {
+		if (!this.outFile.delete()) {
+			System.err.println("Failed to delete " + this.outFile);
+		}
+	}
+
+	@Benchmark
+	public void toFile() {
+		GlobalsCache.v().getPf().toFile(this.outFile.getPath());
+	}
+}
@@ -0,0 +1,79 @@
+package jar2bpl_bench;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joogie.Options;
+import org.joogie.runners.SootRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import soot.Scene;
+
+/**
+ * Loading the Workload class and building its Jimple bodies with the soot
+ * arguments of the SootRunner, for each soot profile (see
+ * Options.getSootProfile). Most of the time is spent on the classes of
+ * rt.jar that the Workload uses.
+ */
+@State(Scope.Benchmark)
+public class SootConfigBenchmark {
+
+	@Param({ "default", "fast" })
+	public String profile;
+
+	private final List<String> args = new ArrayList<String>();
+
+	private final ArgsRunner runner = new ArgsRunner();
+
+	/**
+	 * Gives access to the soot arguments of the SootRunner.
+	 */
+	private static class ArgsRunner extends SootRunner {
+		void fillArgs(List<String> args) {
+			fillSootArgs(args);
+		}
+
+		void loadBasicClasses() {
+			addBasicClasses();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void createArgs() throws URISyntaxException {
+		File classDir = new File(Workload.class.getProtectionDomain()
+				.getCodeSource().getLocation().toURI());
+		File javaLib = new File(System.getProperty("java.home"), "lib");
+		Options.v().setSootProfile(this.profile);
+		this.runner.fillArgs(this.args);
+		this.args.add("-cp");
+		this.args.add(new File(javaLib, "rt.jar").getPath()
+				+ File.pathSeparatorChar + new File(javaLib, "jce.jar").getPath()
+				+ File.pathSeparatorChar + classDir.getPath());
+		this.args.add("-src-prec");
+		this.args.add("class");
+		this.args.add(Workload.class.getName());
+	}
+
+	@Benchmark
+	public int loadClasses() {
+		soot.G.reset();
+		this.runner.loadBasicClasses();
+		soot.Main.main(this.args.toArray(new String[this.args.size()]));
+		return Scene.v().getClasses().size();
+	}
+
+	@TearDown(Level.Trial)
+	public void reset() {
+		this.args.clear();
+		Options.resetInstance();
+		soot.G.reset();
+	}
+}
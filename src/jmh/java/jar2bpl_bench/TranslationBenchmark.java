@@ -0,0 +1,72 @@
+package jar2bpl_bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joogie.GlobalsCache;
+import org.joogie.soot.SootProcedureInfo;
+import org.joogie.soot.SootStmtSwitch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+import soot.Body;
+import soot.Unit;
+import soot.jimple.Stmt;
+import boogie.ast.statement.Statement;
+
+/**
+ * Translation of Jimple statements to Boogie. The calls are measured
+ * through the SootStmtSwitch, which hands them to
+ * InvokeTranslation.translateInvokeAssignment, because the error model
+ * needs the statement that the switch is currently at.
+ */
+public class TranslationBenchmark {
+
+	/**
+	 * Translates the bodies like SootBodyTransformer, with one switch per
+	 * procedure.
+	 */
+	@Benchmark
+	public void translateBodies(LoadedBodies state, Blackhole bh) {
+		for (int i = 0; i < state.bodies.size(); i++) {
+			Body body = state.bodies.get(i);
+			SootProcedureInfo procInfo = state.procedures.get(i);
+			GlobalsCache.v().setCurrentMethod(body.getMethod());
+			SootStmtSwitch ss = new SootStmtSwitch(procInfo);
+			List<Statement> stmts = new ArrayList<Statement>();
+			for (Unit u : body.getUnits()) {
+				ss.reset();
+				((Stmt) u).apply(ss);
+				ss.popAllTo(stmts);
+			}
+			bh.consume(stmts);
+		}
+		GlobalsCache.v().setCurrentMethod(null);
+	}
+
+	@Benchmark
+	public void translateExpressions(LoadedBodies state, Blackhole bh) {
+		translateAll(state.expressionStmts, state.expressionProcedures, bh);
+	}
+
+	@Benchmark
+	public void translateInvokes(LoadedBodies state, Blackhole bh) {
+		translateAll(state.invokeStmts, state.invokeProcedures, bh);
+	}
+
+	private void translateAll(List<Stmt> stmts,
+			List<SootProcedureInfo> procedures, Blackhole bh) {
+		for (int i = 0; i < stmts.size(); i++) {
+			SootProcedureInfo procInfo = procedures.get(i);
+			GlobalsCache.v().setCurrentMethod(procInfo.getSootMethod());
+			translate(stmts.get(i), procInfo, bh);
+		}
+		GlobalsCache.v().setCurrentMethod(null);
+	}
+
+	private void translate(Stmt s, SootProcedureInfo procInfo, Blackhole bh) {
+		SootStmtSwitch ss = new SootStmtSwitch(procInfo);
+		s.apply(ss);
+		bh.consume(ss.popAll());
+	}
+}
@@ -0,0 +1,109 @@
+package jar2bpl_bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Input for the benchmarks. It is not run but translated, so it only has to
+ * cover the constructs that the translation spends its time on: field and
+ * array accesses, arithmetic, string and long constants, calls, casts,
+ * exceptions, and finally blocks.
+ */
+public class Workload {
+
+	private int counter;
+	private long total = 0x123456789L;
+	private Object[] items = new Object[16];
+	private static String name = "workload";
+
+	public int sum(int[] values) {
+		int s = 0;
+		for (int i = 0; i < values.length; i++) {
+			s += values[i] * 3 - (values[i] >> 1);
+		}
+		this.counter += s;
+		return s;
+	}
+
+	public double average(double[] values) {
+		double s = 0.5;
+		for (double d : values) {
+			s = s + d / 2.0f;
+		}
+		return values.length == 0 ? 0.0 : s / values.length;
+	}
+
+	public String describe(Object o) {
+		StringBuilder sb = new StringBuilder(name);
+		if (o instanceof String) {
+			sb.append(": ").append((String) o);
+		} else if (o instanceof Integer) {
+			sb.append(" #").append(((Integer) o).intValue() + this.counter);
+		} else {
+			sb.append(String.valueOf(o));
+		}
+		return sb.toString();
+	}
+
+	public List<Object> collect(int n) {
+		List<Object> ret = new ArrayList<Object>();
+		for (int i = 0; i < n && i < this.items.length; i++) {
+			if (this.items[i] == null) {
+				this.items[i] = Integer.valueOf(i);
+			}
+			ret.add(this.items[i]);
+		}
+		return ret;
+	}
+
+	public long checksum(byte[][] blocks) {
+		long c = this.total;
+		for (byte[] block : blocks) {
+			for (byte b : block) {
+				c = c * 31L + (b & 0xff);
+				c ^= (c >>> 17);
+			}
+		}
+		return c;
+	}
+
+	public int parse(String s) {
+		int ret = -1;
+		try {
+			ret = Integer.parseInt(s.trim());
+		} catch (NumberFormatException e) {
+			this.counter--;
+		} finally {
+			this.total += ret;
+		}
+		return ret;
+	}
+
+	public synchronized void update(Workload other) {
+		try {
+			if (other == this) {
+				throw new IllegalArgumentException("same workload");
+			}
+			this.counter = other.counter + 1;
+			this.items = other.items.clone();
+		} finally {
+			this.total++;
+		}
+	}
+
+	public String classify(int code) {
+		switch (code) {
+		case 0:
+			return "zero";
+		case 1:
+			return "one";
+		case 2:
+		case 3:
+			return "few";
+		case 100:
+			return "hundred";
+		default:
+			return code < 0 ? "negative" : "many";
+		}
+	}
+}
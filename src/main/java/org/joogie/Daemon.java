@@ -0,0 +1,289 @@
+/**
+ *
+ */
+package org.joogie;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.joogie.runners.SceneCache;
+import org.joogie.util.Log;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+/**
+ * Runs translation jobs that are sent over a local socket, so a sequence of
+ * translations (e.g., from a pre-commit hook) only pays for starting and
+ * warming up the JVM once.
+ *
+ * A job is a line with a secret, followed by a single line with the
+ * command-line arguments of jar2bpl, separated by tabs. The daemon answers
+ * with a single line that starts with OK or ERROR. The line "stop" stops
+ * the daemon. Jobs are run one after the other, because soot keeps its
+ * state in singletons. The classes of the JDK and of the libraries stay
+ * loaded between the jobs (see SceneCache). A job that fails, even with an
+ * Error such as a StackOverflowError, is answered with ERROR and the
+ * daemon goes on with the next job.
+ *
+ * The daemon writes the secret to a file that only its user can read (see
+ * Options.getDaemonToken), so other users on the same machine cannot let
+ * the daemon read and write files with its permissions.
+ */
+public class Daemon {
+
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * Options whose argument is a file or a class path. The client makes
+	 * them absolute because the daemon may run in a different directory.
+	 */
+	private static final Set<String> pathOptions = new HashSet<String>(
+			Arrays.asList("-j", "-b", "-cp", "-prelude", "-cache", "-profile",
+					"-cp-index", "-nested-jar-cache", "-analysis-cache",
+					"-android-jars", "--sourceDir"));
+
+	/**
+	 * Accepts jobs on the loopback interface until a stop request arrives.
+	 *
+	 * @param port
+	 */
+	public static void serve(int port) {
+		ServerSocket server = null;
+		File tokenFile = getTokenFile(port);
+		SceneCache.enable();
+		try {
+			// clients find the token once the daemon accepts jobs.
+			server = new ServerSocket(port, 50, InetAddress.getByName(null));
+			String token = createToken(tokenFile);
+			Log.info("Waiting for translation jobs on port " + port);
+			boolean running = true;
+			while (running) {
+				Socket socket = server.accept();
+				try {
+					running = handle(socket, token);
+				} catch (Throwable e) {
+					Log.error(e.toString());
+				} finally {
+					socket.close();
+				}
+			}
+		} catch (IOException e) {
+			Log.error(e.toString());
+		} finally {
+			SceneCache.disable();
+			if (server != null) {
+				try {
+					server.close();
+				} catch (IOException e) {
+					Log.error(e.toString());
+				}
+			}
+			if (tokenFile.isFile() && !tokenFile.delete()) {
+				Log.error("Cannot delete " + tokenFile);
+			}
+		}
+	}
+
+	/**
+	 * Sends the command-line arguments to a daemon and waits until the job
+	 * is done.
+	 *
+	 * @param port
+	 * @param args
+	 *            Command-line arguments without the -connect option
+	 * @return true if the daemon wrote the Boogie program.
+	 */
+	public static boolean send(int port, List<String> args) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < args.size(); i++) {
+			String arg = args.get(i);
+			if (i > 0) {
+				sb.append('\t');
+				if (pathOptions.contains(args.get(i - 1))
+						|| (args.get(i - 1).equals("-entry-points") && new File(
+								arg).isFile())) {
+					arg = absolutePath(arg);
+				}
+			}
+			sb.append(arg);
+		}
+		Socket socket = null;
+		try {
+			String token = readToken(getTokenFile(port));
+			socket = new Socket(InetAddress.getByName(null), port);
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					socket.getOutputStream(), CHARSET));
+			out.println(token);
+			out.println(sb.toString());
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), CHARSET));
+			String reply = in.readLine();
+			if (reply != null && reply.startsWith("OK")) {
+				Log.info(reply);
+				return true;
+			}
+			Log.error(reply == null ? "Daemon closed the connection" : reply);
+		} catch (IOException e) {
+			Log.error("Cannot reach daemon on port " + port + ": "
+					+ e.toString());
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					Log.error(e.toString());
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs a single job.
+	 *
+	 * @param socket
+	 * @param token
+	 * @return false if the daemon should stop.
+	 * @throws IOException
+	 */
+	private static boolean handle(Socket socket, String token)
+			throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), CHARSET));
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				socket.getOutputStream(), CHARSET));
+		String secret = in.readLine();
+		if (secret == null
+				|| !MessageDigest.isEqual(token.getBytes(CHARSET),
+						secret.getBytes(CHARSET))) {
+			Log.error("Rejected a job with a wrong secret");
+			out.println("ERROR Wrong secret. Use the -daemon-token of the daemon.");
+			out.flush();
+			return true;
+		}
+		String line = in.readLine();
+		if (line == null) {
+			return true;
+		}
+		if (line.equals("stop")) {
+			out.println("OK stopping");
+			out.flush();
+			return false;
+		}
+
+		long start = System.currentTimeMillis();
+		Options.resetInstance();
+		CmdLineParser parser = new CmdLineParser(Options.v());
+		try {
+			parser.parseArgument(line.isEmpty() ? new String[0] : line
+					.split("\t"));
+		} catch (CmdLineException e) {
+			out.println("ERROR " + e.getMessage());
+			out.flush();
+			return true;
+		}
+		String boogieFile = Options.v().getBoogieFile();
+		Log.info("Translating " + Options.v().getJarFile());
+		try {
+			Dispatcher.run(Options.v().getJarFile(), boogieFile);
+		} catch (Throwable e) {
+			// e.g., an OutOfMemoryError or a StackOverflowError. Soot may be
+			// in any state, so the next job starts from scratch.
+			Log.error("Translation job failed: " + e.toString());
+			SceneCache.reset();
+			out.println("ERROR " + e.toString());
+			out.flush();
+			return true;
+		}
+
+		if (Dispatcher.isWrittenSince(boogieFile, start)) {
+			out.println("OK " + boogieFile + " written in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} else {
+			out.println("ERROR No Boogie program written. See the log of the daemon.");
+		}
+		out.flush();
+		return true;
+	}
+
+	private static File getTokenFile(int port) {
+		if (Options.v().getDaemonToken() != null) {
+			return new File(Options.v().getDaemonToken());
+		}
+		return new File(new File(System.getProperty("user.home"), ".jar2bpl"),
+				"daemon-" + port + ".token");
+	}
+
+	/**
+	 * Writes a new random secret to a file that only the owner can read
+	 * and write.
+	 *
+	 * @param file
+	 * @return the secret
+	 * @throws IOException
+	 */
+	private static String createToken(File file) throws IOException {
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		String token = sb.toString();
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		if (path.getFileSystem().supportedFileAttributeViews()
+				.contains("posix")) {
+			Files.createFile(path, PosixFilePermissions
+					.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(path);
+			if (!(file.setReadable(false, false) && file.setReadable(true, true)
+					&& file.setWritable(false, false) && file.setWritable(true,
+						true))) {
+				throw new IOException("Cannot restrict the permissions of "
+						+ file);
+			}
+		}
+		Files.write(path, token.getBytes(CHARSET));
+		return token;
+	}
+
+	private static String readToken(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), CHARSET).trim();
+	}
+
+	private static String absolutePath(String path) {
+		StringBuilder sb = new StringBuilder();
+		for (String entry : path.split(File.pathSeparator)) {
+			if (sb.length() > 0) {
+				sb.append(File.pathSeparatorChar);
+			}
+			sb.append(entry.isEmpty() ? entry : new File(entry)
+					.getAbsolutePath());
+		}
+		return sb.toString();
+	}
+}
@@ -21,11 +21,18 @@ package org.joogie;
 
 import java.io.File;
 
+import org.joogie.runners.BatchRunner;
+import org.joogie.runners.SceneCache;
+import org.joogie.runners.ShardRunner;
 import org.joogie.runners.SootRunner;
 import org.joogie.soot.SootPrelude;
 import org.joogie.util.Log;
+import org.joogie.util.MethodReport;
 import org.joogie.util.MhpInfo;
+import org.joogie.util.Profiler;
 import org.joogie.util.StopWatch;
+import org.joogie.util.TranslationCache;
+import org.joogie.util.TranslationHelpers;
 
 import boogie.ProgramFactory;
 
@@ -50,6 +57,18 @@ public class Dispatcher {
 	 * Runs the dispatcher
 	 */
 	public static void run(String input, String output) {
+		if (input != null && input.endsWith(".xml")) {
+			// each entry of a batch manifest is a run of its own, which
+			// resets the options, the profile, and the timer.
+			try {
+				new BatchRunner().run(input);
+			} catch (Exception e) {
+				Log.error(e.toString());
+			} finally {
+				Options.resetInstance();
+			}
+			return;
+		}
 		try {
 			//SysOutOverSLF4J.sendSystemOutAndErrToSLF4J();
 			Log.debug("Running Soot");
@@ -60,14 +79,57 @@ public class Dispatcher {
 		} catch (Exception e) {
 			Log.error(e.toString());
 		} finally {			
+			writeProfile();
 			GlobalsCache.resetInstance();
 			SootPrelude.resetInstance();
 			MhpInfo.resetInstance();
+			TranslationCache.resetInstance();
+			Profiler.resetInstance();
+			MethodReport.resetInstance();
+			TranslationHelpers.resetNames();
 			Options.resetInstance();
-			soot.G.reset();
+			if (!SceneCache.isEnabled()) {
+				soot.G.reset();
+			}
 		}
 	}
 	
+	/**
+	 * Checks if a run that started at time has written the Boogie file. Runs
+	 * log their errors instead of throwing them, so this is how callers
+	 * (e.g., the daemon) find out whether a run failed.
+	 * 
+	 * @param boogieFile
+	 * @param time
+	 *            start of the run in milliseconds
+	 * @return
+	 */
+	public static boolean isWrittenSince(String boogieFile, long time) {
+		if (boogieFile == null) {
+			return false;
+		}
+		File file = new File(boogieFile);
+		// the time stamps of some file systems only have a resolution of
+		// seconds.
+		return file.isFile() && file.lastModified() >= time / 1000 * 1000;
+	}
+
+	/**
+	 * Logs the time of the run and writes the profile if requested.
+	 */
+	private static void writeProfile() {
+		if (swSoot == null) {
+			return;
+		}
+		swSoot.stop();
+		Log.info("Translation took " + swSoot.getTime() + " ms");
+		String profileFile = Options.v().getProfileFile();
+		if (profileFile != null) {
+			Profiler.v().write(profileFile, swSoot.getNanoTime());
+			Log.info("Profile written to " + profileFile);
+		}
+	}
+
 	public static void setClassPath(String cp) {
 		Options.v().setClasspath(cp);
 	}
@@ -90,11 +152,18 @@ public class Dispatcher {
 		} catch (Exception e) {
 			Log.error(e.toString());
 		} finally {
+			writeProfile();
 			GlobalsCache.resetInstance();
 			SootPrelude.resetInstance();
 			MhpInfo.resetInstance();
+			TranslationCache.resetInstance();
+			Profiler.resetInstance();
+			MethodReport.resetInstance();
+			TranslationHelpers.resetNames();
 			Options.resetInstance();
-			soot.G.reset();
+			if (!SceneCache.isEnabled()) {
+				soot.G.reset();
+			}
 		}
 		return pf;
 	}
@@ -110,14 +179,18 @@ public class Dispatcher {
 			return;
 		}
 
+		if (ShardRunner.canShard(input, output)) {
+			// run the shards in separate JVMs
+			new ShardRunner().run(input, output);
+			return;
+		}
+
 		if (input.endsWith(".jar")) {
 			// run with JAR file
 			sootRunner.runWithJar(input, output);
 		} else if (input.endsWith(".apk")) {
 			// run with Android file
 			sootRunner.runWithApk(input, output);
-		} else if (input.endsWith(".xml")) {
-			
 		} else {
 			File file = new File(input);
 			if (file.isDirectory()) {
@@ -19,8 +19,16 @@
 
 package org.joogie;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.joogie.soot.SootPrelude;
 import org.joogie.soot.SootProcedureInfo;
@@ -37,6 +45,7 @@ import soot.IntType;
 import soot.LongType;
 import soot.NullType;
 import soot.RefType;
+import soot.Scene;
 import soot.ShortType;
 import soot.SootClass;
 import soot.SootField;
@@ -71,26 +80,48 @@ public class GlobalsCache {
 		return pf;
 	}
 
-	private HashMap<SootMethod, SootProcedureInfo> procedureMap;
-	private HashMap<SootField, Expression> fieldMap;
-	private HashMap<Stmt, String> unitLabelMap;
+	private ConcurrentHashMap<SootMethod, SootProcedureInfo> procedureMap;
+	private ConcurrentHashMap<SootField, Expression> fieldMap;
 
-	private HashMap<SootClass, IdentifierExpression> classTypeMap = new HashMap<SootClass, IdentifierExpression>();
+	private ConcurrentHashMap<SootClass, IdentifierExpression> classTypeMap = new ConcurrentHashMap<SootClass, IdentifierExpression>();
 
-	private HashMap<String, IdentifierExpression> cConstantTypeMap = new HashMap<String, IdentifierExpression>();
+	private ConcurrentHashMap<String, IdentifierExpression> cConstantTypeMap = new ConcurrentHashMap<String, IdentifierExpression>();
 	
 	
-	private HashMap<String, IdentifierExpression> stringInternMap = new HashMap<String, IdentifierExpression>();
-	private HashMap<String, IdentifierExpression> floatInternMap = new HashMap<String, IdentifierExpression>();
-	private HashMap<String, IdentifierExpression> doubleInternMap = new HashMap<String, IdentifierExpression>();
-	private HashMap<String, IdentifierExpression> longInternMap = new HashMap<String, IdentifierExpression>();
+	private ConcurrentHashMap<String, IdentifierExpression> stringInternMap = new ConcurrentHashMap<String, IdentifierExpression>();
+	private ConcurrentHashMap<String, IdentifierExpression> floatInternMap = new ConcurrentHashMap<String, IdentifierExpression>();
+	private ConcurrentHashMap<String, IdentifierExpression> doubleInternMap = new ConcurrentHashMap<String, IdentifierExpression>();
+	private ConcurrentHashMap<String, IdentifierExpression> longInternMap = new ConcurrentHashMap<String, IdentifierExpression>();
+	
+	private ConcurrentHashMap<String, SootClass> sootClassMap = new ConcurrentHashMap<String, SootClass>();
+
+	private ConcurrentHashMap<SootClass, BitSet> ancestorMap = new ConcurrentHashMap<SootClass, BitSet>();
 	
-	private long unitLabelCounter = 0L;
 	private final String blockPrefix = "block";
 
 	private static GlobalsCache instance = null;
 
-	public SootMethod currentMethod = null;
+	/**
+	 * State of the method that is currently translated by a thread. Method
+	 * bodies may be translated concurrently (see Options.getJobs), so
+	 * everything that belongs to a single method is confined to the thread
+	 * that translates it. Unit labels only have to be unique within one
+	 * procedure, so they are numbered per method, which keeps them
+	 * independent of the order in which bodies are translated.
+	 */
+	private static class MethodContext {
+		private SootMethod method = null;
+		private HashMap<Stmt, String> unitLabelMap = new HashMap<Stmt, String>();
+		private long unitLabelCounter = 0L;
+		private HashSet<Stmt> clonedFinallyBlocks = new HashSet<Stmt>();
+	}
+
+	private final ThreadLocal<MethodContext> methodContext = new ThreadLocal<MethodContext>() {
+		@Override
+		protected MethodContext initialValue() {
+			return new MethodContext();
+		}
+	};
 	
 	public HashMap<EnterMonitorStmt, HashSet<Value>> modifiedInMonitor;
 	
@@ -106,81 +137,153 @@ public class GlobalsCache {
 		if (instance != null) {
 			GlobalsCache.instance.procedureMap.clear();
 			GlobalsCache.instance.fieldMap.clear();
-			GlobalsCache.instance.unitLabelMap.clear();
-			GlobalsCache.instance.classTypeMap.clear();
 			GlobalsCache.instance.classTypeMap.clear();
+			GlobalsCache.instance.cConstantTypeMap.clear();
 			GlobalsCache.instance.stringInternMap.clear();
 			GlobalsCache.instance.floatInternMap.clear();
 			GlobalsCache.instance.doubleInternMap.clear();
+			GlobalsCache.instance.longInternMap.clear();
+			GlobalsCache.instance.sootClassMap.clear();
+			GlobalsCache.instance.ancestorMap.clear();
 			if (GlobalsCache.instance.modifiedInMonitor!=null) GlobalsCache.instance.modifiedInMonitor.clear();
 		}
 		GlobalsCache.instance = null;
 	}
 
 	private GlobalsCache() {
-		this.procedureMap = new HashMap<SootMethod, SootProcedureInfo>();
-		this.fieldMap = new HashMap<SootField, Expression>();
-		this.unitLabelMap = new HashMap<Stmt, String>();
+		this.procedureMap = new ConcurrentHashMap<SootMethod, SootProcedureInfo>();
+		this.fieldMap = new ConcurrentHashMap<SootField, Expression>();
 		pf = new ProgramFactory();
 	}
 
+	/**
+	 * Sets the method that is translated by the current thread and starts a
+	 * fresh set of unit labels for it. Pass null once the translation is
+	 * done.
+	 * 
+	 * @param m
+	 */
+	public void setCurrentMethod(SootMethod m) {
+		MethodContext ctx = this.methodContext.get();
+		ctx.method = m;
+		ctx.unitLabelMap.clear();
+		ctx.unitLabelCounter = 0L;
+		ctx.clonedFinallyBlocks.clear();
+	}
+
+	public SootMethod getCurrentMethod() {
+		return this.methodContext.get().method;
+	}
+
+	/**
+	 * Statements of the current method that are copies of a finally block.
+	 * 
+	 * @return
+	 */
+	public HashSet<Stmt> getClonedFinallyBlocks() {
+		return this.methodContext.get().clonedFinallyBlocks;
+	}
+
 	public boolean hasUnitLabel(Stmt u) {
-		return this.unitLabelMap.containsKey(u);
+		return this.methodContext.get().unitLabelMap.containsKey(u);
 	}
 
 	public String getUnitLabel(Stmt u) {
-		if (!this.unitLabelMap.containsKey(u)) {
-			this.unitLabelCounter++;
-			this.unitLabelMap
-					.put(u, this.blockPrefix + (this.unitLabelCounter));
-
+		MethodContext ctx = this.methodContext.get();
+		String label = ctx.unitLabelMap.get(u);
+		if (label == null) {
+			ctx.unitLabelCounter++;
+			label = this.blockPrefix + (ctx.unitLabelCounter);
+			ctx.unitLabelMap.put(u, label);
 		}
-		return this.unitLabelMap.get(u);
+		return label;
 	}
 
 	public String getBlockLabel() {
-		this.unitLabelCounter++;
-		return this.blockPrefix + (this.unitLabelCounter);
+		MethodContext ctx = this.methodContext.get();
+		ctx.unitLabelCounter++;
+		return this.blockPrefix + (ctx.unitLabelCounter);
+	}
+	
+	/**
+	 * Returns the SootClass for className. The classes are loaded once and
+	 * cached because Scene.loadClass must not be called while bodies are
+	 * translated concurrently.
+	 * 
+	 * @param className
+	 * @return
+	 */
+	public SootClass lookupSootClass(String className) {
+		SootClass c = this.sootClassMap.get(className);
+		if (c == null) {
+			synchronized (this.pf) {
+				c = this.sootClassMap.get(className);
+				if (c == null) {
+					c = Scene.v().loadClass(className, SootClass.SIGNATURES);
+					this.sootClassMap.put(className, c);
+				}
+			}
+		}
+		return c;
 	}
 	
+	/*
+	 * All lookups below follow the same pattern: the common case is a hit in
+	 * a concurrent map. Only on a miss we lock the ProgramFactory, which is
+	 * not thread-safe and also records the global declaration that is
+	 * created for the new entry.
+	 */
+	
 	public SootProcedureInfo lookupProcedure(SootMethod m) {
-		if (!this.procedureMap.containsKey(m)) {
-			SootProcedureInfo procinfo = new SootProcedureInfo(m);
-			this.procedureMap.put(m, procinfo);
+		SootProcedureInfo procinfo = this.procedureMap.get(m);
+		if (procinfo == null) {
+			synchronized (this.pf) {
+				procinfo = this.procedureMap.get(m);
+				if (procinfo == null) {
+					procinfo = new SootProcedureInfo(m);
+					this.procedureMap.put(m, procinfo);
+				}
+			}
 		}
-		return this.procedureMap.get(m);
+		return procinfo;
 	}
 
-	public IdentifierExpression lookupInternString(StringConstant s) {
-		if (!stringInternMap.containsKey(s.value)) {
-			String name = "$StringConst"+stringInternMap.size();
-			stringInternMap.put(s.value, this.pf.mkIdentifierExpression(this.getBoogieType(s.getType()), name, true, true, true));
+	private IdentifierExpression lookupInternConstant(
+			ConcurrentHashMap<String, IdentifierExpression> internMap,
+			String prefix, String key, Type type) {
+		IdentifierExpression ide = internMap.get(key);
+		if (ide == null) {
+			synchronized (this.pf) {
+				ide = internMap.get(key);
+				if (ide == null) {
+					String name = prefix + internMap.size();
+					ide = this.pf.mkIdentifierExpression(
+							this.getBoogieType(type), name, true, true, true);
+					internMap.put(key, ide);
+				}
+			}
 		}
-		return stringInternMap.get(s.value);
+		return ide;
+	}
+
+	public IdentifierExpression lookupInternString(StringConstant s) {
+		return lookupInternConstant(stringInternMap, "$StringConst", s.value,
+				s.getType());
 	}
 	
 	public IdentifierExpression lookupInternFloat(FloatConstant s) {
-		if (!floatInternMap.containsKey(s.toString())) {
-			String name = "$FloatConst"+floatInternMap.size();
-			floatInternMap.put(s.toString(), this.pf.mkIdentifierExpression(this.getBoogieType(s.getType()), name, true, true, true));
-		}
-		return floatInternMap.get(s.toString());
+		return lookupInternConstant(floatInternMap, "$FloatConst",
+				s.toString(), s.getType());
 	}
 	
 	public IdentifierExpression lookupInternDouble(DoubleConstant s) {
-		if (!doubleInternMap.containsKey(s.toString())) {
-			String name = "$DoubleConst"+doubleInternMap.size();
-			doubleInternMap.put(s.toString(), this.pf.mkIdentifierExpression(this.getBoogieType(s.getType()), name, true, true, true));
-		}
-		return doubleInternMap.get(s.toString());
+		return lookupInternConstant(doubleInternMap, "$DoubleConst",
+				s.toString(), s.getType());
 	}
 
 	public IdentifierExpression lookupInternLong(LongConstant s) {
-		if (!longInternMap.containsKey(s.toString())) {
-			String name = "$LongConst"+longInternMap.size();
-			longInternMap.put(s.toString(), this.pf.mkIdentifierExpression(this.getBoogieType(s.getType()), name, true, true, true));
-		}
-		return longInternMap.get(s.toString());
+		return lookupInternConstant(longInternMap, "$LongConst",
+				s.toString(), s.getType());
 	}
 	
 	
@@ -191,33 +294,87 @@ public class GlobalsCache {
 	 * @return
 	 */
 	public Expression lookupSootField(SootField field) {
-		if (!this.fieldMap.containsKey(field)) {
-			String cleanname = TranslationHelpers.getQualifiedName(field);
-			BoogieType btype;
-			if (!field.isStatic()) {
-				BoogieType[] params = { this.getBoogieType(field.getType()) };
-				btype = pf.mkSubstituteType(SootPrelude.v().getFieldType(),
-						params);
-			} else {
-				btype = this.getBoogieType(field.getType());
+		Expression fieldvar = this.fieldMap.get(field);
+		if (fieldvar != null) {
+			return fieldvar;
+		}
+		synchronized (this.pf) {
+			if (!this.fieldMap.containsKey(field)) {
+				String cleanname = TranslationHelpers.getQualifiedName(field);
+				BoogieType btype;
+				if (!field.isStatic()) {
+					BoogieType[] params = { this.getBoogieType(field.getType()) };
+					btype = pf.mkSubstituteType(SootPrelude.v().getFieldType(),
+							params);
+				} else {
+					btype = this.getBoogieType(field.getType());
+				}
+				this.fieldMap.put(field, pf.mkIdentifierExpression(
+						btype, cleanname,
+						false, true, true));
 			}
-			this.fieldMap.put(field, pf.mkIdentifierExpression(
-					btype, cleanname,
-					false, true, true));
+			return this.fieldMap.get(field);
 		}
-		return this.fieldMap.get(field);
+	}
+
+	/**
+	 * Returns the global variables of all static fields that have been
+	 * looked up so far, sorted by name.
+	 * 
+	 * @return
+	 */
+	public List<IdentifierExpression> getStaticFieldVariables() {
+		List<IdentifierExpression> ret = new ArrayList<IdentifierExpression>();
+		for (Map.Entry<SootField, Expression> entry : this.fieldMap.entrySet()) {
+			if (entry.getKey().isStatic()) {
+				ret.add((IdentifierExpression) entry.getValue());
+			}
+		}
+		Collections.sort(ret, new Comparator<IdentifierExpression>() {
+			@Override
+			public int compare(IdentifierExpression a, IdentifierExpression b) {
+				return a.getIdentifier().compareTo(b.getIdentifier());
+			}
+		});
+		return ret;
 	}
 
 	private int freshglobalcounter = 0;
 
 	public IdentifierExpression makeFreshGlobal(BoogieType type,
 			boolean isConst, boolean isUnique) {
-		return pf.mkIdentifierExpression( type, "$freshglobal_"
-				+ (this.freshglobalcounter++), isConst, true, isUnique);
+		synchronized (this.pf) {
+			return pf.mkIdentifierExpression( type, "$freshglobal_"
+					+ (this.freshglobalcounter++), isConst, true, isUnique);
+		}
 	}
 
+	private ConcurrentHashMap<Value, IdentifierExpression> multiArrayGlobals = new ConcurrentHashMap<Value, IdentifierExpression>();
 	
-	private HashMap<BoogieType, IdentifierExpression> havocGloabls = new HashMap<BoogieType, IdentifierExpression>();
+	/**
+	 * Returns the fresh global that stands for the multi-dimensional array
+	 * created by expr. Multi-arrays are not modeled, so each allocation site
+	 * gets its own unique constant.
+	 * 
+	 * @param expr
+	 * @return
+	 */
+	public IdentifierExpression lookupMultiArrayGlobal(Value expr) {
+		IdentifierExpression ide = this.multiArrayGlobals.get(expr);
+		if (ide == null) {
+			synchronized (this.pf) {
+				ide = this.multiArrayGlobals.get(expr);
+				if (ide == null) {
+					ide = makeFreshGlobal(SootPrelude.v().getReferenceType(),
+							true, true);
+					this.multiArrayGlobals.put(expr, ide);
+				}
+			}
+		}
+		return ide;
+	}
+	
+	private ConcurrentHashMap<BoogieType, IdentifierExpression> havocGloabls = new ConcurrentHashMap<BoogieType, IdentifierExpression>();
 	/**
 	 * Get a special global in case you want to havoc something and need a
 	 * otherwise unused gloabl of the same type.
@@ -225,14 +382,78 @@ public class GlobalsCache {
 	 * @return
 	 */
 	public IdentifierExpression getHavocGlobal(BoogieType type) {
-		if (!this.havocGloabls.containsKey(type)) {
-			this.havocGloabls.put(type,  pf.mkIdentifierExpression( type, "$havoc"
-				+ (this.freshglobalcounter++), false, true, false));
+		IdentifierExpression ide = this.havocGloabls.get(type);
+		if (ide == null) {
+			synchronized (this.pf) {
+				ide = this.havocGloabls.get(type);
+				if (ide == null) {
+					ide = pf.mkIdentifierExpression(type, "$havoc"
+							+ (this.freshglobalcounter++), false, true, false);
+					this.havocGloabls.put(type, ide);
+				}
+			}
 		}
-		return this.havocGloabls.get(type);
+		return ide;
 	}
 	
 	
+	/**
+	 * Returns the globals whose names are numbered in the order in which
+	 * they are created, as triples of kind, key, and name. The key is what
+	 * the global stands for (e.g., the value of an interned string). Used
+	 * to merge programs that have been translated separately. The triples
+	 * are sorted by name.
+	 * 
+	 * @return
+	 */
+	public List<String[]> getNumberedGlobals() {
+		List<String[]> ret = new ArrayList<String[]>();
+		addNumberedGlobals(ret, "string", this.stringInternMap);
+		addNumberedGlobals(ret, "float", this.floatInternMap);
+		addNumberedGlobals(ret, "double", this.doubleInternMap);
+		addNumberedGlobals(ret, "long", this.longInternMap);
+		List<String[]> havoc = new ArrayList<String[]>();
+		for (Map.Entry<BoogieType, IdentifierExpression> entry : this.havocGloabls
+				.entrySet()) {
+			havoc.add(new String[] { "havoc", entry.getKey().toString(),
+					entry.getValue().getIdentifier() });
+		}
+		sortByName(havoc);
+		ret.addAll(havoc);
+		// havoc globals use the same counter, so some of these names do
+		// not exist.
+		for (int i = 0; i < this.freshglobalcounter; i++) {
+			ret.add(new String[] { "fresh", "$freshglobal_" + i,
+					"$freshglobal_" + i });
+		}
+		return ret;
+	}
+
+	private void addNumberedGlobals(List<String[]> ret, String kind,
+			Map<String, IdentifierExpression> internMap) {
+		List<String[]> globals = new ArrayList<String[]>();
+		for (Map.Entry<String, IdentifierExpression> entry : internMap
+				.entrySet()) {
+			globals.add(new String[] { kind, entry.getKey(),
+					entry.getValue().getIdentifier() });
+		}
+		sortByName(globals);
+		ret.addAll(globals);
+	}
+
+	private void sortByName(List<String[]> globals) {
+		// the names only differ in their number.
+		Collections.sort(globals, new Comparator<String[]>() {
+			@Override
+			public int compare(String[] a, String[] b) {
+				if (a[2].length() != b[2].length()) {
+					return a[2].length() < b[2].length() ? -1 : 1;
+				}
+				return a[2].compareTo(b[2]);
+			}
+		});
+	}
+	
 	public BoogieType getBoogieType(Type type) {
 		BoogieType ret = null;
 		if (type instanceof DoubleType || type instanceof FloatType) {
@@ -259,25 +480,31 @@ public class GlobalsCache {
 	}
 
 	public IdentifierExpression lookupClassVariable(SootClass c) {
-		if (this.classTypeMap.containsKey(c)) {
-			return this.classTypeMap.get(c);
-		}		
-		HashSet<IdentifierExpression> parents = new HashSet<IdentifierExpression>();
-		if (c.hasSuperclass()) {
-			parents.add(lookupClassVariable(c.getSuperclass()));
+		IdentifierExpression cvar = this.classTypeMap.get(c);
+		if (cvar != null) {
+			return cvar;
 		}
-		for (SootClass interf : c.getInterfaces()) {
-			parents.add(lookupClassVariable(interf));
+		synchronized (this.pf) {
+			if (this.classTypeMap.containsKey(c)) {
+				return this.classTypeMap.get(c);
+			}
+			LinkedHashSet<IdentifierExpression> parents = new LinkedHashSet<IdentifierExpression>();
+			if (c.hasSuperclass()) {
+				parents.add(lookupClassVariable(c.getSuperclass()));
+			}
+			for (SootClass interf : c.getInterfaces()) {
+				parents.add(lookupClassVariable(interf));
+			}
+	
+			Attribute[] attributes = TranslationHelpers.javaLocation2Attribute(c.getTags());
+			
+			cvar = pf.mkIdentifierExpression(attributes, SootPrelude
+					.v().getJavaClassType(),
+					TranslationHelpers.getQualifiedName(c), true, true, true,
+					parents.toArray(new IdentifierExpression[parents.size()]));
+			this.classTypeMap.put(c, cvar);
+			return cvar;
 		}
-
-		Attribute[] attributes = TranslationHelpers.javaLocation2Attribute(c.getTags());
-		
-		IdentifierExpression cvar = pf.mkIdentifierExpression(attributes, SootPrelude
-				.v().getJavaClassType(),
-				TranslationHelpers.getQualifiedName(c), true, true, true,
-				parents.toArray(new IdentifierExpression[parents.size()]));
-		this.classTypeMap.put(c, cvar);
-		return cvar;
 	}
 	
 
@@ -367,19 +594,57 @@ public class GlobalsCache {
 		return false;
 	}
 		
+	/**
+	 * Checks if sub is sup, or extends or implements it. Looks up the bit
+	 * of sup in the ancestors of sub, see getAncestors.
+	 * 
+	 * @param sub
+	 * @param sup
+	 * @return
+	 */
 	public boolean isSubTypeOrEqual(SootClass sub, SootClass sup) {
-		SootClass c = sub; 
-		while (c!=null) {
-			if (c==sup) return true;
+		if (sub == sup) {
+			return true;
+		}
+		if (sub == null || sup == null || sup.getNumber() <= 0) {
+			// classes that are not in the scene have no number.
+			return false;
+		}
+		return getAncestors(sub).get(sup.getNumber());
+	}
+
+	/**
+	 * Returns the numbers (see SootClass.getNumber) of c and of all classes
+	 * and interfaces that c extends or implements. The index is extended
+	 * lazily because classes are still loaded while bodies are translated,
+	 * and each class is only visited once per run. The sets are not
+	 * modified after they are added to the map, so they can be read
+	 * concurrently.
+	 * 
+	 * @param c
+	 * @return
+	 */
+	private BitSet getAncestors(SootClass c) {
+		BitSet ancestors = this.ancestorMap.get(c);
+		if (ancestors == null) {
+			ancestors = new BitSet();
+			if (c.getNumber() > 0) {
+				ancestors.set(c.getNumber());
+			}
 			try {
-				c = c.getSuperclass();
-			} catch (Exception e) {
-				//the exception it thrown, if we try 
-				//to access the superclass of object
-				return false;
+				if (c.hasSuperclass()) {
+					ancestors.or(getAncestors(c.getSuperclass()));
+				}
+				for (SootClass i : c.getInterfaces()) {
+					ancestors.or(getAncestors(i));
+				}
+				this.ancestorMap.put(c, ancestors);
+			} catch (RuntimeException e) {
+				// the hierarchy of classes that are not resolved far
+				// enough is unknown, but they may still be resolved later.
 			}
 		}
-		return false;
+		return ancestors;
 	}
 	
 	public boolean inThrowsClause(SootClass exception, SootProcedureInfo procinfo) {		
@@ -392,14 +657,19 @@ public class GlobalsCache {
 	}
 	
 	public Expression lookupClassConstant(ClassConstant cc) {
-		if (!cConstantTypeMap.containsKey(cc.getValue())) {
-			String name = TranslationHelpers.replaceIllegalChars("CC$"+cc.value);			
-			IdentifierExpression ide = this.pf.mkIdentifierExpression(this.getBoogieType(cc.getType()), name, true, true, true);			
-			cConstantTypeMap.put(cc.getValue(), ide);
+		IdentifierExpression ide = cConstantTypeMap.get(cc.getValue());
+		if (ide == null) {
+			synchronized (this.pf) {
+				ide = cConstantTypeMap.get(cc.getValue());
+				if (ide == null) {
+					String name = TranslationHelpers.replaceIllegalChars("CC$"+cc.value);			
+					ide = this.pf.mkIdentifierExpression(this.getBoogieType(cc.getType()), name, true, true, true);			
+					cConstantTypeMap.put(cc.getValue(), ide);
+				}
+			}
 		}
-		return cConstantTypeMap.get(cc.getValue());
+		return ide;
 	}
 
 	
 }
- 
\ No newline at end of file
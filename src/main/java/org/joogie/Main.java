@@ -19,6 +19,9 @@
 
 package org.joogie;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.joogie.util.Log;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -46,7 +49,13 @@ public class Main {
 		try {
 			// parse command-line arguments
 			parser.parseArgument(args);
-			runConsoleMode();
+			if (options.getDaemonPort() > 0) {
+				Daemon.serve(options.getDaemonPort());
+			} else if (options.getConnectPort() > 0) {
+				runClientMode(args);
+			} else {
+				runConsoleMode();
+			}
 		} catch (CmdLineException e) {
 			Log.error(e.toString());
 			Log.error("java -jar joogie.jar [options...] arguments...");
@@ -54,6 +63,26 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Lets a running daemon do the translation
+	 * 
+	 * @param args
+	 *            Command-line arguments
+	 */
+	public static void runClientMode(String[] args) {
+		List<String> jobArgs = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-connect") || args[i].equals("-daemon-token")) {
+				i++; // skip the port or file
+			} else {
+				jobArgs.add(args[i]);
+			}
+		}
+		if (!Daemon.send(Options.v().getConnectPort(), jobArgs)) {
+			System.exit(1);
+		}
+	}
+
 	/**
 	 * Launches Joogie in console mode
 	 */
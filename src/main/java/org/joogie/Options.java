@@ -19,7 +19,19 @@
 
 package org.joogie;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.OptionDef;
+import org.kohsuke.args4j.spi.IntOptionHandler;
+import org.kohsuke.args4j.spi.OneArgumentOptionHandler;
+import org.kohsuke.args4j.spi.Setter;
 
 /**
  * Options
@@ -107,6 +119,281 @@ public class Options {
 	}
 
 	
+	@Option(name = "-jobs", usage = "Number of threads used to translate method bodies.", required = false)
+	private int jobs=1;
+	public int getJobs() {
+		return jobs;
+	}
+	public void setJobs(int n) {
+		jobs = n;
+	}
+
+	
+	@Option(name = "-cache", usage = "Directory to cache the translation of unchanged classes between runs.", required = false)
+	private String cacheDir=null;
+	public boolean hasCacheDir() {
+		return cacheDir!=null;
+	}
+	public String getCacheDir() {
+		return cacheDir;
+	}
+	public void setCacheDir(String dir) {
+		cacheDir = dir;
+	}
+
+	
+	@Option(name = "-cache-size", usage = "Maximal size of the translation cache in MB.", required = false)
+	private long cacheSize=256;
+	public long getCacheSize() {
+		return cacheSize;
+	}
+	public void setCacheSize(long mb) {
+		cacheSize = mb;
+	}
+
+	
+	@Option(name = "-stream", usage = "Print each procedure as soon as it is translated instead of keeping the whole program in memory.", required = false)
+	private boolean streaming=false;
+	public boolean isStreaming() {
+		return streaming;
+	}
+	public void setStreaming(boolean b) {
+		streaming = b;
+	}
+
+	
+	@Option(name = "-daemon", usage = "Run as daemon that accepts translation jobs on this local port.", required = false)
+	private int daemonPort=0;
+	public int getDaemonPort() {
+		return daemonPort;
+	}
+
+	
+	@Option(name = "-connect", usage = "Send the translation job to the daemon on this local port.", required = false)
+	private int connectPort=0;
+	public int getConnectPort() {
+		return connectPort;
+	}
+
+	
+	@Option(name = "-daemon-token", usage = "File with the secret that -connect sends to -daemon. Only readable by its owner. Default: ~/.jar2bpl/daemon-<port>.token", required = false)
+	private String daemonToken = null;
+	public String getDaemonToken() {
+		return daemonToken;
+	}
+	public void setDaemonToken(String file) {
+		this.daemonToken = file;
+	}
+
+	
+	@Option(name = "-shards", usage = "Split the classes into this many shards, translate them in separate JVMs, and merge the results.", required = false)
+	private int shards=1;
+	public int getShards() {
+		return shards;
+	}
+	public void setShards(int n) {
+		shards = n;
+	}
+
+	
+	@Option(name = "-shard-index", usage = "Only translate this shard of the classes. Used by -shards.", required = false)
+	private int shardIndex=-1;
+	public int getShardIndex() {
+		return shardIndex;
+	}
+	public void setShardIndex(int i) {
+		shardIndex = i;
+	}
+
+	
+	@Option(name = "-profile", usage = "Write the time spent in each phase of the translation to this JSON file.", required = false)
+	private String profileFile=null;
+	public String getProfileFile() {
+		return profileFile;
+	}
+	public void setProfileFile(String file) {
+		this.profileFile = file;
+	}
+
+	
+	@Option(name = "-report-top", usage = "Log the N slowest and largest method translations and write all of them to <boogie file>.methods.csv.", required = false)
+	private int reportTop=0;
+	public int getReportTop() {
+		return reportTop;
+	}
+	public void setReportTop(int n) {
+		this.reportTop = n;
+	}
+
+	
+	@Option(name = "-budget-millis", usage = "Replace the translation of a method by a stub if it takes longer than this many milliseconds.", required = false)
+	private int budgetMillis=0;
+	public int getBudgetMillis() {
+		return budgetMillis;
+	}
+	public void setBudgetMillis(int ms) {
+		this.budgetMillis = ms;
+	}
+
+	
+	@Option(name = "-budget-units", usage = "Replace the translation of a method by a stub if it has more than this many Jimple statements.", required = false)
+	private int budgetUnits=0;
+	public int getBudgetUnits() {
+		return budgetUnits;
+	}
+	public void setBudgetUnits(int n) {
+		this.budgetUnits = n;
+	}
+
+	
+	@Option(name = "-budget-stmts", usage = "Replace the translation of a method by a stub if it needs more than this many Boogie statements.", required = false)
+	private int budgetStmts=0;
+	public int getBudgetStmts() {
+		return budgetStmts;
+	}
+	public void setBudgetStmts(int n) {
+		this.budgetStmts = n;
+	}
+
+	
+	@Option(name = "-entry-points", usage = "Only translate the methods that are reachable from main (the main methods), scope (the public API of --scope), or the method signatures in this file.", required = false)
+	private String entryPoints = null;
+	public boolean hasEntryPoints() {
+		return entryPoints != null;
+	}
+	public String getEntryPoints() {
+		return entryPoints;
+	}
+	public void setEntryPoints(String entryPoints) {
+		this.entryPoints = entryPoints;
+	}
+
+	
+	@Option(name = "-soot-profile", metaVar = "default|fast", handler = ChoiceOptionHandler.class, usage = "Soot configuration: default, or fast to skip the Jimple phases and eager class loading that the translation does not need.", required = false)
+	private String sootProfile = "default";
+	public String getSootProfile() {
+		return sootProfile;
+	}
+	public void setSootProfile(String profile) {
+		this.sootProfile = profile;
+	}
+	public boolean useFastSootProfile() {
+		if ("fast".equals(sootProfile)) {
+			return true;
+		} else if ("default".equals(sootProfile)) {
+			return false;
+		}
+		throw new RuntimeException("Unknown soot profile " + sootProfile);
+	}
+
+	
+	@Option(name = "-cp-index", usage = "File that indexes the classes of the jars in the class path. Jars are indexed again when they change.", required = false)
+	private String classPathIndex = null;
+	public boolean hasClassPathIndex() {
+		return classPathIndex != null;
+	}
+	public String getClassPathIndex() {
+		return classPathIndex;
+	}
+	public void setClassPathIndex(String file) {
+		this.classPathIndex = file;
+	}
+
+	
+	@Option(name = "-nested-jar-cache", usage = "Directory where the jars and classes inside the input jar (e.g., BOOT-INF/lib) are extracted and kept for later runs (the 8 most recently used jars). Default: a directory in java.io.tmpdir.", required = false)
+	private String nestedJarCache = null;
+	public String getNestedJarCache() {
+		return nestedJarCache;
+	}
+	public void setNestedJarCache(String dir) {
+		this.nestedJarCache = dir;
+	}
+
+	
+	@Option(name = "-analysis-cache", usage = "Directory where the results of the whole-program analyses of -threads are kept. They are reused as long as the class path and the arguments of soot do not change.", required = false)
+	private String analysisCache = null;
+	public boolean hasAnalysisCache() {
+		return analysisCache != null;
+	}
+	public String getAnalysisCache() {
+		return analysisCache;
+	}
+	public void setAnalysisCache(String dir) {
+		this.analysisCache = dir;
+	}
+
+	
+	@Option(name = "-switch-encoding", metaVar = "tree|goto|chain", handler = ChoiceOptionHandler.class, usage = "Translation of switch statements with more cases than -switch-threshold: tree (balanced decision tree), goto (non-deterministic goto with an assume per case), or chain (nested ifs, as for small switches).", required = false)
+	private String switchEncoding = "tree";
+	public String getSwitchEncoding() {
+		return switchEncoding;
+	}
+	public void setSwitchEncoding(String encoding) {
+		this.switchEncoding = encoding;
+	}
+
+	
+	@Option(name = "-switch-threshold", handler = NonNegativeIntOptionHandler.class, usage = "Switch statements with more cases use -switch-encoding.", required = false)
+	private int switchThreshold = 128;
+	public int getSwitchThreshold() {
+		return switchThreshold;
+	}
+	public void setSwitchThreshold(int n) {
+		this.switchThreshold = n;
+	}
+
+	
+	@Option(name = "-monitor-havoc", metaVar = "all|targeted", handler = ChoiceOptionHandler.class, usage = "What to havoc when entering a synchronized block: all (locals, static fields, and heap), or targeted (the live locals and, with -threads, the shared fields).", required = false)
+	private String monitorHavoc = "all";
+	public String getMonitorHavoc() {
+		return monitorHavoc;
+	}
+	public void setMonitorHavoc(String mode) {
+		this.monitorHavoc = mode;
+	}
+	public boolean useTargetedMonitorHavoc() {
+		if ("targeted".equals(monitorHavoc)) {
+			return true;
+		} else if ("all".equals(monitorHavoc)) {
+			return false;
+		}
+		throw new RuntimeException("Unknown monitor havoc " + monitorHavoc);
+	}
+
+	/**
+	 * Returns the command-line arguments that set these options, e.g., to
+	 * pass them on to another run.
+	 * 
+	 * @param exclude
+	 *            names of the options that are left out
+	 * @return
+	 */
+	public List<String> toCommandLine(Collection<String> exclude) {
+		List<String> args = new ArrayList<String>();
+		for (Field field : Options.class.getDeclaredFields()) {
+			Option option = field.getAnnotation(Option.class);
+			if (option == null || exclude.contains(option.name())) {
+				continue;
+			}
+			Object value;
+			try {
+				value = field.get(this);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+			if (value instanceof Boolean) {
+				if ((Boolean) value) {
+					args.add(option.name());
+				}
+			} else if (value != null) {
+				args.add(option.name());
+				args.add(value.toString());
+			}
+		}
+		return args;
+	}
+
+	
 	@Option(name = "-android-jars", usage = "Path to the jars that stub the android platform.")
 	private String androidStubPath=null;
 	
@@ -262,4 +549,47 @@ public class Options {
 		// do nothing
 	}
 
+	/**
+	 * Accepts only the values in the metaVar of an option, e.g.,
+	 * "tree|goto|chain", so a typo is reported when the options are parsed
+	 * rather than in the middle of the translation.
+	 */
+	public static class ChoiceOptionHandler extends
+			OneArgumentOptionHandler<String> {
+		public ChoiceOptionHandler(CmdLineParser parser, OptionDef option,
+				Setter<? super String> setter) {
+			super(parser, option, setter);
+		}
+
+		@Override
+		protected String parse(String argument) throws CmdLineException {
+			if (!Arrays.asList(option.metaVar().split("\\|")).contains(
+					argument)) {
+				throw new CmdLineException(owner, "Invalid value \""
+						+ argument + "\" for " + option + ", expected "
+						+ option.metaVar());
+			}
+			return argument;
+		}
+	}
+
+	/**
+	 * Rejects negative numbers when the options are parsed.
+	 */
+	public static class NonNegativeIntOptionHandler extends IntOptionHandler {
+		public NonNegativeIntOptionHandler(CmdLineParser parser,
+				OptionDef option, Setter<? super Integer> setter) {
+			super(parser, option, setter);
+		}
+
+		@Override
+		protected Integer parse(String argument) throws NumberFormatException {
+			Integer n = super.parse(argument);
+			if (n < 0) {
+				throw new NumberFormatException("negative");
+			}
+			return n;
+		}
+	}
+
 }
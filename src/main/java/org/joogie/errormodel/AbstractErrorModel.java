@@ -12,7 +12,6 @@ import org.joogie.soot.SootProcedureInfo;
 import org.joogie.soot.SootStmtSwitch;
 import org.joogie.util.TranslationHelpers;
 
-import soot.Scene;
 import soot.SootClass;
 import soot.Trap;
 import soot.jimple.Stmt;
@@ -68,7 +67,7 @@ public abstract class AbstractErrorModel {
 
 		List<Trap> traps =  new LinkedList<Trap>();
 		List<Trap> finally_traps =  new LinkedList<Trap>(); //TODO: do we have to use them here?
-		TranslationHelpers.getReachableTraps(this.stmtSwitch.getCurrentStatement(), this.procInfo.getSootMethod(), traps, finally_traps);
+		TranslationHelpers.getReachableTraps(this.stmtSwitch.getCurrentStatement(), this.procInfo, traps, finally_traps);
 
 		String transferlabel = null;
 		for (Trap trap : traps) {
@@ -145,8 +144,7 @@ public abstract class AbstractErrorModel {
 		// have anything usefull to report!
 		createException(
 				guard,
-				Scene.v().loadClass("java.lang.RuntimeException",
-						SootClass.SIGNATURES));
+				GlobalsCache.v().lookupSootClass("java.lang.RuntimeException"));
 	}
 
 	public void createPreconditionViolationException(Expression expr) {
@@ -154,8 +152,7 @@ public abstract class AbstractErrorModel {
 		// have anything usefull to report!
 		createException(
 				expr,
-				Scene.v().loadClass("java.lang.RuntimeException",
-						SootClass.SIGNATURES));
+				GlobalsCache.v().lookupSootClass("java.lang.RuntimeException"));
 	}
 
 	public void createPostconditionViolationException(Expression expr) {
@@ -163,8 +160,7 @@ public abstract class AbstractErrorModel {
 		// have anything usefull to report!
 		createException(
 				expr,
-				Scene.v().loadClass("java.lang.RuntimeException",
-						SootClass.SIGNATURES));
+				GlobalsCache.v().lookupSootClass("java.lang.RuntimeException"));
 	}
 
 	public void createArrayBoundGuard(Expression baseExpression,
@@ -181,8 +177,7 @@ public abstract class AbstractErrorModel {
 				BinaryOperator.LOGICAND, upperbound, lowerbound);
 		createException(
 				guard,
-				Scene.v().loadClass("java.lang.ArrayIndexOutOfBoundsException",
-						SootClass.SIGNATURES));
+				GlobalsCache.v().lookupSootClass("java.lang.ArrayIndexOutOfBoundsException"));
 	}
 
 	public void createNonNullGuard(Expression expr) {
@@ -192,8 +187,7 @@ public abstract class AbstractErrorModel {
 								.getNullConstant());
 		createException(
 				guard,
-				Scene.v().loadClass("java.lang.NullPointerException",
-						SootClass.SIGNATURES));
+				GlobalsCache.v().lookupSootClass("java.lang.NullPointerException"));
 	}
 
 	public void createDivByZeroGuard(Expression expr) {
@@ -201,8 +195,7 @@ public abstract class AbstractErrorModel {
 				BinaryOperator.COMPNEQ, expr, this.pf.mkIntLiteral("0"));
 		createException(
 				guard,
-				Scene.v().loadClass("java.lang.ArithmeticException",
-						SootClass.SIGNATURES));
+				GlobalsCache.v().lookupSootClass("java.lang.ArithmeticException"));
 	}
 
 	public void createClassCastGuard(Expression subtype, Expression supertype) {
@@ -210,7 +203,6 @@ public abstract class AbstractErrorModel {
 				supertype);
 		createException(
 				guard,
-				Scene.v().loadClass("java.lang.ClassCastException",
-						SootClass.SIGNATURES));
+				GlobalsCache.v().lookupSootClass("java.lang.ClassCastException"));
 	}
 }
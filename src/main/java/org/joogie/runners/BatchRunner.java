@@ -0,0 +1,240 @@
+/**
+ *
+ */
+package org.joogie.runners;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.joogie.Dispatcher;
+import org.joogie.Options;
+import org.joogie.util.Log;
+import org.joogie.util.StopWatch;
+import org.kohsuke.args4j.CmdLineParser;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Translates all entries of a batch manifest in one JVM. A manifest looks
+ * like
+ *
+ * <pre>
+ * &lt;batch report="report.csv"&gt;
+ *   &lt;entry input="a.jar" output="a.bpl" scope="org.a" classpath="lib/b.jar"/&gt;
+ *   &lt;entry input="classes/" output="c.bpl"/&gt;
+ * &lt;/batch&gt;
+ * </pre>
+ *
+ * Relative paths are resolved against the directory of the manifest. Each
+ * entry is run with the options of the command line plus its own scope,
+ * class path, and output file. The entries are run one after the other,
+ * since soot keeps its state in singletons, but the classes of the JDK and
+ * of the libraries stay loaded between entries with the same class path
+ * (see SceneCache). The bodies of an entry are translated by the worker
+ * pool of -jobs. A failing entry is reported and
+ * does not stop the batch. The optional report attribute names a CSV file
+ * with the result and time of each entry. With -profile, each entry writes
+ * its own profile, e.g., profile.2.json for the second entry.
+ */
+public class BatchRunner {
+
+	/**
+	 * Options that are set by the entries, or that would make the entries
+	 * overwrite each other's files.
+	 */
+	private static final List<String> entryOptions = Arrays.asList("-j",
+			"-b", "--scope", "-cp", "-profile");
+
+	private static class Result {
+		String input;
+		String output;
+		boolean success;
+		long time;
+		String message = "";
+	}
+
+	/**
+	 * Runs all entries of the manifest.
+	 *
+	 * @param manifest
+	 *            XML file
+	 */
+	public void run(String manifest) {
+		File manifestFile = new File(manifest);
+		File baseDir = manifestFile.getAbsoluteFile().getParentFile();
+		Element root;
+		try {
+			root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(manifestFile).getDocumentElement();
+		} catch (Exception e) {
+			throw new RuntimeException("Cannot read manifest " + manifest
+					+ ": " + e.toString());
+		}
+
+		// the options of the command line are reset after every run
+		List<String> baseArgs = Options.v().toCommandLine(entryOptions);
+		String baseClasspath = Options.v().getClasspath();
+		String baseProfile = Options.v().getProfileFile();
+
+		List<Result> results = new ArrayList<Result>();
+		NodeList entries = root.getElementsByTagName("entry");
+		boolean keepScene = SceneCache.isEnabled();
+		SceneCache.enable();
+		try {
+			runEntries(entries, baseDir, baseArgs, baseClasspath, baseProfile,
+					results);
+		} finally {
+			if (!keepScene) {
+				SceneCache.disable();
+			}
+		}
+
+		report(results);
+		if (root.hasAttribute("report")) {
+			writeReport(results, resolve(baseDir, root.getAttribute("report")));
+		}
+	}
+
+	private void runEntries(NodeList entries, File baseDir,
+			List<String> baseArgs, String baseClasspath, String baseProfile,
+			List<Result> results) {
+		for (int i = 0; i < entries.getLength(); i++) {
+			Element entry = (Element) entries.item(i);
+			Result result = new Result();
+			result.input = resolve(baseDir, entry.getAttribute("input"));
+			result.output = resolve(baseDir, entry.getAttribute("output"));
+			results.add(result);
+			Log.info("Batch entry " + (i + 1) + " of " + entries.getLength()
+					+ ": " + result.input);
+
+			StopWatch sw = StopWatch.getInstanceAndStart();
+			long start = System.currentTimeMillis();
+			try {
+				if (result.input.isEmpty() || result.output.isEmpty()) {
+					throw new RuntimeException(
+							"Entry needs an input and an output.");
+				}
+				if (result.input.endsWith(".xml")) {
+					throw new RuntimeException("Manifests cannot be nested.");
+				}
+				List<String> args = new ArrayList<String>(baseArgs);
+				if (entry.hasAttribute("scope")) {
+					args.add("--scope");
+					args.add(entry.getAttribute("scope"));
+				}
+				String cp = entry.hasAttribute("classpath") ? resolvePath(
+						baseDir, entry.getAttribute("classpath"))
+						: baseClasspath;
+				if (cp != null) {
+					args.add("-cp");
+					args.add(cp);
+				}
+				if (baseProfile != null) {
+					args.add("-profile");
+					args.add(entryProfile(baseProfile, i + 1));
+				}
+				Options.resetInstance();
+				new CmdLineParser(Options.v()).parseArgument(args);
+
+				Dispatcher.run(result.input, result.output);
+				result.success = Dispatcher.isWrittenSince(result.output,
+						start);
+				if (!result.success) {
+					result.message = "No Boogie program written";
+				}
+			} catch (Throwable e) {
+				result.success = false;
+				result.message = e.toString();
+				// soot may be in any state after an Error
+				SceneCache.reset();
+			}
+			result.time = sw.stop();
+			if (result.success) {
+				Log.info("Translated " + result.input + " in " + result.time
+						+ " ms");
+			} else {
+				Log.error("Failed to translate " + result.input + ": "
+						+ result.message);
+			}
+		}
+	}
+
+	private void report(List<Result> results) {
+		int failed = 0;
+		long total = 0;
+		StringBuilder sb = new StringBuilder();
+		for (Result result : results) {
+			sb.append(String.format("%n  %-7s %8d ms  %s",
+					result.success ? "OK" : "FAILED", result.time,
+					result.input));
+			if (!result.success) {
+				failed++;
+			}
+			total += result.time;
+		}
+		Log.info("Batch done: " + (results.size() - failed) + " of "
+				+ results.size() + " entries translated in " + total + " ms"
+				+ sb.toString());
+	}
+
+	private void writeReport(List<Result> results, String reportFile) {
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(reportFile), "UTF-8"))) {
+			out.println("input,output,status,millis,message");
+			for (Result result : results) {
+				out.println(csv(result.input) + "," + csv(result.output) + ","
+						+ (result.success ? "ok" : "failed") + ","
+						+ result.time + "," + csv(result.message));
+			}
+		} catch (IOException e) {
+			Log.error("Cannot write report " + reportFile + ": "
+					+ e.toString());
+		}
+	}
+
+	/**
+	 * Inserts the number of the entry before the extension of the profile.
+	 *
+	 * @param profile
+	 * @param entry
+	 * @return
+	 */
+	private static String entryProfile(String profile, int entry) {
+		int dot = profile.lastIndexOf('.');
+		if (dot <= profile.lastIndexOf(File.separatorChar)) {
+			return profile + "." + entry;
+		}
+		return profile.substring(0, dot) + "." + entry
+				+ profile.substring(dot);
+	}
+
+	private static String csv(String s) {
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String resolve(File baseDir, String path) {
+		if (path.isEmpty() || new File(path).isAbsolute()) {
+			return path;
+		}
+		return new File(baseDir, path).getPath();
+	}
+
+	private static String resolvePath(File baseDir, String classpath) {
+		StringBuilder sb = new StringBuilder();
+		for (String entry : classpath.split(File.pathSeparator)) {
+			if (sb.length() > 0) {
+				sb.append(File.pathSeparatorChar);
+			}
+			sb.append(resolve(baseDir, entry));
+		}
+		return sb.toString();
+	}
+}
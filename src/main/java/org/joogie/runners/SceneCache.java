@@ -0,0 +1,174 @@
+/**
+ *
+ */
+package org.joogie.runners;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.joogie.util.Log;
+
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.SourceLocator;
+
+/**
+ * Keeps soot's Scene between the runs in one JVM (see enable), so the
+ * classes of the JDK and of the libraries stay resolved and only the
+ * classes of the input are loaded again. Used by the daemon and by batch
+ * manifests.
+ *
+ * A run reuses the Scene of the last run if soot gets the same arguments
+ * apart from the classes to translate and the jars on the class path did
+ * not change (e.g., the input jar). Otherwise soot is reset as before.
+ * Classes in directories are read again if they belong to the input, so
+ * the input should be a directory of class files to profit from a warm
+ * Scene. The per-run state of the translation (GlobalsCache, SootPrelude,
+ * ...) is reset by every run.
+ */
+public class SceneCache {
+
+	private static boolean enabled = false;
+
+	/**
+	 * The arguments of soot without the classes to translate, or null if
+	 * the next run has to reset soot.
+	 */
+	private static List<String> sootArgs = null;
+
+	/**
+	 * The size and modification time of each jar on the class path.
+	 */
+	private static TreeMap<String, String> jarStamps = null;
+
+	/**
+	 * The classes of the last input, which are loaded again by the next
+	 * run.
+	 */
+	private static Set<String> inputClasses = null;
+
+	/**
+	 * Keeps the Scene after each run from now on.
+	 */
+	public static void enable() {
+		enabled = true;
+	}
+
+	/**
+	 * Resets soot after each run again and releases the Scene.
+	 */
+	public static void disable() {
+		enabled = false;
+		reset();
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Forgets the Scene and resets soot, e.g., after a run failed in an
+	 * unknown state.
+	 */
+	public static void reset() {
+		sootArgs = null;
+		jarStamps = null;
+		inputClasses = null;
+		soot.G.reset();
+	}
+
+	/**
+	 * Checks if soot is still set up for sootArgs. If so, the classes of
+	 * the last input and of this input are removed from the Scene, so they
+	 * are resolved again. The Scene is only reused once, until the run
+	 * stores it again after it succeeded.
+	 *
+	 * @param sootArgs
+	 *            the arguments of soot without the classes to translate
+	 * @param classes
+	 *            all classes of the input of this run
+	 * @return false if soot has to be reset.
+	 */
+	static boolean reuse(List<String> sootArgs, Collection<String> classes) {
+		List<String> lastArgs = SceneCache.sootArgs;
+		TreeMap<String, String> lastStamps = jarStamps;
+		Set<String> lastClasses = inputClasses;
+		SceneCache.sootArgs = null;
+		jarStamps = null;
+		inputClasses = null;
+		if (!enabled || lastArgs == null || !lastArgs.equals(sootArgs)
+				|| !lastStamps.equals(stampJars(sootArgs))) {
+			return false;
+		}
+
+		Scene scene = Scene.v();
+		Set<String> stale = new HashSet<String>(lastClasses);
+		stale.addAll(classes);
+		List<SootClass> removed = new ArrayList<SootClass>();
+		for (String className : stale) {
+			if (scene.containsClass(className)) {
+				removed.add(scene.getSootClass(className));
+			}
+		}
+		// classes that were missing may be part of this input or of a
+		// directory on the class path now.
+		removed.addAll(scene.getPhantomClasses());
+		for (SootClass c : removed) {
+			for (SootMethod m : c.getMethods()) {
+				if (m.hasActiveBody()) {
+					m.releaseActiveBody();
+				}
+			}
+			scene.removeClass(c);
+		}
+		scene.releaseActiveHierarchy();
+		scene.releaseFastHierarchy();
+		scene.releaseCallGraph();
+		scene.releaseReachableMethods();
+		scene.releasePointsToAnalysis();
+		scene.releaseSideEffectAnalysis();
+		Log.info("Reusing the classes of the last run, " + removed.size()
+				+ " classes are loaded again");
+		return true;
+	}
+
+	/**
+	 * Remembers the Scene after a run succeeded.
+	 *
+	 * @param sootArgs
+	 *            the arguments of soot without the classes to translate
+	 * @param classes
+	 *            all classes of the input of the run
+	 */
+	static void store(List<String> sootArgs, Collection<String> classes) {
+		if (!enabled) {
+			return;
+		}
+		SceneCache.sootArgs = new ArrayList<String>(sootArgs);
+		jarStamps = stampJars(sootArgs);
+		inputClasses = new HashSet<String>(classes);
+	}
+
+	private static TreeMap<String, String> stampJars(List<String> sootArgs) {
+		TreeMap<String, String> ret = new TreeMap<String, String>();
+		int cp = sootArgs.indexOf("-cp");
+		if (cp < 0 || cp + 1 >= sootArgs.size()) {
+			return ret;
+		}
+		for (String path : SourceLocator.explodeClassPath(sootArgs
+				.get(cp + 1))) {
+			File entry = new File(path);
+			if (entry.isFile()) {
+				ret.put(entry.getAbsolutePath(), entry.length() + "@"
+						+ entry.lastModified());
+			}
+		}
+		return ret;
+	}
+}
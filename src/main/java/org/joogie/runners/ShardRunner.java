@@ -0,0 +1,340 @@
+/**
+ *
+ */
+package org.joogie.runners;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ProcessBuilder.Redirect;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.joogie.GlobalsCache;
+import org.joogie.Main;
+import org.joogie.Options;
+import org.joogie.util.Log;
+import org.joogie.util.Profiler;
+import org.joogie.util.TranslationCache;
+
+import parser.BoogieSymbolFactory;
+import parser.Lexer;
+import parser.Parser;
+import typechecker.ModifiesClauseConstruction;
+import util.BoogiePrinter;
+import boogie.ast.Unit;
+import boogie.ast.VarList;
+import boogie.ast.declaration.Axiom;
+import boogie.ast.declaration.ConstDeclaration;
+import boogie.ast.declaration.Declaration;
+import boogie.ast.declaration.FunctionDeclaration;
+import boogie.ast.declaration.Implementation;
+import boogie.ast.declaration.ProcedureDeclaration;
+import boogie.ast.declaration.TypeDeclaration;
+import boogie.ast.declaration.VariableDeclaration;
+
+/**
+ * Splits the classes of the input into shards (see Options.getShards),
+ * translates each shard in its own JVM, and merges the partial programs.
+ *
+ * Each child translates every n-th class and only loads the signatures of
+ * the other classes. Besides its program, a child writes the interned
+ * constants and havoc globals it created (see
+ * GlobalsCache.getNumberedGlobals). Their names are numbered per run, so
+ * the merge gives each of them one name in the order of the shards, and
+ * then keeps one copy of each declaration that occurs in several shards.
+ * The modifies clauses are computed again on the merged program, since a
+ * shard does not see the implementations of the other shards.
+ */
+public class ShardRunner {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String GLOBALS_SUFFIX = ".globals";
+
+	/**
+	 * Options that are set per child or must not be passed on.
+	 */
+	private static final Set<String> childOptions = new HashSet<String>(
+			Arrays.asList("-j", "-b", "-shard-index", "-daemon", "-connect",
+					"-daemon-token", "-profile"));
+
+	/**
+	 * Checks if the input can be split into shards.
+	 *
+	 * @param input
+	 * @param output
+	 * @return
+	 */
+	public static boolean canShard(String input, String output) {
+		if (Options.v().getShards() <= 1 || Options.v().getShardIndex() >= 0
+				|| output == null || output.isEmpty()) {
+			return false;
+		}
+		if (input.endsWith(".apk")) {
+			Log.info("Apk files are not split into shards.");
+			return false;
+		}
+		if (Options.v().useSoundThreads()) {
+			Log.info("The thread analysis needs the whole program. Not using shards.");
+			return false;
+		}
+		if (Options.v().hasEntryPoints()) {
+			Log.info("The reachable methods are computed for the whole program. Not using shards.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Translates input with Options.getShards child JVMs and writes the
+	 * merged program to boogieFile.
+	 *
+	 * @param input
+	 * @param boogieFile
+	 */
+	public void run(String input, String boogieFile) {
+		int shards = Options.v().getShards();
+		File tempDir = null;
+		List<Process> children = new ArrayList<Process>();
+		try {
+			tempDir = File.createTempFile("jar2bpl_shards", "");
+			if (!tempDir.delete() || !tempDir.mkdir()) {
+				throw new IOException("Cannot create " + tempDir);
+			}
+
+			Profiler.Phase phase = Profiler.v().start("shards");
+			List<File> parts = new ArrayList<File>();
+			for (int i = 0; i < shards; i++) {
+				File part = new File(tempDir, "shard" + i + ".bpl");
+				parts.add(part);
+				ProcessBuilder pb = new ProcessBuilder(childCommand(input,
+						part, i));
+				pb.redirectOutput(Redirect.INHERIT);
+				pb.redirectError(Redirect.INHERIT);
+				children.add(pb.start());
+			}
+			for (int i = 0; i < shards; i++) {
+				// a child may crash after it wrote its files.
+				int exitCode = children.get(i).waitFor();
+				if (exitCode != 0) {
+					throw new RuntimeException("Translation of shard " + i
+							+ " failed with exit code " + exitCode + ".");
+				}
+				if (!parts.get(i).isFile()
+						|| !new File(parts.get(i).getPath() + GLOBALS_SUFFIX)
+								.isFile()) {
+					throw new RuntimeException("Translation of shard " + i
+							+ " failed.");
+				}
+			}
+			phase.stop();
+
+			phase = Profiler.v().start("merge");
+			merge(parts, boogieFile);
+			phase.stop();
+		} catch (Exception e) {
+			Log.error(e.toString());
+		} finally {
+			// the other children are still running if a shard failed, and
+			// they must not write into the deleted directory.
+			stopChildren(children);
+			if (tempDir != null) {
+				File[] files = tempDir.listFiles();
+				if (files != null) {
+					for (File f : files) {
+						if (!f.delete()) {
+							Log.debug("Cannot delete " + f);
+						}
+					}
+				}
+				if (!tempDir.delete()) {
+					Log.debug("Cannot delete " + tempDir);
+				}
+			}
+		}
+	}
+
+	private static void stopChildren(List<Process> children) {
+		for (Process child : children) {
+			child.destroy();
+			boolean interrupted = false;
+			while (true) {
+				try {
+					child.waitFor();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Writes the numbered globals of this run next to the Boogie file of a
+	 * shard.
+	 *
+	 * @param boogieFile
+	 * @throws IOException
+	 */
+	public static void writeNumberedGlobals(String boogieFile)
+			throws IOException {
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(boogieFile + GLOBALS_SUFFIX), UTF8))) {
+			for (String[] global : GlobalsCache.v().getNumberedGlobals()) {
+				out.println(global[0] + "\t"
+						+ TranslationCache.toHex(global[1].getBytes(UTF8))
+						+ "\t" + global[2]);
+			}
+		}
+	}
+
+	private List<String> childCommand(String input, File part, int shard) {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(Main.class.getName());
+		cmd.addAll(Options.v().toCommandLine(childOptions));
+		cmd.add("-j");
+		cmd.add(input);
+		cmd.add("-b");
+		cmd.add(part.getAbsolutePath());
+		cmd.add("-shard-index");
+		cmd.add(Integer.toString(shard));
+		return cmd;
+	}
+
+	private void merge(List<File> parts, String boogieFile) throws Exception {
+		// one name per numbered global in the order of the shards
+		Map<String, String> mergedNames = new HashMap<String, String>();
+		Map<String, Integer> counters = new HashMap<String, Integer>();
+		LinkedHashMap<String, Declaration> declarations = new LinkedHashMap<String, Declaration>();
+		for (int i = 0; i < parts.size(); i++) {
+			File part = parts.get(i);
+			Map<String, String> renaming = new HashMap<String, String>();
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(part.getPath()
+							+ GLOBALS_SUFFIX), UTF8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] global = line.split("\t");
+					String key = global[0] + "\t" + global[1];
+					if (global[0].equals("fresh")) {
+						// fresh globals are never shared.
+						key += "\t" + i;
+					}
+					String name = mergedNames.get(key);
+					if (name == null) {
+						String prefix = global[2].replaceAll("[0-9]+$", "");
+						Integer n = counters.get(prefix);
+						n = (n == null) ? 0 : n + 1;
+						counters.put(prefix, n);
+						name = prefix + n;
+						mergedNames.put(key, name);
+					}
+					if (!name.equals(global[2])) {
+						renaming.put(global[2], name);
+					}
+				}
+			}
+
+			String text = TranslationCache.renameIdentifiers(new String(
+					readAll(part), UTF8), renaming);
+			for (Declaration d : parse(part.getName(), text).getDeclarations()) {
+				String key = declarationKey(d);
+				if (!declarations.containsKey(key)) {
+					declarations.put(key, d);
+				}
+			}
+		}
+
+		Unit root = new Unit(null, declarations.values().toArray(
+				new Declaration[declarations.size()]));
+		ModifiesClauseConstruction.createModifiesClause(root);
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(boogieFile), UTF8))) {
+			new BoogiePrinter(out).printBoogieProgram(root);
+		}
+		Log.info("Merged " + parts.size() + " shards into " + boogieFile);
+	}
+
+	/**
+	 * Returns a key that is equal for declarations that must only occur
+	 * once in the merged program.
+	 *
+	 * @param d
+	 * @return
+	 */
+	private String declarationKey(Declaration d) {
+		if (d instanceof TypeDeclaration) {
+			return "type " + ((TypeDeclaration) d).getIdentifier();
+		} else if (d instanceof ConstDeclaration) {
+			return "const "
+					+ Arrays.toString(((ConstDeclaration) d).getVarList()
+							.getIdentifiers());
+		} else if (d instanceof VariableDeclaration) {
+			StringBuilder sb = new StringBuilder("var");
+			for (VarList vl : ((VariableDeclaration) d).getVariables()) {
+				sb.append(" " + Arrays.toString(vl.getIdentifiers()));
+			}
+			return sb.toString();
+		} else if (d instanceof FunctionDeclaration) {
+			return "function " + ((FunctionDeclaration) d).getIdentifier();
+		} else if (d instanceof ProcedureDeclaration) {
+			return "procedure " + ((ProcedureDeclaration) d).getIdentifier();
+		}
+		// axioms and implementations are compared by their text.
+		StringWriter sw = new StringWriter();
+		BoogiePrinter printer = new BoogiePrinter(new PrintWriter(sw));
+		if (d instanceof Axiom) {
+			printer.printAxiom((Axiom) d);
+		} else if (d instanceof Implementation) {
+			printer.printProcedureOrImplementation((Implementation) d);
+		}
+		return sw.toString();
+	}
+
+	private Unit parse(String fileName, String text) throws Exception {
+		BoogieSymbolFactory symFactory = new BoogieSymbolFactory();
+		Lexer lexer = new Lexer(new ByteArrayInputStream(text.getBytes(UTF8)));
+		lexer.setSymbolFactory(symFactory);
+		Parser parser = new Parser(lexer, symFactory);
+		parser.setFileName(fileName);
+		return (Unit) parser.parse().value;
+	}
+
+	private byte[] readAll(File file) throws IOException {
+		byte[] ret = new byte[(int) file.length()];
+		try (FileInputStream in = new FileInputStream(file)) {
+			int off = 0;
+			while (off < ret.length) {
+				int len = in.read(ret, off, ret.length - off);
+				if (len < 0) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				off += len;
+			}
+		}
+		return ret;
+	}
+}
@@ -21,28 +21,43 @@ package org.joogie.runners;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 import org.joogie.GlobalsCache;
 import org.joogie.Options;
+import org.joogie.soot.ClassPathIndex;
 import org.joogie.soot.SootBodyTransformer;
+import org.joogie.util.AnalysisCache;
+import org.joogie.util.BoogieStreamWriter;
 import org.joogie.util.Log;
+import org.joogie.util.MethodReport;
+import org.joogie.util.MhpInfo;
+import org.joogie.util.NestedJars;
+import org.joogie.util.Profiler;
+import org.joogie.util.TranslationCache;
 
 import soot.Pack;
 import soot.PackManager;
 import soot.Scene;
 import soot.SootClass;
+import soot.SourceLocator;
 import soot.Transform;
 
 /**
@@ -62,6 +77,13 @@ public class SootRunner extends Runner {
 	 */
 	private PrintStream stdout;
 
+	/**
+	 * The classes that soot translates, if they are passed to soot one by
+	 * one (see addClassesToTranslate), and all classes of the input.
+	 */
+	private List<String> classArgs = null;
+	private List<String> inputClasses = null;
+
 	/**
 	 * Runs Soot by using a JAR file
 	 * 
@@ -72,6 +94,7 @@ public class SootRunner extends Runner {
 	 */
 	public void runWithJar(String jarFile, String boogieFile) {
 		try {
+			Profiler.Phase phase = Profiler.v().start("classpath");
 			// command-line arguments for Soot
 			List<String> args = new ArrayList<String>();
 			fillSootArgs(args);
@@ -79,6 +102,13 @@ public class SootRunner extends Runner {
 			// extract dependent JARs
 			List<File> jarFiles = new ArrayList<File>();
 			extractClassPath(new File(jarFile), jarFiles);
+
+			// the jars and classes inside the JAR, e.g., of Spring Boot
+			NestedJars nested = NestedJars.extract(new File(jarFile));
+			jarFiles.addAll(nested.getLibraries());
+			if (nested.getClassesDir() != null) {
+				jarFiles.add(nested.getClassesDir());
+			}
 			jarFiles.add(new File(jarFile));
 			fillClassPath(jarFiles);
 
@@ -93,7 +123,31 @@ public class SootRunner extends Runner {
 			args.add(cp);
 
 			// set classes
-			enumClasses(new File(jarFile), args);
+			List<String> classes = new ArrayList<String>();
+			List<String> excluded = new ArrayList<String>();
+			enumClasses(new File(jarFile), classes, excluded);
+			if (nested.getClassesDir() != null) {
+				enumClassFiles(nested.getClassesDir(), "", classes, excluded);
+			}
+			if (TranslationCache.v().isEnabled()
+					|| Options.v().getShardIndex() >= 0
+					|| nested.getClassesDir() != null
+					|| SceneCache.isEnabled()) {
+				// only process the classes that have to be translated
+				this.inputClasses = new ArrayList<String>(classes);
+				this.inputClasses.addAll(excluded);
+				addClassesToTranslate(classes, args);
+			} else {
+				// let soot enumerate the classes instead of passing all of
+				// them on the command line. All classes of the jar are
+				// processed, including the ones that soot excludes by
+				// default (e.g., javax.*).
+				args.add("-process-dir");
+				args.add(jarFile);
+				args.add("-include-all");
+				addScopeExcludes(classes, excluded, args);
+			}
+			phase.stop();
 
 			// finally, run soot
 			run(args, boogieFile);
@@ -113,6 +167,20 @@ public class SootRunner extends Runner {
 			fillSootArgs(args);
 
 			String cp = apkFile;
+
+			if (Options.v().hasScope()) {
+				List<String> classes = new ArrayList<String>();
+				List<String> excluded = new ArrayList<String>();
+				for (String className : SourceLocator.v().getClassesUnder(
+						apkFile)) {
+					if (className.startsWith(Options.v().getScope())) {
+						classes.add(className);
+					} else {
+						excluded.add(className);
+					}
+				}
+				addScopeExcludes(classes, excluded, args);
+			}
 			
 			//enforce android
 			args.add("-src-prec");
@@ -151,6 +219,7 @@ public class SootRunner extends Runner {
 	 */
 	public void runWithPath(String path, String boogieFile) {
 		try {
+			Profiler.Phase phase = Profiler.v().start("classpath");
 			// dependent JAR files
 			List<File> jarFiles = new ArrayList<File>();
 			fillClassPath(jarFiles);
@@ -161,6 +230,15 @@ public class SootRunner extends Runner {
 				cp += File.pathSeparatorChar + Options.v().getClasspath();
 			}
 
+			// cached classes and the classes of other shards are loaded
+			// from the class path
+			boolean selectClasses = TranslationCache.v().isEnabled()
+					|| Options.v().getShardIndex() >= 0
+					|| SceneCache.isEnabled();
+			if (selectClasses) {
+				cp += File.pathSeparatorChar + path;
+			}
+
 			// command-line arguments for Soot
 			List<String> args = new ArrayList<String>();
 			fillSootArgs(args);
@@ -172,15 +250,31 @@ public class SootRunner extends Runner {
 			args.add("-src-prec");
 			args.add("class");
 			
-			// add path to be processed
-			args.add("-process-path");
-			args.add(path);
+			if (selectClasses) {
+				// only process the classes that have to be translated
+				List<String> classes = new ArrayList<String>();
+				List<String> excluded = new ArrayList<String>();
+				enumClassFiles(new File(path), "", classes, excluded);
+				this.inputClasses = new ArrayList<String>(classes);
+				this.inputClasses.addAll(excluded);
+				addClassesToTranslate(classes, args);
+			} else {
+				// add path to be processed
+				args.add("-process-path");
+				args.add(path);
+				if (Options.v().hasScope()) {
+					List<String> classes = new ArrayList<String>();
+					List<String> excluded = new ArrayList<String>();
+					enumClassFiles(new File(path), "", classes, excluded);
+					addScopeExcludes(classes, excluded, args);
+				}
 
-			String mainClass = Options.v().getMainClassName();
-			if (mainClass!=null && !mainClass.isEmpty()) {
-				args.add(mainClass);
+				String mainClass = Options.v().getMainClassName();
+				if (mainClass!=null && !mainClass.isEmpty()) {
+					args.add(mainClass);
+				}
 			}
-			
+			phase.stop();
 			
 			// finally, run soot
 			run(args, boogieFile);
@@ -199,15 +293,57 @@ public class SootRunner extends Runner {
 	 *            Boogie file
 	 */
 	protected void run(List<String> args, String boogieFile) {
+		SootBodyTransformer transformer = null;
+		BoogieStreamWriter streamWriter = null;
 		try {
 			// init stream redirection
 			initStream();
 
-			// reset & init Soot
-			soot.G.reset();
+			// reset & init Soot, unless the JDK and the libraries are still
+			// loaded from the last run
+			List<String> sceneArgs = null;
+			if (this.classArgs != null && !Options.v().useSoundThreads()) {
+				sceneArgs = new ArrayList<String>(args);
+				sceneArgs.removeAll(this.classArgs);
+			}
+			boolean warm = sceneArgs != null
+					&& SceneCache.reuse(sceneArgs, this.inputClasses);
+			if (!warm) {
+				soot.G.reset();
+			}
+
+			// find the classes with the index instead of reading the jars
+			if (!warm && Options.v().hasClassPathIndex()) {
+				int srcPrec = args.indexOf("-src-prec");
+				if (srcPrec >= 0 && args.get(srcPrec + 1).equals("apk")) {
+					Log.info("The class path index is not used for apk files.");
+				} else {
+					ClassPathIndex.install(Options.v().getClassPathIndex());
+				}
+			}
+
+			// cached classes are only needed with their signatures
+			for (String className : TranslationCache.v().getRequiredClasses()) {
+				if (warm) {
+					Scene.v().forceResolve(className, SootClass.SIGNATURES);
+				} else {
+					Scene.v().addBasicClass(className, SootClass.SIGNATURES);
+				}
+			}
 			
+			// reuse the whole-program analyses if the program did not change
+			File analysisFile = null;
+			boolean analysisCached = false;
+			if (Options.v().useSoundThreads() && Options.v().hasAnalysisCache()) {
+				analysisFile = AnalysisCache.getFile(args);
+				analysisCached = analysisFile.isFile() && MhpInfo.load(analysisFile);
+				if (analysisCached) {
+					Log.info("Using the whole-program analyses in " + analysisFile);
+				}
+			}
+
 			//check if we need fullprogram analysis
-			if (Options.v().useSoundThreads()) {
+			if (Options.v().useSoundThreads() && !analysisCached) {
 				args.add("-w");
 
 				
@@ -226,21 +362,29 @@ public class SootRunner extends Runner {
 				args.add("wjtp.mhp");
 				args.add("enabled:true");
 				
-			} else {
-				// Iterator Hack
-				Scene.v().addBasicClass("org.eclipse.jdt.core.compiler.CategorizedProblem",SootClass.HIERARCHY);
-				Scene.v().addBasicClass("java.lang.Iterable",SootClass.SIGNATURES);			
-				Scene.v().addBasicClass("java.util.Iterator",SootClass.SIGNATURES);
-				Scene.v().addBasicClass("java.lang.reflect.Array",SootClass.SIGNATURES);
-				
+			} else if (!warm) {
+				addBasicClasses();
 			}
 			
 			Pack pack = PackManager.v().getPack("jtp");
+			// the transformer of the last run if the Scene is reused
+			pack.remove("jtp.BoogieTransform");
 			
 			//pack.add(new Transform("jtp.NullCheckEliminator",new NullCheckEliminator()));
 			
-			pack.add(new Transform("jtp.BoogieTransform",
-					new SootBodyTransformer()));
+			transformer = new SootBodyTransformer();
+			pack.add(new Transform("jtp.BoogieTransform", transformer));
+
+			// print the procedures while soot is running
+			if (Options.v().isStreaming() && null != boogieFile
+					&& !boogieFile.isEmpty()) {
+				if (Options.v().getRunTypeChecker()) {
+					Log.info("The type checker needs the whole program. Not streaming the output.");
+				} else {
+					streamWriter = new BoogieStreamWriter(boogieFile);
+					transformer.setStreamWriter(streamWriter);
+				}
+			}
 			
 			StringBuilder sb = new StringBuilder();
 			for (String s : args) {
@@ -255,11 +399,41 @@ public class SootRunner extends Runner {
 		    System.setOut(new Interceptor(origOut));
 		    System.setErr(new Interceptor(origErr));
 			// Finally, run Soot		    
-			soot.Main.main(args.toArray(new String[args.size()]));
+			Profiler.Phase sootPhase = Profiler.v().start("soot");
+			transformer.beforeSoot();
+			if (warm) {
+				runWithScene();
+			} else {
+				soot.Main.main(args.toArray(new String[args.size()]));
+			}
+			transformer.afterSoot();
 
 			//reset the pipes
 			System.setOut(origOut);
 		    System.setErr(origErr);
+
+			// add the procedures that have been translated in the background
+			transformer.emitProcedures();
+			sootPhase.stop();
+			if (analysisFile != null && !analysisCached) {
+				MhpInfo.v().store(analysisFile);
+			}
+			MethodReport.v().write(boogieFile);
+
+			// add the procedures of the classes that have not changed
+			if (TranslationCache.v().isEnabled()) {
+				TranslationCache.v().store();
+				TranslationCache.v().splice();
+				Log.info("Translation cache: "
+						+ TranslationCache.v().getHits() + " hits, "
+						+ TranslationCache.v().getMisses() + " misses, "
+						+ TranslationCache.v().getEvictions() + " evictions");
+				Profiler.v().count("cache/hits", TranslationCache.v().getHits());
+				Profiler.v().count("cache/misses",
+						TranslationCache.v().getMisses());
+				Profiler.v().count("cache/evictions",
+						TranslationCache.v().getEvictions());
+			}
 			
 			//CallGraph cg = Scene.v().getCallGraph();
 //			StringBuilder sb = new StringBuilder();
@@ -272,23 +446,55 @@ public class SootRunner extends Runner {
 //			Log.error(sb);
 			
 			// write boogie program to file
-			if (null != boogieFile && !boogieFile.isEmpty()) {
+			Profiler.Phase phase = Profiler.v().start("print");
+			if (streamWriter != null) {
+				streamWriter.close(GlobalsCache.v().getPf());
+				streamWriter = null;
+			} else if (null != boogieFile && !boogieFile.isEmpty()) {
 				GlobalsCache.v().getPf().toFile(boogieFile);
 			}
+			phase.stop();
+			if (Options.v().getShardIndex() >= 0 && null != boogieFile
+					&& !boogieFile.isEmpty()) {
+				ShardRunner.writeNumberedGlobals(boogieFile);
+			}
 			
 			if (Options.v().getRunTypeChecker()) {
+				phase = Profiler.v().start("type checker");
 				GlobalsCache.v().getPf().runTypeChecker();
+				phase.stop();
 			}
 			Log.info("Done parsing.");
+			if (sceneArgs != null) {
+				SceneCache.store(sceneArgs, this.inputClasses);
+			}
 		} catch (Exception e) {
 			Log.error(e);
 		} finally {
+			if (transformer != null) {
+				transformer.shutdown();
+			}
+			if (streamWriter != null) {
+				streamWriter.abort();
+			}
 			// reset stream redirection
 			resetStream();
 		}
 	}
 
 	
+	/**
+	 * Does what soot.Main does for the classes to translate, if the Scene
+	 * of the last run is reused (see SceneCache).
+	 */
+	private void runWithScene() {
+		for (String className : this.classArgs) {
+			Scene.v().forceResolve(className, SootClass.BODIES)
+					.setApplicationClass();
+		}
+		PackManager.v().runBodyPacks();
+	}
+
 	private static class Interceptor extends PrintStream
 	{	
 	    public Interceptor(OutputStream out) throws UnsupportedEncodingException
@@ -302,6 +508,21 @@ public class SootRunner extends Runner {
 	    }
 	}	
 	
+	/**
+	 * Adds the classes that soot has to load before the input unless it
+	 * resolves classes on demand (see Options.useFastSootProfile)
+	 */
+	protected void addBasicClasses() {
+		if (Options.v().useFastSootProfile()) {
+			return;
+		}
+		// Iterator Hack
+		Scene.v().addBasicClass("org.eclipse.jdt.core.compiler.CategorizedProblem",SootClass.HIERARCHY);
+		Scene.v().addBasicClass("java.lang.Iterable",SootClass.SIGNATURES);			
+		Scene.v().addBasicClass("java.util.Iterator",SootClass.SIGNATURES);
+		Scene.v().addBasicClass("java.lang.reflect.Array",SootClass.SIGNATURES);
+	}
+
 	/**
 	 * Fills a list with the standard command-line arguments needed by Soot
 	 * 
@@ -311,7 +532,21 @@ public class SootRunner extends Runner {
 	protected void fillSootArgs(List<String> args) {
 		args.add("-keep-line-number");
 //		args.add("-keep-offset");
-		args.add("-pp");		
+		if (Options.v().useFastSootProfile()) {
+			// the runners already put rt.jar and jce.jar on the class path
+			// and the library classes are resolved when they are used.
+			args.add("-ignore-resolving-levels");
+			// the names of the locals and the number of locals do not
+			// matter for the translation.
+			args.add("-p");
+			args.add("jb.lns");
+			args.add("enabled:false");
+			args.add("-p");
+			args.add("jb.ulp");
+			args.add("enabled:false");
+		} else {
+			args.add("-pp");
+		}
 //		args.add("-print-tags");
 //		args.add("true");
 		if (org.joogie.Options.v().isDebug()) {
@@ -408,8 +643,11 @@ public class SootRunner extends Runner {
 	 *            JAR file object
 	 * @param classes
 	 *            List of classes
+	 * @param excluded
+	 *            List of classes that are not in the scope, or null
 	 */
-	protected void enumClasses(File file, List<String> classes) {
+	protected void enumClasses(File file, List<String> classes,
+			List<String> excluded) {
 		try {
 			// open JAR file
 			Log.debug("Opening jar " + file.getPath());
@@ -421,7 +659,8 @@ public class SootRunner extends Runner {
 				JarEntry entry = entries.nextElement();
 				String entryName = entry.getName();
 
-				if (entryName.endsWith(".class")) {
+				if (entryName.endsWith(".class")
+						&& !NestedJars.isNested(entryName)) {
 					// get class
 					String className = entryName.substring(0,
 							entryName.length() - ".class".length());
@@ -430,6 +669,9 @@ public class SootRunner extends Runner {
 					// is class in scope?
 					if (Options.v().hasScope()) {
 						if (!className.startsWith(Options.v().getScope())) {
+							if (excluded != null) {
+								excluded.add(className);
+							}
 							continue;
 						}
 					}
@@ -437,6 +679,15 @@ public class SootRunner extends Runner {
 					// add class
 					Log.debug("Adding class " + className);
 					classes.add(className);
+					if (TranslationCache.v().isEnabled()) {
+						InputStream in = jarFile.getInputStream(entry);
+						try {
+							TranslationCache.v().addClass(className,
+									readFully(in));
+						} finally {
+							in.close();
+						}
+					}
 				}
 			}
 
@@ -448,6 +699,144 @@ public class SootRunner extends Runner {
 		}
 	}
 
+	/**
+	 * Enumerates all classes in a directory of class files
+	 * 
+	 * @param dir
+	 *            Directory
+	 * @param pkg
+	 *            Package prefix of the classes in dir
+	 * @param classes
+	 *            List of classes
+	 * @param excluded
+	 *            List of classes that are not in the scope, or null
+	 */
+	protected void enumClassFiles(File dir, String pkg, List<String> classes,
+			List<String> excluded) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) {
+				enumClassFiles(file, pkg + file.getName() + ".", classes,
+						excluded);
+			} else if (file.getName().endsWith(".class")) {
+				String className = pkg
+						+ file.getName().substring(0,
+								file.getName().length() - ".class".length());
+
+				// is class in scope?
+				if (Options.v().hasScope()) {
+					if (!className.startsWith(Options.v().getScope())) {
+						if (excluded != null) {
+							excluded.add(className);
+						}
+						continue;
+					}
+				}
+
+				Log.debug("Adding class " + className);
+				classes.add(className);
+				if (!TranslationCache.v().isEnabled()) {
+					continue;
+				}
+				try {
+					InputStream in = new FileInputStream(file);
+					try {
+						TranslationCache.v().addClass(className, readFully(in));
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					Log.error(e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the classes that belong to this shard (see Options.getShards) and
+	 * cannot be taken from the translation cache to the arguments of Soot
+	 * 
+	 * @param classes
+	 *            List of classes
+	 * @param args
+	 *            Command-line arguments
+	 */
+	protected void addClassesToTranslate(List<String> classes, List<String> args) {
+		int shard = Options.v().getShardIndex();
+		this.classArgs = new ArrayList<String>();
+		for (int i = 0; i < classes.size(); i++) {
+			if (shard >= 0 && i % Options.v().getShards() != shard) {
+				continue;
+			}
+			if (!TranslationCache.v().lookup(classes.get(i))) {
+				this.classArgs.add(classes.get(i));
+			}
+		}
+		args.addAll(this.classArgs);
+	}
+
+	/**
+	 * Excludes the classes that are not in the scope from the classes that
+	 * soot processes, so that soot only resolves their signatures and never
+	 * builds their bodies. Whole packages are excluded where possible to
+	 * keep the command line short.
+	 * 
+	 * @param classes
+	 *            Classes in the scope
+	 * @param excluded
+	 *            Classes that are not in the scope
+	 * @param args
+	 *            Command-line arguments
+	 */
+	protected void addScopeExcludes(List<String> classes,
+			List<String> excluded, List<String> args) {
+		if (excluded.isEmpty()) {
+			return;
+		}
+		NavigableSet<String> inScope = new TreeSet<String>(classes);
+		Set<String> patterns = new TreeSet<String>();
+		for (String className : excluded) {
+			patterns.add(excludePattern(className, inScope));
+		}
+		for (String pattern : patterns) {
+			args.add("-exclude");
+			args.add(pattern);
+		}
+		args.add("-no-bodies-for-excluded");
+	}
+
+	/**
+	 * Returns the largest package of className that contains no class in
+	 * the scope as a soot pattern, e.g., "a.b.*", or className if there is
+	 * none.
+	 */
+	private static String excludePattern(String className,
+			NavigableSet<String> inScope) {
+		for (int dot = className.indexOf('.'); dot >= 0; dot = className
+				.indexOf('.', dot + 1)) {
+			String prefix = className.substring(0, dot + 1);
+			String next = inScope.ceiling(prefix);
+			if (next == null || !next.startsWith(prefix)) {
+				return prefix + "*";
+			}
+		}
+		return className;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int len;
+		while ((len = in.read(buffer)) != -1) {
+			out.write(buffer, 0, len);
+		}
+		return out.toByteArray();
+	}
+
 	/**
 	 * Initializes stream redirection
 	 */
@@ -54,8 +54,7 @@ public class AssignmentTranslation {
 				// TODO
 				Log.error("Mulit-arrays are not implemented!");
 			}
-			right = GlobalsCache.v().makeFreshGlobal(
-					SootPrelude.v().getReferenceType(), true, true);
+			right = GlobalsCache.v().lookupMultiArrayGlobal(rhs);
 		} else if (rhs instanceof StringConstant) {
 			StringConstant str = (StringConstant) rhs;
 
@@ -0,0 +1,248 @@
+/**
+ *
+ */
+package org.joogie.soot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.joogie.util.Log;
+import org.joogie.util.Profiler;
+
+import soot.ClassProvider;
+import soot.ClassSource;
+import soot.FoundFile;
+import soot.Scene;
+import soot.SourceLocator;
+import soot.asm.AsmClassSource;
+
+/**
+ * Finds the class files on soot's class path with an index of the classes
+ * in each jar (see Options.getClassPathIndex). Soot reads the entries of
+ * every jar in front of a class before it finds the class, which is slow
+ * for long class paths and for the phantom classes, which are in no jar.
+ * The index is kept in a file and a jar is only read again if its size or
+ * modification time changed. Directories are not indexed, since looking
+ * up a class in a directory is a single file access.
+ *
+ * Replaces soot's class providers, so only class files are found.
+ */
+public class ClassPathIndex implements ClassProvider {
+
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * The classes of a jar when it was indexed.
+	 */
+	private static class JarEntries {
+		final long lastModified;
+		final long length;
+		final List<String> classes;
+
+		JarEntries(long lastModified, long length, List<String> classes) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.classes = classes;
+		}
+	}
+
+	/**
+	 * Soot's constructor is protected.
+	 */
+	private static class IndexedClassSource extends AsmClassSource {
+		IndexedClassSource(String className, FoundFile file) {
+			super(className, file);
+		}
+	}
+
+	private final String indexFile;
+
+	/**
+	 * The entries of the class path, created on the first lookup, because
+	 * soot sets its class path after the providers.
+	 */
+	private List<File> entries = null;
+
+	/**
+	 * The position in entries of the first jar that contains a class.
+	 */
+	private final Map<String, Integer> firstJar = new HashMap<String, Integer>();
+
+	/**
+	 * Installs an index that is kept in indexFile as class provider of
+	 * soot. Must be called after soot has been reset.
+	 *
+	 * @param indexFile
+	 */
+	public static void install(String indexFile) {
+		List<ClassProvider> providers = new ArrayList<ClassProvider>();
+		providers.add(new ClassPathIndex(indexFile));
+		SourceLocator.v().setClassProviders(providers);
+	}
+
+	private ClassPathIndex(String indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	@Override
+	public synchronized ClassSource find(String className) {
+		if (this.entries == null) {
+			Profiler.Phase phase = Profiler.v().start("soot/class path index");
+			try {
+				buildIndex();
+			} finally {
+				phase.stop();
+			}
+		}
+		String fileName = className.replace('.', '/') + ".class";
+		Integer jar = this.firstJar.get(className);
+		int end = jar == null ? this.entries.size() : jar;
+		for (int i = 0; i < end; i++) {
+			File dir = this.entries.get(i);
+			if (dir.isDirectory()) {
+				File file = new File(dir, fileName);
+				if (file.isFile()) {
+					return new IndexedClassSource(className, new FoundFile(
+							file));
+				}
+			}
+		}
+		if (jar == null) {
+			return null;
+		}
+		return new IndexedClassSource(className, new FoundFile(this.entries
+				.get(jar).getPath(), fileName));
+	}
+
+	private void buildIndex() {
+		Map<String, JarEntries> index = load();
+		boolean changed = false;
+		this.entries = new ArrayList<File>();
+		for (String path : SourceLocator.explodeClassPath(Scene.v()
+				.getSootClassPath())) {
+			File entry = new File(path);
+			int position = this.entries.size();
+			this.entries.add(entry);
+			if (!entry.isFile()) {
+				continue;
+			}
+			String key = entry.getAbsolutePath();
+			JarEntries jar = index.get(key);
+			if (jar == null || jar.lastModified != entry.lastModified()
+					|| jar.length != entry.length()) {
+				jar = readJar(entry);
+				index.put(key, jar);
+				changed = true;
+			}
+			for (String className : jar.classes) {
+				if (!this.firstJar.containsKey(className)) {
+					this.firstJar.put(className, position);
+				}
+			}
+		}
+		if (changed) {
+			store(index);
+		}
+	}
+
+	private static JarEntries readJar(File file) {
+		List<String> classes = new ArrayList<String>();
+		try (ZipFile zip = new ZipFile(file)) {
+			Enumeration<? extends ZipEntry> it = zip.entries();
+			while (it.hasMoreElements()) {
+				String name = it.nextElement().getName();
+				if (name.endsWith(".class")) {
+					classes.add(name.substring(0,
+							name.length() - ".class".length()).replace('/',
+							'.'));
+				}
+			}
+		} catch (IOException e) {
+			// soot ignores class path entries that are not archives.
+			Log.debug("Cannot index " + file + ": " + e.toString());
+		}
+		return new JarEntries(file.lastModified(), file.length(), classes);
+	}
+
+	/**
+	 * Reads the index file. For each jar, it contains a line with its path,
+	 * modification time, size, and number of classes, separated by tabs,
+	 * followed by one line per class.
+	 *
+	 * @return
+	 */
+	private Map<String, JarEntries> load() {
+		Map<String, JarEntries> index = new LinkedHashMap<String, JarEntries>();
+		File file = new File(this.indexFile);
+		if (!file.isFile()) {
+			return index;
+		}
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), CHARSET))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] header = line.split("\t");
+				int count = Integer.parseInt(header[3]);
+				List<String> classes = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					classes.add(in.readLine());
+				}
+				index.put(header[0], new JarEntries(Long.parseLong(header[1]),
+						Long.parseLong(header[2]), classes));
+			}
+		} catch (IOException | RuntimeException e) {
+			Log.info("Ignoring class path index " + this.indexFile + ": "
+					+ e.toString());
+			index.clear();
+		}
+		return index;
+	}
+
+	private void store(Map<String, JarEntries> index) {
+		File file = new File(this.indexFile);
+		File tmp = new File(file.getPath() + ".tmp");
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(tmp), CHARSET))) {
+			for (Map.Entry<String, JarEntries> entry : index.entrySet()) {
+				if (!new File(entry.getKey()).isFile()) {
+					continue;
+				}
+				JarEntries jar = entry.getValue();
+				out.println(entry.getKey() + "\t" + jar.lastModified + "\t"
+						+ jar.length + "\t" + jar.classes.size());
+				for (String className : jar.classes) {
+					out.println(className);
+				}
+			}
+			// a PrintWriter does not throw, e.g., if the disk is full.
+			if (out.checkError()) {
+				throw new IOException("write failed");
+			}
+		} catch (IOException e) {
+			Log.error("Cannot write class path index " + tmp + ": "
+					+ e.toString());
+			// keep the old index.
+			if (tmp.exists() && !tmp.delete()) {
+				Log.debug("Cannot delete " + tmp);
+			}
+			return;
+		}
+		if (!(tmp.renameTo(file) || (file.delete() && tmp.renameTo(file)))) {
+			Log.error("Cannot write class path index " + file);
+		}
+	}
+}
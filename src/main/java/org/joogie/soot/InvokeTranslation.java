@@ -12,7 +12,6 @@ import org.joogie.util.Log;
 import org.joogie.util.TranslationHelpers;
 
 import soot.Immediate;
-import soot.Scene;
 import soot.SootClass;
 import soot.SootMethod;
 import soot.Trap;
@@ -284,7 +283,7 @@ public class InvokeTranslation {
 		List<Trap> finally_traps = new LinkedList<Trap>(); // TODO: do we have
 															// to use them here?
 		TranslationHelpers.getReachableTraps(statement,
-				procInfo.getSootMethod(), traps, finally_traps);
+				procInfo, traps, finally_traps);
 
 		List<SootClass> possibleExceptions = sortExceptions(calledMethod
 				.getExceptions());
@@ -300,8 +299,8 @@ public class InvokeTranslation {
 		// if (!possibleExceptions.contains(throwableException)) {
 		// possibleExceptions.add(throwableException);
 		// }
-		SootClass interuptException = Scene.v().loadClass(
-				"java.lang.InterruptedException", SootClass.SIGNATURES);
+		SootClass interuptException = GlobalsCache.v().lookupSootClass(
+				"java.lang.InterruptedException");
 
 		SootClass largestCaughtException = null;
 
@@ -395,18 +394,16 @@ public class InvokeTranslation {
 		// we might create unreachable catch blocks
 		// also check if runtime exceptions are caught. In that case,
 		// we have to allow a transition to them as well
-		SootClass exception = Scene.v().loadClass("java.lang.Exception",
-				SootClass.SIGNATURES);
-		SootClass throwable = Scene.v().loadClass("java.lang.Throwable",
-				SootClass.SIGNATURES);
-		SootClass runtimeexception = Scene.v().loadClass(
-				"java.lang.RuntimeException", SootClass.SIGNATURES);
+		SootClass exception = GlobalsCache.v().lookupSootClass("java.lang.Exception");
+		SootClass throwable = GlobalsCache.v().lookupSootClass("java.lang.Throwable");
+		SootClass runtimeexception = GlobalsCache.v().lookupSootClass(
+				"java.lang.RuntimeException");
 
 		for (Trap trap : traps) {
 
 			if (trap.getException() == exception
 					|| trap.getException() == throwable
-					|| !calledMethod.hasActiveBody()
+					|| GlobalsCache.v().lookupProcedure(calledMethod).getBody() == null
 					|| GlobalsCache.v().isSubTypeOrEqual(trap.getException(),
 							runtimeexception)) {
 
@@ -518,19 +515,17 @@ public class InvokeTranslation {
 		List<Trap> finally_traps = new LinkedList<Trap>(); // TODO: do we have
 															// to use them here?
 		TranslationHelpers.getReachableTraps(statement,
-				procInfo.getSootMethod(), traps, finally_traps);
+				procInfo, traps, finally_traps);
 
 		List<SootClass> possibleExceptions = calledMethod.getExceptions();
 
-		SootClass interuptException = Scene.v().loadClass(
-				"java.lang.InterruptedException", SootClass.SIGNATURES);
+		SootClass interuptException = GlobalsCache.v().lookupSootClass(
+				"java.lang.InterruptedException");
 
-		SootClass exception = Scene.v().loadClass("java.lang.Exception",
-				SootClass.SIGNATURES);
-		SootClass throwable = Scene.v().loadClass("java.lang.Throwable",
-				SootClass.SIGNATURES);
-		SootClass runtimeexception = Scene.v().loadClass(
-				"java.lang.RuntimeException", SootClass.SIGNATURES);
+		SootClass exception = GlobalsCache.v().lookupSootClass("java.lang.Exception");
+		SootClass throwable = GlobalsCache.v().lookupSootClass("java.lang.Throwable");
+		SootClass runtimeexception = GlobalsCache.v().lookupSootClass(
+				"java.lang.RuntimeException");
 
 		LinkedList<SootClass> largestCaughtExceptions = new LinkedList<SootClass>();
 
@@ -604,7 +599,7 @@ public class InvokeTranslation {
 
 			if (trap.getException() == exception
 					|| trap.getException() == throwable
-					|| !calledMethod.hasActiveBody()
+					|| GlobalsCache.v().lookupProcedure(calledMethod).getBody() == null
 					|| GlobalsCache.v().isSubTypeOrEqual(trap.getException(),
 							runtimeexception)) {
 
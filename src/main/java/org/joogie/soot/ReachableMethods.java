@@ -0,0 +1,319 @@
+/**
+ *
+ */
+package org.joogie.soot;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import org.joogie.Options;
+import org.joogie.util.Log;
+
+import soot.Body;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import soot.Value;
+import soot.ValueBox;
+import soot.jimple.DynamicInvokeExpr;
+import soot.jimple.InstanceInvokeExpr;
+import soot.jimple.InvokeExpr;
+import soot.jimple.MethodHandle;
+import soot.jimple.NewExpr;
+import soot.jimple.SpecialInvokeExpr;
+import soot.jimple.StaticFieldRef;
+import soot.util.NumberedString;
+
+/**
+ * The methods of the application classes that are reachable from the entry
+ * points (see Options.getEntryPoints). Only their bodies are translated; the
+ * other methods are only declared if they are called.
+ *
+ * Virtual calls are resolved with the class hierarchy. Calls from the
+ * library into the application are not visible, so the methods of an
+ * instantiated class that override a library method (e.g., run or
+ * compareTo) are assumed to be reachable, as are the static initializers of
+ * the classes that are used.
+ */
+public class ReachableMethods {
+
+	/**
+	 * Entry points: the main methods of the main class (see
+	 * Options.getMainClassName), or of all classes if there is none.
+	 */
+	public static final String MAIN = "main";
+
+	/**
+	 * Entry points: the public and protected methods of the public classes
+	 * in the scope (see Options.getScope).
+	 */
+	public static final String SCOPE = "scope";
+
+	private static final String MAIN_SUBSIGNATURE = "void main(java.lang.String[])";
+
+	private final Set<SootMethod> reachable = new HashSet<SootMethod>();
+	private final LinkedList<SootMethod> worklist = new LinkedList<SootMethod>();
+	private final Set<SootClass> usedClasses = new HashSet<SootClass>();
+	private final Set<SootClass> instantiatedClasses = new HashSet<SootClass>();
+
+	/**
+	 * Computes the reachable methods from the classes in the Scene.
+	 *
+	 * @param entryPoints
+	 *            MAIN, SCOPE, or a file with one method signature per line,
+	 *            e.g., "&lt;a.B: void m(int)&gt;". Lines starting with # are
+	 *            ignored.
+	 */
+	public ReachableMethods(String entryPoints) {
+		if (MAIN.equals(entryPoints)) {
+			addMainMethods();
+		} else if (SCOPE.equals(entryPoints)) {
+			addScopeMethods();
+		} else {
+			addMethodsFromFile(entryPoints);
+		}
+		if (this.worklist.isEmpty()) {
+			Log.error("No entry points found for " + entryPoints);
+		}
+		while (!this.worklist.isEmpty()) {
+			addCallees(this.worklist.removeFirst());
+		}
+
+		int methods = 0;
+		for (SootClass c : Scene.v().getApplicationClasses()) {
+			for (SootMethod m : c.getMethods()) {
+				if (m.isConcrete()) {
+					methods++;
+				}
+			}
+		}
+		Log.info(this.reachable.size() + " of " + methods
+				+ " methods are reachable from the entry points");
+	}
+
+	/**
+	 * Returns true if the body of m has to be translated.
+	 *
+	 * @param m
+	 * @return
+	 */
+	public boolean contains(SootMethod m) {
+		return this.reachable.contains(m);
+	}
+
+	private void addMainMethods() {
+		String mainClass = Options.v().getMainClassName();
+		Collection<SootClass> classes;
+		if (mainClass != null && !mainClass.isEmpty()) {
+			SootClass c = Scene.v().getSootClassUnsafe(mainClass);
+			if (c == null) {
+				Log.error("Main class " + mainClass + " not found");
+				return;
+			}
+			classes = Collections.singleton(c);
+		} else {
+			classes = Scene.v().getApplicationClasses();
+		}
+		for (SootClass c : classes) {
+			SootMethod m = c.getMethodUnsafe(MAIN_SUBSIGNATURE);
+			if (m != null && m.isStatic()) {
+				addMethod(m);
+			}
+		}
+	}
+
+	private void addScopeMethods() {
+		for (SootClass c : Scene.v().getApplicationClasses()) {
+			if (!c.isPublic()
+					|| (Options.v().hasScope() && !c.getPackageName()
+							.startsWith(Options.v().getScope()))) {
+				continue;
+			}
+			for (SootMethod m : c.getMethods()) {
+				if (m.isPublic() || m.isProtected()) {
+					addMethod(m);
+				}
+			}
+		}
+	}
+
+	private void addMethodsFromFile(String fileName) {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(fileName), "UTF-8"))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				SootMethod m = Scene.v().grabMethod(line);
+				if (m == null) {
+					Log.info("Entry point " + line + " not found");
+				} else {
+					addMethod(m);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read entry points from "
+					+ fileName + ": " + e.toString());
+		}
+	}
+
+	private void addMethod(SootMethod m) {
+		SootClass c = m.getDeclaringClass();
+		if (!c.isApplicationClass() || !m.isConcrete()
+				|| !this.reachable.add(m)) {
+			return;
+		}
+		this.worklist.add(m);
+		addClass(c);
+	}
+
+	/**
+	 * Adds the static initializers of c and its super classes.
+	 *
+	 * @param c
+	 */
+	private void addClass(SootClass c) {
+		for (SootClass s = c; s != null && this.usedClasses.add(s); s = s
+				.getSuperclassUnsafe()) {
+			SootMethod clinit = s.getMethodUnsafe("void "
+					+ SootMethod.staticInitializerName + "()");
+			if (clinit != null) {
+				addMethod(clinit);
+			}
+		}
+	}
+
+	/**
+	 * Adds the methods of c and its super classes that may be called by the
+	 * library, because they override a method of a library class or
+	 * interface.
+	 *
+	 * @param c
+	 */
+	private void addInstantiatedClass(SootClass c) {
+		if (!this.instantiatedClasses.add(c)) {
+			return;
+		}
+		addClass(c);
+		Set<NumberedString> libraryMethods = new HashSet<NumberedString>();
+		collectLibraryMethods(c, libraryMethods, new HashSet<SootClass>());
+		for (SootClass s = c; s != null && s.isApplicationClass(); s = s
+				.getSuperclassUnsafe()) {
+			for (SootMethod m : s.getMethods()) {
+				if (!m.isStatic()
+						&& libraryMethods.contains(m.getNumberedSubSignature())) {
+					addMethod(m);
+				}
+			}
+		}
+	}
+
+	private void collectLibraryMethods(SootClass c, Set<NumberedString> ret,
+			Set<SootClass> visited) {
+		if (c == null || !visited.add(c)) {
+			return;
+		}
+		if (!c.isApplicationClass()) {
+			for (SootMethod m : c.getMethods()) {
+				if (!m.isStatic() && !m.isConstructor()) {
+					ret.add(m.getNumberedSubSignature());
+				}
+			}
+		}
+		collectLibraryMethods(c.getSuperclassUnsafe(), ret, visited);
+		for (SootClass i : c.getInterfaces()) {
+			collectLibraryMethods(i, ret, visited);
+		}
+	}
+
+	private void addCallees(SootMethod m) {
+		Body body;
+		try {
+			body = m.retrieveActiveBody();
+		} catch (RuntimeException e) {
+			Log.debug("No body for " + m.getSignature() + ": " + e.toString());
+			return;
+		}
+		for (Unit u : body.getUnits()) {
+			for (ValueBox vb : u.getUseAndDefBoxes()) {
+				Value v = vb.getValue();
+				if (v instanceof InvokeExpr) {
+					addInvoke((InvokeExpr) v);
+				} else if (v instanceof NewExpr) {
+					addInstantiatedClass(((NewExpr) v).getBaseType()
+							.getSootClass());
+				} else if (v instanceof StaticFieldRef) {
+					addClass(((StaticFieldRef) v).getFieldRef()
+							.declaringClass());
+				}
+			}
+		}
+	}
+
+	private void addInvoke(InvokeExpr ie) {
+		if (ie instanceof DynamicInvokeExpr) {
+			addBootstrapArgs((DynamicInvokeExpr) ie);
+			return;
+		}
+		SootMethod callee;
+		try {
+			callee = ie.getMethod();
+		} catch (RuntimeException e) {
+			// the method does not exist in the class path.
+			return;
+		}
+		addTarget(callee, ie instanceof InstanceInvokeExpr
+				&& !(ie instanceof SpecialInvokeExpr));
+	}
+
+	/**
+	 * The targets of an invokedynamic are only visible in the method handles
+	 * of its bootstrap arguments, e.g., the lambda$ method of a lambda or
+	 * the method of a method reference.
+	 *
+	 * @param ie
+	 */
+	private void addBootstrapArgs(DynamicInvokeExpr ie) {
+		for (Value arg : ie.getBootstrapArgs()) {
+			if (!(arg instanceof MethodHandle)
+					|| !((MethodHandle) arg).isMethodRef()) {
+				continue;
+			}
+			SootMethod target;
+			try {
+				target = ((MethodHandle) arg).getMethodRef().resolve();
+			} catch (RuntimeException e) {
+				// the method does not exist in the class path.
+				continue;
+			}
+			addTarget(target, !target.isStatic() && !target.isPrivate()
+					&& !target.isConstructor());
+		}
+	}
+
+	private void addTarget(SootMethod callee, boolean virtual) {
+		if (!virtual) {
+			addMethod(callee);
+			return;
+		}
+		try {
+			for (SootMethod target : Scene.v().getFastHierarchy()
+					.resolveAbstractDispatch(callee.getDeclaringClass(), callee)) {
+				addMethod(target);
+			}
+		} catch (RuntimeException e) {
+			// e.g., a phantom class in the hierarchy.
+			addMethod(callee);
+		}
+	}
+}
@@ -19,33 +19,67 @@
 
 package org.joogie.soot;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import org.joogie.GlobalsCache;
 import org.joogie.Options;
+import org.joogie.util.BoogieStreamWriter;
 import org.joogie.util.Log;
+import org.joogie.util.MethodReport;
+import org.joogie.util.MhpInfo;
+import org.joogie.util.Profiler;
+import org.joogie.util.TranslationCache;
 import org.joogie.util.TranslationHelpers;
 
+import soot.ArrayType;
 import soot.Body;
 import soot.BodyTransformer;
+import soot.NullType;
+import soot.RefType;
 import soot.SootClass;
 import soot.SootMethod;
 import soot.Trap;
+import soot.Type;
 import soot.Unit;
 import soot.Value;
 import soot.ValueBox;
 import soot.jimple.BinopExpr;
+import soot.jimple.CastExpr;
+import soot.jimple.CaughtExceptionRef;
+import soot.jimple.ClassConstant;
+import soot.jimple.DoubleConstant;
+import soot.jimple.FieldRef;
+import soot.jimple.FloatConstant;
 import soot.jimple.GotoStmt;
 import soot.jimple.IfStmt;
+import soot.jimple.InstanceFieldRef;
+import soot.jimple.InstanceOfExpr;
+import soot.jimple.InvokeExpr;
+import soot.jimple.LongConstant;
 import soot.jimple.NeExpr;
 import soot.jimple.NegExpr;
+import soot.jimple.NewArrayExpr;
+import soot.jimple.NewExpr;
+import soot.jimple.NewMultiArrayExpr;
 import soot.jimple.ReturnStmt;
 import soot.jimple.StaticFieldRef;
 import soot.jimple.Stmt;
+import soot.jimple.StringConstant;
 import soot.jimple.ThrowStmt;
 import soot.jimple.internal.JEqExpr;
 import soot.tagkit.LineNumberTag;
@@ -55,9 +89,12 @@ import soot.toolkits.graph.ExceptionalUnitGraph;
 import boogie.ProgramFactory;
 import boogie.ast.Attribute;
 import boogie.ast.declaration.Implementation;
+import boogie.ast.expression.Expression;
+import boogie.ast.expression.IdentifierExpression;
 import boogie.ast.statement.ReturnStatement;
 import boogie.ast.statement.Statement;
 import boogie.enums.BinaryOperator;
+import boogie.type.BoogieType;
 
 /**
  * Boogie Body Transformer
@@ -66,6 +103,77 @@ import boogie.enums.BinaryOperator;
  */
 public class SootBodyTransformer extends BodyTransformer {
 
+	/**
+	 * Translates the method bodies if more than one job is requested, null
+	 * otherwise.
+	 */
+	private ExecutorService executor = null;
+
+	/**
+	 * Translations that still have to be added to the Boogie program. The
+	 * implementations are added in the order in which soot handed us the
+	 * bodies, so the output does not depend on the number of jobs.
+	 */
+	private LinkedHashMap<SootProcedureInfo, FutureTask<Statement[]>> pendingProcedures = new LinkedHashMap<SootProcedureInfo, FutureTask<Statement[]>>();
+
+	/**
+	 * Records the globals of the body that is prepared, if its class is
+	 * cached.
+	 */
+	private TranslationCache.Entry cacheEntry = null;
+
+	/**
+	 * Prints the implementations as soon as they are done, or null if they
+	 * are added to the ProgramFactory.
+	 */
+	private BoogieStreamWriter streamWriter = null;
+
+	/**
+	 * The phase that soot is in between two bodies (see Profiler), or null
+	 * if soot is not running.
+	 */
+	private Profiler.Phase sootPhase = null;
+
+	/**
+	 * The methods that are translated if Options.hasEntryPoints, computed
+	 * when the first body arrives.
+	 */
+	private ReachableMethods reachableMethods = null;
+
+	/**
+	 * Methods whose translation exceeded a budget (see
+	 * Options.getBudgetMillis, getBudgetUnits, and getBudgetStmts) and was
+	 * replaced by a stub, with the budget they exceeded.
+	 */
+	private final Map<SootMethod, String> stubbedMethods = Collections
+			.synchronizedMap(new LinkedHashMap<SootMethod, String>());
+
+	/**
+	 * The stubbed procedures in the order of their bodies. Their stubs are
+	 * only created by emitProcedures, once all static fields are known.
+	 */
+	private final List<SootProcedureInfo> pendingStubs = new ArrayList<SootProcedureInfo>();
+
+	/**
+	 * Thrown by the translation of a body that exceeds a budget.
+	 */
+	private static class BudgetExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public BudgetExceededException(String budget) {
+			super(budget);
+		}
+	}
+
+	/**
+	 * Exceptions that the error model may raise in any body.
+	 */
+	private static final String[] runtimeExceptions = {
+			"java.lang.RuntimeException",
+			"java.lang.ArrayIndexOutOfBoundsException",
+			"java.lang.NullPointerException", "java.lang.ArithmeticException",
+			"java.lang.ClassCastException" };
+
 	/**
 	 * C-tor
 	 * 
@@ -73,11 +181,67 @@ public class SootBodyTransformer extends BodyTransformer {
 	 *            Report
 	 */
 	public SootBodyTransformer() {
+		if (Options.v().getJobs() > 1) {
+			this.executor = Executors.newFixedThreadPool(Options.v().getJobs());
+		}
 	}
 
 	@Override
 	@SuppressWarnings("rawtypes")
 	protected void internalTransform(Body arg0, String arg1, Map arg2) {
+		stopSootPhase();
+		try {
+			transformBody(arg0);
+		} finally {
+			// the time until the next body is spent by soot, mostly on
+			// creating its jimple.
+			this.sootPhase = Profiler.v().start("soot/jimple bodies");
+		}
+	}
+
+	/**
+	 * Must be called before soot runs. Until the first body arrives, soot
+	 * loads the classes (and builds the call graph for whole-program
+	 * analyses).
+	 */
+	public void beforeSoot() {
+		this.sootPhase = Profiler.v().start("soot/load classes");
+	}
+
+	/**
+	 * Must be called after soot is done.
+	 */
+	public void afterSoot() {
+		stopSootPhase();
+	}
+
+	/**
+	 * Returns the methods that are reachable from the entry points. Soot has
+	 * loaded all classes when the first body arrives.
+	 * 
+	 * @return
+	 */
+	private synchronized ReachableMethods getReachableMethods() {
+		if (this.reachableMethods == null) {
+			Profiler.Phase phase = Profiler.v().start("soot/reachable methods");
+			try {
+				this.reachableMethods = new ReachableMethods(Options.v()
+						.getEntryPoints());
+			} finally {
+				phase.stop();
+			}
+		}
+		return this.reachableMethods;
+	}
+
+	private void stopSootPhase() {
+		if (this.sootPhase != null) {
+			this.sootPhase.stop();
+			this.sootPhase = null;
+		}
+	}
+
+	private void transformBody(Body arg0) {
 		if (Options.v().hasScope()) {
 			SootMethod method = arg0.getMethod();
 			SootClass clazz = method.getDeclaringClass();
@@ -87,38 +251,443 @@ public class SootBodyTransformer extends BodyTransformer {
 				return; // ignore current body
 			}
 		}
+		if (Options.v().hasEntryPoints()
+				&& !getReachableMethods().contains(arg0.getMethod())) {
+			// the procedure is only declared if it is called.
+			return;
+		}
 
 		
+		final Body body = arg0;
+		final SootProcedureInfo procInfo;
 		// report.addMethod(sootMethod);
-		GlobalsCache.v().currentMethod = arg0.getMethod(); 
+		// the time budget includes the analyses, which are the slowest
+		// part for some bodies.
+		long start = System.nanoTime();
+		final int budgetMillis = Options.v().getBudgetMillis();
+		int budgetUnits = Options.v().getBudgetUnits();
+		String budgetUsed = (budgetUnits > 0 && body.getUnits()
+				.size() > budgetUnits) ? "more than " + budgetUnits
+				+ " units" : null;
+		GlobalsCache.v().setCurrentMethod(body.getMethod()); 
 		try {
-			transformStmtList(arg0);
+			procInfo = GlobalsCache.v().lookupProcedure(body.getMethod());
+			if (procInfo.getBoogieProcedure()!=null) {
+				Log.info("Procedure "+body.getMethod().getBytecodeSignature()+" already known from Prelude");
+				return;
+			}
+			Profiler.Phase phase = Profiler.v().start("soot/prepare");
+			internGlobals(body, procInfo);
+			phase.stop();
+			if (budgetUsed == null) {
+				// soot's throw analysis is not thread safe, so the analyses
+				// are created here rather than by the worker.
+				procInfo.buildAnalyses();
+				if (budgetMillis > 0
+						&& System.nanoTime() - start > budgetMillis * 1000000L) {
+					budgetUsed = "more than " + budgetMillis + " ms";
+				}
+			}
 		} catch (Throwable e) {
-			Log.error("Failed to translate "+ arg0.getMethod().getName());
+			Log.error("Failed to translate "+ body.getMethod().getName());
 			Log.error(e.toString());
 			throw e;
+		} finally {
+			GlobalsCache.v().setCurrentMethod(null);
+		}
+		final long prepareNanos = System.nanoTime() - start;
+		final String exceededBudget = budgetUsed;
+
+		FutureTask<Statement[]> task = new FutureTask<Statement[]>(
+				new Callable<Statement[]>() {
+					@Override
+					public Statement[] call() {
+						GlobalsCache.v().setCurrentMethod(body.getMethod());
+						Profiler.Phase phase = Profiler.v().start(
+								"soot/translate");
+						long start = System.nanoTime();
+						try {
+							Statement[] stmts;
+							String budget = exceededBudget;
+							if (budget == null) {
+								try {
+									// the time in the queue of the
+									// workers does not count.
+									stmts = transformStmtList(body, procInfo,
+											start + budgetMillis * 1000000L
+													- prepareNanos);
+								} catch (BudgetExceededException e) {
+									budget = e.getMessage();
+									stmts = null;
+								}
+							} else {
+								stmts = null;
+							}
+							if (budget != null) {
+								Log.info("Translation of "
+										+ body.getMethod().getSignature()
+										+ " exceeds the budget (" + budget
+										+ "). Using a stub.");
+								stubbedMethods.put(body.getMethod(), budget);
+								// the havoc and the return of the stub
+								MethodReport.v().record(procInfo, 2,
+										prepareNanos + System.nanoTime()
+												- start, budget);
+								// see emitProcedures
+								return null;
+							}
+							MethodReport.v().record(procInfo, stmts.length,
+									prepareNanos + System.nanoTime() - start,
+									budget);
+							return stmts;
+						} finally {
+							phase.stop();
+							procInfo.releaseAnalyses();
+							GlobalsCache.v().setCurrentMethod(null);
+						}
+					}
+				});
+		this.pendingProcedures.put(procInfo, task);
+		if (this.executor == null) {
+			task.run();
+		} else {
+			this.executor.execute(task);
 		}
-		GlobalsCache.v().currentMethod = null;
+		emitCompletedProcedures(false);
+	}
+
+	public void setStreamWriter(BoogieStreamWriter writer) {
+		this.streamWriter = writer;
 	}
 
 	/**
-	 * Transforms a list of statements
+	 * Waits for all pending translations and adds their implementations to
+	 * the Boogie program. Must be called after soot is done.
+	 */
+	public void emitProcedures() {
+		try {
+			emitCompletedProcedures(true);
+		} finally {
+			this.pendingProcedures.clear();
+			shutdown();
+		}
+		if (!this.pendingStubs.isEmpty()) {
+			TranslationCache.v().internRequiredFields();
+			for (SootProcedureInfo procInfo : this.pendingStubs) {
+				emitImplementation(procInfo, createStub(procInfo));
+			}
+			this.pendingStubs.clear();
+		}
+		if (!this.stubbedMethods.isEmpty()) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(this.stubbedMethods.size()
+					+ " methods exceeded their budget and were replaced by stubs:");
+			synchronized (this.stubbedMethods) {
+				for (Map.Entry<SootMethod, String> entry : this.stubbedMethods
+						.entrySet()) {
+					sb.append(String.format("%n  %s (%s)", entry.getKey()
+							.getSignature(), entry.getValue()));
+				}
+			}
+			Log.info(sb.toString());
+		}
+	}
+
+	/**
+	 * Adds the implementations of the pending translations to the Boogie
+	 * program in the order in which soot handed us the bodies. If wait is
+	 * false, stops at the first translation that is not done yet, so
+	 * finished translations do not pile up while soot is still running.
+	 * 
+	 * @param wait
+	 */
+	private void emitCompletedProcedures(boolean wait) {
+		Iterator<Map.Entry<SootProcedureInfo, FutureTask<Statement[]>>> it = this.pendingProcedures
+				.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<SootProcedureInfo, FutureTask<Statement[]>> entry = it
+					.next();
+			if (!wait && !entry.getValue().isDone()) {
+				break;
+			}
+			SootProcedureInfo procInfo = entry.getKey();
+			Statement[] boogieStatements;
+			try {
+				boogieStatements = entry.getValue().get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				Log.error("Failed to translate "
+						+ procInfo.getSootMethod().getName());
+				Log.error(e.getCause().toString());
+				throw new RuntimeException(e.getCause());
+			}
+			it.remove();
+			if (boogieStatements == null) {
+				this.pendingStubs.add(procInfo);
+			} else {
+				emitImplementation(procInfo, boogieStatements);
+			}
+		}
+	}
+
+	/**
+	 * Adds the implementation of procInfo to the Boogie program, or prints
+	 * it if the output is streamed.
+	 * 
+	 * @param procInfo
+	 * @param boogieStatements
+	 */
+	private void emitImplementation(SootProcedureInfo procInfo,
+			Statement[] boogieStatements) {
+		//now create the procedure implementation that combines
+		//the signature procInfo and the body.
+		Implementation proc;
+		if (this.streamWriter != null) {
+			Profiler.Phase phase = Profiler.v().start("soot/print");
+			proc = this.streamWriter.writeImplementation(
+					procInfo.getProcedureDeclaration(), boogieStatements,
+					procInfo.getLocalVariables());
+			phase.stop();
+		} else {
+			ProgramFactory pf = GlobalsCache.v().getPf();
+			// the workers may still create locals
+			synchronized (pf) {
+				proc = pf.mkProcedure(procInfo.getProcedureDeclaration(),
+						boogieStatements, procInfo.getLocalVariables());
+			}
+			procInfo.setProcedureImplementation(proc);
+		}
+		TranslationCache.Entry recorder = TranslationCache.v()
+				.getRecorder(procInfo.getSootMethod().getDeclaringClass());
+		if (recorder != null) {
+			recorder.addImplementation(proc);
+			if (this.stubbedMethods.containsKey(procInfo.getSootMethod())) {
+				// the budgets are not part of the cache key.
+				recorder.setNotCacheable();
+			}
+		}
+	}
+
+	/**
+	 * Creates the body of a stub for a method whose translation exceeded a
+	 * budget. The stub havocs the heap, every static field, and its out
+	 * parameters, including the exception variable. The callees of the
+	 * method may write any static field, so only havocing the ones that
+	 * the method assigns would let its callers assume that the others are
+	 * unchanged. Must be called after all bodies have been interned.
+	 * 
+	 * @param procInfo
+	 * @return
+	 */
+	private Statement[] createStub(SootProcedureInfo procInfo) {
+		Body body = procInfo.getBody();
+		LinkedHashSet<IdentifierExpression> havoc = new LinkedHashSet<IdentifierExpression>();
+		havoc.add(SootPrelude.v().getHeapVariable());
+		havoc.addAll(GlobalsCache.v().getStaticFieldVariables());
+		havoc.addAll(Arrays.asList(procInfo.getOutParamters()));
+
+		ProgramFactory pf = GlobalsCache.v().getPf();
+		Attribute[] attributes = TranslationHelpers.javaLocation2Attribute(body
+				.getTags());
+		return new Statement[] {
+				pf.mkHavocStatement(attributes, havoc
+						.toArray(new IdentifierExpression[havoc.size()])),
+				pf.mkReturnStatement() };
+	}
+
+	/**
+	 * Stops the worker threads. Translations that are still pending are
+	 * discarded.
+	 */
+	public void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * Creates all global declarations that are needed to translate body,
+	 * i.e., procedures, fields, class variables, and constants. This runs on
+	 * soot's thread before the body is translated, so the declarations are
+	 * created in the same order no matter how many jobs are used, and the
+	 * translation itself only finds them in the GlobalsCache.
 	 * 
 	 * @param body
-	 *            Body
+	 * @param procInfo
 	 */
-	private void transformStmtList(Body body) {
-				
-		SootProcedureInfo procInfo = GlobalsCache.v().lookupProcedure(
-				body.getMethod());
+	private void internGlobals(Body body, SootProcedureInfo procInfo) {
+		GlobalsCache gc = GlobalsCache.v();
+		this.cacheEntry = TranslationCache.v().getRecorder(
+				body.getMethod().getDeclaringClass());
+		internClass(body.getMethod().getDeclaringClass());
+		internProcedure(body.getMethod());
+		gc.lookupSootClass("java.lang.Throwable");
+		gc.lookupSootClass("java.lang.Exception");
+		gc.lookupSootClass("java.lang.InterruptedException");
+		for (String name : runtimeExceptions) {
+			internClass(gc.lookupSootClass(name));
+		}
+		for (Trap trap : body.getTraps()) {
+			internClass(trap.getException());
+		}
+		if (Options.v().useSoundThreads()) {
+			MhpInfo.v();
+		}
+		for (Unit u : body.getUnits()) {
+			Stmt s = (Stmt) u;
+			if (s instanceof ThrowStmt) {
+				internType(((ThrowStmt) s).getOp().getType());
+			}
+			for (ValueBox vb : s.getUseAndDefBoxes()) {
+				internGlobals(vb.getValue(), procInfo);
+			}
+		}
+		this.cacheEntry = null;
+	}
 
-		if (procInfo.getBoogieProcedure()!=null) {
-			Log.info("Procedure "+body.getMethod().getBytecodeSignature()+" already known from Prelude");
-			return;
+	private void internGlobals(Value v, SootProcedureInfo procInfo) {
+		GlobalsCache gc = GlobalsCache.v();
+		TranslationCache.Entry entry = this.cacheEntry;
+		if (v instanceof StringConstant) {
+			IdentifierExpression ide = gc.lookupInternString((StringConstant) v);
+			if (entry != null) {
+				entry.requireConstant((StringConstant) v, ide);
+			}
+		} else if (v instanceof FloatConstant) {
+			IdentifierExpression ide = gc.lookupInternFloat((FloatConstant) v);
+			if (entry != null) {
+				entry.requireConstant((FloatConstant) v, ide);
+			}
+		} else if (v instanceof DoubleConstant) {
+			IdentifierExpression ide = gc.lookupInternDouble((DoubleConstant) v);
+			if (entry != null) {
+				entry.requireConstant((DoubleConstant) v, ide);
+			}
+		} else if (v instanceof LongConstant) {
+			long value = ((LongConstant) v).value;
+			if (value >= Integer.MAX_VALUE || value <= Integer.MIN_VALUE) {
+				IdentifierExpression ide = gc.lookupInternLong((LongConstant) v);
+				if (entry != null) {
+					entry.requireConstant((LongConstant) v, ide);
+				}
+			}
+		} else if (v instanceof ClassConstant) {
+			Expression ide = gc.lookupClassConstant((ClassConstant) v);
+			if (entry != null) {
+				entry.requireConstant((ClassConstant) v, (IdentifierExpression) ide);
+			}
+		} else if (v instanceof FieldRef) {
+			FieldRef fr = (FieldRef) v;
+			gc.lookupSootField(fr.getField());
+			if (entry != null) {
+				entry.requireField(fr.getField());
+			}
+			if (v instanceof InstanceFieldRef
+					&& Options.v().useSoundThreads()
+					&& MhpInfo.v().getSharedFields(procInfo.getSootMethod())
+							.contains(fr.getField())) {
+				internHavocGlobal(gc.getBoogieType(fr.getField().getType()));
+			}
+		} else if (v instanceof InvokeExpr) {
+			SootMethod callee = ((InvokeExpr) v).getMethod();
+			internProcedure(callee);
+			for (SootClass c : callee.getExceptions()) {
+				internClass(c);
+			}
+		} else if (v instanceof NewExpr) {
+			internClass(((NewExpr) v).getBaseType().getSootClass());
+		} else if (v instanceof NewArrayExpr) {
+			internType(((NewArrayExpr) v).getType());
+		} else if (v instanceof NewMultiArrayExpr) {
+			IdentifierExpression ide = gc.lookupMultiArrayGlobal(v);
+			if (entry != null) {
+				entry.requireFreshGlobal(ide);
+			}
+		} else if (v instanceof CastExpr) {
+			CastExpr ce = (CastExpr) v;
+			Type opType = ce.getOp().getType();
+			if (ce.getCastType() instanceof RefType
+					&& !((RefType) ce.getCastType()).getClassName().equals(
+							"java.lang.Object")
+					&& !(opType instanceof RefType)
+					&& !(opType instanceof NullType)) {
+				internHavocGlobal(gc.getBoogieType(ce.getType()));
+			} else {
+				internType(ce.getCastType());
+			}
+		} else if (v instanceof InstanceOfExpr) {
+			InstanceOfExpr ioe = (InstanceOfExpr) v;
+			if (ioe.getCheckType() instanceof RefType) {
+				internType(ioe.getCheckType());
+			} else {
+				internHavocGlobal(gc.getBoogieType(ioe.getType()));
+			}
+		} else if (v instanceof CaughtExceptionRef) {
+			internType(v.getType());
+		}
+	}
+
+	private void internType(Type t) {
+		if (t instanceof RefType) {
+			internClass(((RefType) t).getSootClass());
+		} else if (t instanceof ArrayType) {
+			GlobalsCache.v().lookupArrayType((ArrayType) t);
+		}
+	}
+
+	private void internClass(SootClass c) {
+		GlobalsCache.v().lookupClassVariable(c);
+		if (this.cacheEntry != null) {
+			this.cacheEntry.requireClass(c);
+		}
+	}
+
+	private void internProcedure(SootMethod m) {
+		GlobalsCache.v().lookupProcedure(m);
+		if (this.cacheEntry != null) {
+			this.cacheEntry.requireProcedure(m);
 		}
+	}
+
+	private void internHavocGlobal(BoogieType t) {
+		IdentifierExpression ide = GlobalsCache.v().getHavocGlobal(t);
+		if (this.cacheEntry != null) {
+			this.cacheEntry.requireHavocGlobal(t, ide);
+		}
+	}
+
+	/**
+	 * Transforms a list of statements
+	 * 
+	 * @param body
+	 *            Body
+	 * @param procInfo
+	 * @param deadline
+	 *            System.nanoTime after which the translation exceeds
+	 *            Options.getBudgetMillis
+	 * @return the statements of the procedure implementation
+	 */
+	private Statement[] transformStmtList(Body body,
+			SootProcedureInfo procInfo, long deadline) {
 		
+		ArrayList<Statement> boogieStatements = new ArrayList<Statement>(
+				body.getUnits().size() * 4 + 8);
 		
-		LinkedList<Statement> boogieStatements = new LinkedList<Statement>();
+		Attribute[] attributes = TranslationHelpers.javaLocation2Attribute(body.getTags());
+		
+		if (procInfo.getThisReference()!=null) {
+			//for non-static procedures we have to assume that .this is non-null
+			boogieStatements.add(
+					GlobalsCache.v().getPf().mkAssumeStatement(attributes, 
+								GlobalsCache.v().getPf().mkBinaryExpression( 
+										GlobalsCache.v().getPf().getBoolType(), 
+										BinaryOperator.COMPNEQ, 
+											procInfo.getThisReference(), 
+											SootPrelude.v().getNullConstant()))						
+						);		
+		}
 		
 		//now add all assumptions about the types of the in and out parameters
 		boogieStatements.addAll(procInfo.typeAssumptions);
@@ -130,71 +699,61 @@ public class SootBodyTransformer extends BodyTransformer {
 		//in the bytecode, e.g. for finally-blocks, which is used
 		//later to generate attributes that suppress false alarms
 		//during infeasible code detection.
-		TranslationHelpers.clonedFinallyBlocks.clear();
-		TranslationHelpers.clonedFinallyBlocks.addAll(detectDuplicatedFinallyBlocks(tug.iterator(), procInfo));
-//		TranslationHelpers.clonedFinallyBlocks = detectDuplicatedFinallyBlocks_new(tug.iterator(), procInfo);
+		GlobalsCache.v().getClonedFinallyBlocks().addAll(detectDuplicatedFinallyBlocks(tug.iterator(), procInfo));
 		//reset the iterator
 		Iterator<Unit> stmtIt = tug.iterator();
 		
+		int budgetMillis = Options.v().getBudgetMillis();
+		int budgetStmts = Options.v().getBudgetStmts();
+		// one switch translates all statements of the procedure
+		SootStmtSwitch bss = new SootStmtSwitch(procInfo);
+		Profiler.Phase phase = Profiler.v().start("soot/translate/statements");
 		while (stmtIt.hasNext()) {
+			if (budgetMillis > 0 && System.nanoTime() > deadline) {
+				phase.stop();
+				throw new BudgetExceededException("more than " + budgetMillis
+						+ " ms");
+			}
+			if (budgetStmts > 0 && boogieStatements.size() > budgetStmts) {
+				phase.stop();
+				throw new BudgetExceededException("more than " + budgetStmts
+						+ " statements");
+			}
 			Stmt s = (Stmt) stmtIt.next();
 			
-			SootStmtSwitch bss = new SootStmtSwitch(procInfo);
+			bss.reset();
 			s.apply(bss);
-			LinkedList<Statement> stmts = bss.popAll();
-			boogieStatements.addAll(stmts);
+			bss.popAllTo(boogieStatements);
 			
 		}
+		phase.stop();
 
-		Attribute[] attributes = TranslationHelpers.javaLocation2Attribute(body.getTags());
-		
-		if (procInfo.getThisReference()!=null) {
-			//for non-static procedures we have to assume that .this is non-null
-			boogieStatements.addFirst(
-					GlobalsCache.v().getPf().mkAssumeStatement(attributes, 
-								GlobalsCache.v().getPf().mkBinaryExpression( 
-										GlobalsCache.v().getPf().getBoolType(), 
-										BinaryOperator.COMPNEQ, 
-											procInfo.getThisReference(), 
-											SootPrelude.v().getNullConstant()))						
-						);		
-		}
-		
 		//to be compatible with Microsoft Boogie, we have
 		//to create a unified exit and only a single return
 		//per procedure.
-		boogieStatements = createUnifiedExit(boogieStatements);
+		phase = Profiler.v().start("soot/translate/unified exit");
+		createUnifiedExit(boogieStatements);
+		phase.stop();
 		
-		//now create the procedure implementation that combines
-		//the signature procInfo and the body.
-		Implementation proc = GlobalsCache
-				.v()
-				.getPf()
-				.mkProcedure(
-						procInfo.getProcedureDeclaration(),
-						boogieStatements.toArray(new Statement[boogieStatements
-								.size()]), procInfo.getLocalVariables());		
-		
-		procInfo.setProcedureImplementation(proc);
-		//GlobalsCache.v().modifiedInMonitor.clear();
+		return boogieStatements.toArray(new Statement[boogieStatements.size()]);
 	}
 	
-	private LinkedList<Statement> createUnifiedExit(LinkedList<Statement> stmts) {
-		LinkedList<Statement> ret = new LinkedList<Statement>();
+	/**
+	 * Replaces the returns in stmts by gotos to a single return at the end.
+	 * 
+	 * @param stmts
+	 */
+	private void createUnifiedExit(ArrayList<Statement> stmts) {
 		String label = GlobalsCache.v().getBlockLabel();	
 		ProgramFactory pf = GlobalsCache.v().getPf();
 		
-		for (Statement s : stmts) {
-			if (s instanceof ReturnStatement) {				
-				ret.add(pf.mkGotoStatement(label));
-			} else {
-				ret.add(s);
+		for (int i = 0; i < stmts.size(); i++) {
+			if (stmts.get(i) instanceof ReturnStatement) {				
+				stmts.set(i, pf.mkGotoStatement(label));
 			}
-			
 		}		
-		ret.add(pf.mkLabel(label));
-		ret.add(pf.mkReturnStatement());
-		return ret;
+		stmts.add(pf.mkLabel(label));
+		stmts.add(pf.mkReturnStatement());
 	}
 	
 	/**
@@ -210,9 +769,8 @@ public class SootBodyTransformer extends BodyTransformer {
 	 * @param stmtIt
 	 */
 	private HashSet<Stmt> detectDuplicatedFinallyBlocks(Iterator<Unit> stmtIt, SootProcedureInfo procInfo) {
-		SootMethod sootMethod = procInfo.getSootMethod();
 		int first_trap_line = 1000000;
-		for (Trap trap : sootMethod.getActiveBody().getTraps()) {
+		for (Trap trap : procInfo.getBody().getTraps()) {
 			for (Tag tag : trap.getHandlerUnit().getTags()) {
 				if (tag instanceof LineNumberTag) {
 					LineNumberTag t = (LineNumberTag)tag;
@@ -234,14 +792,18 @@ public class SootBodyTransformer extends BodyTransformer {
 		//if all duplicates of one statement are infeasible.
 		HashSet<Stmt> duplicates = new HashSet<Stmt>();
 		
-		HashMap<Integer, LinkedList<Stmt>> subprogs = new HashMap<Integer, LinkedList<Stmt>>();
+		HashMap<Integer, Subprog> subprogs = new HashMap<Integer, Subprog>();
+		HashMap<Class<?>, Integer> kinds = new HashMap<Class<?>, Integer>();
 		
-		LinkedList<Stmt> subprog = null;
+		Subprog subprog = null;
 		int old_line = -100; // pick a negative constant that is not a line number
 				
 		//GlobalsCache.v().modifiedInMonitor = new HashMap<EnterMonitorStmt, HashSet<Value>>();
 		
-		HashSet<IfStmt> ifstmts = new HashSet<IfStmt>();
+		// the if statements so far, grouped by their condition after
+		// normalizeNegations. Conditions in the same group are equivalent
+		// and have the same equivHashCode.
+		HashMap<Integer, LinkedList<LinkedList<IfStmt>>> ifstmts = new HashMap<Integer, LinkedList<LinkedList<IfStmt>>>();
 		
 		while (stmtIt.hasNext()) {
 			Stmt s = (Stmt) stmtIt.next();
@@ -258,23 +820,36 @@ public class SootBodyTransformer extends BodyTransformer {
 			
 			if (s instanceof IfStmt) {
 				IfStmt is = (IfStmt)s;
-				for (IfStmt is2 : ifstmts) {
+				Value nonneg1 = normalizeNegations(is.getCondition());
+				LinkedList<LinkedList<IfStmt>> bucket = ifstmts.get(nonneg1.equivHashCode());
+				if (bucket == null) {
+					bucket = new LinkedList<LinkedList<IfStmt>>();
+					ifstmts.put(nonneg1.equivHashCode(), bucket);
+				}
+				LinkedList<IfStmt> group = null;
+				for (LinkedList<IfStmt> g : bucket) {
+					if (normalizeNegations(g.getFirst().getCondition()).equivTo(nonneg1)) {
+						group = g;
+						break;
+					}
+				}
+				if (group == null) {
+					group = new LinkedList<IfStmt>();
+					bucket.add(group);
+				}
+				// only the earlier if statements of the group have an
+				// equivalent condition after normalization. As before, we
+				// stop at the first one with exactly the same condition.
+				for (IfStmt is2 : group) {
+					//note that we do not add the first occurrence
+					//this is a somewhat arbitrary optimization attempt.
+					procInfo.duplicatedIfStatement.add(is2);
+					procInfo.duplicatedIfStatement.add(is);
 					if (is.getCondition().equivTo(is2.getCondition())) {
-						//note that we do not add the first occurrence
-						//this is a somewhat arbitrary optimization attempt.
-						procInfo.duplicatedIfStatement.add(is2);
-						procInfo.duplicatedIfStatement.add(is);
 						break;
-					} else {
-						Value nonneg1 = normalizeNegations(is.getCondition());
-						Value nonneg2 = normalizeNegations(is2.getCondition());						
-						if (nonneg1.equivTo(nonneg2)) {
-							procInfo.duplicatedIfStatement.add(is2);
-							procInfo.duplicatedIfStatement.add(is);
-						}
 					}
 				}
-				ifstmts.add(is);
+				group.add(is);
 			}
 			
 			
@@ -294,29 +869,29 @@ public class SootBodyTransformer extends BodyTransformer {
 			
 //			System.err.println(line+": "+s);
 			if (line==old_line && subprog!=null) {
-				subprog.add(s);
+				subprog.add(s, kindOf(s, kinds));
 			} else {
 				if (subprog!=null) {
 					if (!subprogs.containsKey(old_line)) {
 						subprogs.put(old_line, subprog);
 					} else {
-						if (compareSubprogs(subprog, subprogs.get(old_line))
-								&& old_line>=first_trap_line) {
+						if (old_line>=first_trap_line
+								&& compareSubprogs(subprog, subprogs.get(old_line))) {
 //							System.err.println("P1 " + old_line);
-							for (Stmt st : subprogs.get(old_line)) {
+							for (Stmt st : subprogs.get(old_line).stmts) {
 //								System.err.println("\t"+st);
 								duplicates.add(st);
 							}
 //							System.err.println("P2 " + old_line);
-							for (Stmt st : subprog) {
+							for (Stmt st : subprog.stmts) {
 //								System.err.println("\t"+st);
 								duplicates.add(st);
 							}							
 						}
 					}
 				}
-				subprog = new LinkedList<Stmt>();
-				subprog.add(s);
+				subprog = new Subprog();
+				subprog.add(s, kindOf(s, kinds));
 				old_line = line;
 			}
 
@@ -326,34 +901,90 @@ public class SootBodyTransformer extends BodyTransformer {
 	}
 	
 	
-	private boolean compareSubprogs(LinkedList<Stmt> p1, LinkedList<Stmt> p2) {		
-		LinkedList<Stmt> l1, l2;
+	/**
+	 * Consecutive statements with the same line number, and the kind of
+	 * each statement (see kindOf).
+	 */
+	private static class Subprog {
+		final ArrayList<Stmt> stmts = new ArrayList<Stmt>();
+		int[] kinds = new int[8];
+
+		void add(Stmt s, int kind) {
+			if (this.stmts.size() == this.kinds.length) {
+				this.kinds = Arrays.copyOf(this.kinds, 2 * this.kinds.length);
+			}
+			this.kinds[this.stmts.size()] = kind;
+			this.stmts.add(s);
+		}
+
+		int size() {
+			return this.stmts.size();
+		}
+	}
+
+	/**
+	 * Returns a number that is equal for two statements iff they are of the
+	 * same class. Throw, return, and goto statements might have been changed
+	 * in the copies of a finally block, so all of them have the same kind.
+	 */
+	private int kindOf(Stmt s, HashMap<Class<?>, Integer> kinds) {
+		if (isJumpStmt(s)) {
+			return 0;
+		}
+		Integer kind = kinds.get(s.getClass());
+		if (kind == null) {
+			kind = kinds.size() + 1;
+			kinds.put(s.getClass(), kind);
+		}
+		return kind;
+	}
+
+	/**
+	 * Checks if the shorter subprogram occurs in the longer one, comparing
+	 * the kinds of the statements (see kindOf). Slides a rolling hash of
+	 * the kinds over the longer one and only compares the kinds where the
+	 * hash matches.
+	 */
+	private boolean compareSubprogs(Subprog p1, Subprog p2) {		
+		Subprog l1, l2;
 		if (p1.size()<p2.size()) {
 			l2=p1; l1=p2;
 		} else {
 			l2=p2; l1=p1;
 		}
-		
-		for (int i=0; i<l1.size();i++) {
-			
-			if (l1.size()-i<l2.size()) {
-				//then they cannot be sublists anymore
-				return false;
-			}
-			boolean sublist = true;
-						
-			for (int j=0; j<l2.size();j++) {
-				if (!shallowCompareStatements(l1.get(i+j),l2.get(j))) {
-					sublist = false;
-					break;
-				}
+		int m = l2.size();
+		if (m > l1.size() || l1.size() == 0) {
+			return false;
+		}
+		final int base = 31;
+		int pow = 1; // base^(m-1)
+		int h2 = 0;
+		int h1 = 0;
+		for (int j=0; j<m; j++) {
+			if (j > 0) {
+				pow *= base;
 			}
-			if (sublist) {
+			h2 = h2 * base + l2.kinds[j];
+			h1 = h1 * base + l1.kinds[j];
+		}
+		for (int i=0; ; i++) {
+			if (h1 == h2 && sameKinds(l1.kinds, i, l2.kinds, m)) {
 				return true;
 			}
+			if (i + m >= l1.size()) {
+				return false;
+			}
+			h1 = (h1 - l1.kinds[i] * pow) * base + l1.kinds[i + m];
 		}
-		
-		return false;
+	}
+
+	private boolean sameKinds(int[] k1, int offset, int[] k2, int length) {
+		for (int j=0; j<length; j++) {
+			if (k1[offset + j] != k2[j]) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	private Value normalizeNegations(Value v) {
@@ -368,18 +999,6 @@ public class SootBodyTransformer extends BodyTransformer {
 		return v;
 	}
 	
-	private boolean shallowCompareStatements(Stmt s1, Stmt s2) {
-		if (s1.getClass() == s2.getClass()) {
-			return true;
-		}
-		//also consider the case that throw, return, and goto might have been changed in the
-		//copies. so do not compare them
-		if (isJumpStmt(s1) && isJumpStmt(s2)) {
-			return true;
-		}
-		return false;
-	}
-	
 	private boolean isJumpStmt(Stmt st) {
 		return ( st instanceof ThrowStmt || st instanceof GotoStmt || st instanceof ReturnStmt);	
 	}
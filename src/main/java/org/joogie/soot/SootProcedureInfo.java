@@ -20,15 +20,19 @@
 package org.joogie.soot;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.joogie.GlobalsCache;
 import org.joogie.util.CustomNullnessAnalysis;
+import org.joogie.util.Profiler;
 import org.joogie.util.TranslationHelpers;
+import org.joogie.util.TrapIndex;
 
+import soot.Body;
 import soot.Local;
 import soot.PrimType;
 import soot.RefType;
@@ -43,6 +47,7 @@ import soot.tagkit.Tag;
 import soot.tagkit.VisibilityAnnotationTag;
 import soot.toolkits.exceptions.UnitThrowAnalysis;
 import soot.toolkits.graph.ExceptionalUnitGraph;
+import soot.toolkits.scalar.SimpleLiveLocals;
 import util.Log;
 import boogie.ProgramFactory;
 import boogie.ast.Attribute;
@@ -62,7 +67,9 @@ import boogie.type.BoogieType;
  */
 public class SootProcedureInfo {
 
-	private HashMap<Local, IdentifierExpression> localVariable = new HashMap<Local, IdentifierExpression>();
+	// linked collections keep the order of the generated declarations
+	// independent of hash codes, so the output is the same in every run.
+	private LinkedHashMap<Local, IdentifierExpression> localVariable = new LinkedHashMap<Local, IdentifierExpression>();
 	private LinkedList<IdentifierExpression> inParameters;
 	private LinkedList<IdentifierExpression> outParameters;
 	private LinkedList<Specification> specification;
@@ -71,8 +78,11 @@ public class SootProcedureInfo {
 
 	private IdentifierExpression containingClassVariable;
 
+	private Body body;
 	private ExceptionalUnitGraph exceptionalUnitGraph;
 	private CustomNullnessAnalysis nullnessAnalysis;
+	private TrapIndex trapIndex;
+	private SimpleLiveLocals liveLocals;
 
 	private IdentifierExpression thisVariable;
 	private final SootMethod sootMethod;
@@ -81,9 +91,9 @@ public class SootProcedureInfo {
 	private ProcedureDeclaration procedureDeclaration;
 	private Implementation boogieProcedure = null;
 
-	public HashSet<AssumeStatement> typeAssumptions = new HashSet<AssumeStatement>();
+	public LinkedHashSet<AssumeStatement> typeAssumptions = new LinkedHashSet<AssumeStatement>();
 	
-	public HashSet<StaticFieldRef> usedStaticFields = new HashSet<StaticFieldRef>(); 
+	public LinkedHashSet<StaticFieldRef> usedStaticFields = new LinkedHashSet<StaticFieldRef>(); 
 	
 	//this is used to suppress false positives originating from
 	//else if cases.
@@ -269,16 +279,14 @@ public class SootProcedureInfo {
 
 		// TODO: make the exceptional return flag a postcondition instead!
 
-		// now create the exceptional unit graph, which will be used later to
-		// check
-		// where throw statements can jump to
+		// The body is kept because soot may release it while we are still
+		// translating. The analyses of the body are only created by
+		// buildAnalyses when the body is translated, since most procedures
+		// are only looked up as callees.
 		if (this.sootMethod.hasActiveBody()) {
-			this.exceptionalUnitGraph = new ExceptionalUnitGraph(
-					this.sootMethod.getActiveBody(), UnitThrowAnalysis.v());
-			this.nullnessAnalysis = new CustomNullnessAnalysis(this.exceptionalUnitGraph);
+			this.body = this.sootMethod.getActiveBody();
 		} else {
-			this.exceptionalUnitGraph = null;
-			this.nullnessAnalysis = null;
+			this.body = null;
 		}
 	}
 	
@@ -297,7 +305,7 @@ public class SootProcedureInfo {
 	}
 
 	public IdentifierExpression[] getLocalVariables() {
-		HashSet<IdentifierExpression> alllocals = new HashSet<IdentifierExpression>(
+		LinkedHashSet<IdentifierExpression> alllocals = new LinkedHashSet<IdentifierExpression>(
 				this.localVariable.values());
 		alllocals.addAll(this.fakeLocals);
 		return alllocals.toArray(new IdentifierExpression[alllocals.size()]);
@@ -329,13 +337,73 @@ public class SootProcedureInfo {
 		return containingClassVariable;
 	}
 
+	/**
+	 * The body of the method or null if it does not have one.
+	 * 
+	 * @return
+	 */
+	public Body getBody() {
+		return this.body;
+	}
+
+	/**
+	 * Creates the exceptional unit graph, which is used to check where throw
+	 * statements can jump to, the nullness analysis, and the index of the
+	 * traps of the body. Does nothing if they already exist or if there is
+	 * no body.
+	 */
+	public void buildAnalyses() {
+		if (this.body != null && this.exceptionalUnitGraph == null) {
+			Profiler.Phase phase = Profiler.v().start("soot/analyses");
+			this.exceptionalUnitGraph = new ExceptionalUnitGraph(this.body,
+					UnitThrowAnalysis.v());
+			this.nullnessAnalysis = new CustomNullnessAnalysis(
+					this.exceptionalUnitGraph);
+			this.trapIndex = new TrapIndex(this.body);
+			phase.stop();
+		}
+	}
+
+	/**
+	 * Drops the analyses of the body once it is translated.
+	 */
+	public void releaseAnalyses() {
+		this.exceptionalUnitGraph = null;
+		this.nullnessAnalysis = null;
+		this.trapIndex = null;
+		this.liveLocals = null;
+	}
+
+	public TrapIndex getTrapIndex() {
+		buildAnalyses();
+		return trapIndex;
+	}
+
 	public ExceptionalUnitGraph getExceptionalUnitGraph() {
+		buildAnalyses();
 		return exceptionalUnitGraph;
 	}
 
 	public CustomNullnessAnalysis getNullnessAnalysis() {
+		buildAnalyses();
 		return this.nullnessAnalysis;
 	}
+
+	/**
+	 * The liveness of the locals. Only needed for synchronized blocks (see
+	 * TranslationHelpers.havocAtMonitor), so it is not built with the other
+	 * analyses.
+	 * 
+	 * @return
+	 */
+	public SimpleLiveLocals getLiveLocals() {
+		if (this.liveLocals == null) {
+			Profiler.Phase phase = Profiler.v().start("soot/liveness");
+			this.liveLocals = new SimpleLiveLocals(getExceptionalUnitGraph());
+			phase.stop();
+		}
+		return this.liveLocals;
+	}
 	
 	public boolean isStatic() {
 		return this.sootMethod.isStatic();
@@ -348,25 +416,46 @@ public class SootProcedureInfo {
 		if (!this.localVariable.containsKey(local)) {
 			BoogieType type = GlobalsCache.v().getBoogieType(local.getType());
 			String cleanname = TranslationHelpers.getQualifiedName(local);
-			IdentifierExpression id = GlobalsCache
-					.v()
-					.getPf()
-					.mkIdentifierExpression(type, cleanname, false, false,
-							false);
+			ProgramFactory pf = GlobalsCache.v().getPf();
+			IdentifierExpression id;
+			// the ProgramFactory also records local declarations.
+			synchronized (pf) {
+				id = pf.mkIdentifierExpression(type, cleanname, false, false,
+						false);
+			}
 			this.localVariable.put(local, id);
 		}
 		return this.localVariable.get(local);
 	}
 
 	private int fakeLocalCount = 0;
-	private HashSet<IdentifierExpression> fakeLocals = new HashSet<IdentifierExpression>();
+	private LinkedHashSet<IdentifierExpression> fakeLocals = new LinkedHashSet<IdentifierExpression>();
+
+	/**
+	 * Number of Boogie locals created for Jimple locals.
+	 * 
+	 * @return
+	 */
+	public int getLocalCount() {
+		return this.localVariable.size();
+	}
+
+	/**
+	 * Number of Boogie locals created by the translation itself.
+	 * 
+	 * @return
+	 */
+	public int getFakeLocalCount() {
+		return this.fakeLocalCount;
+	}
 
 	public IdentifierExpression createLocalVariable(BoogieType type) {
-		IdentifierExpression id = GlobalsCache
-				.v()
-				.getPf()
-				.mkIdentifierExpression(type,
-						"$fakelocal_" + (fakeLocalCount++), false, false, false);
+		ProgramFactory pf = GlobalsCache.v().getPf();
+		IdentifierExpression id;
+		synchronized (pf) {
+			id = pf.mkIdentifierExpression(type,
+					"$fakelocal_" + (fakeLocalCount++), false, false, false);
+		}
 		this.fakeLocals.add(id);
 		return id;
 	}
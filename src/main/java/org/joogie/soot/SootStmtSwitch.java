@@ -19,6 +19,8 @@
 
 package org.joogie.soot;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -33,7 +35,6 @@ import soot.ArrayType;
 import soot.Local;
 import soot.NullType;
 import soot.RefType;
-import soot.Scene;
 import soot.SootClass;
 import soot.Trap;
 import soot.Type;
@@ -62,6 +63,7 @@ import boogie.ProgramFactory;
 import boogie.ast.Attribute;
 import boogie.ast.expression.Expression;
 import boogie.ast.expression.IdentifierExpression;
+import boogie.ast.statement.GotoStatement;
 import boogie.ast.statement.Statement;
 import boogie.enums.BinaryOperator;
 
@@ -100,6 +102,28 @@ public class SootStmtSwitch implements StmtSwitch {
 		return ret;
 	}
 
+	/**
+	 * Moves the statements created so far to the end of target.
+	 * 
+	 * @param target
+	 */
+	public void popAllTo(List<Statement> target) {
+		target.addAll(this.boogieStatements);
+		this.boogieStatements.clear();
+	}
+
+	/**
+	 * Prepares the switch for the next statement, so one switch, with its
+	 * value switch and error model, can translate all statements of a
+	 * procedure. The statements created so far are dropped.
+	 */
+	public void reset() {
+		this.boogieStatements.clear();
+		this.currentStatement = null;
+		this.inMonitor = false;
+		this.valueswitch.reset();
+	}
+
 	public SootValueSwitch getValueSwitch() {
 		return this.valueswitch;
 	}
@@ -118,7 +142,7 @@ public class SootStmtSwitch implements StmtSwitch {
 		return this.inMonitor || this.procInfo.getSootMethod().isSynchronized();
 	}
 
-	private LinkedList<Statement> boogieStatements = new LinkedList<Statement>();
+	private final ArrayList<Statement> boogieStatements = new ArrayList<Statement>();
 
 	/**
 	 * this should only be used by the SootValueSwitch if extra guards have to
@@ -217,6 +241,14 @@ public class SootStmtSwitch implements StmtSwitch {
 		this.valueswitch.getExpression();
 
 		this.inMonitor = true;
+		if (org.joogie.Options.v().useTargetedMonitorHavoc()) {
+			Statement havoc = TranslationHelpers.havocAtMonitor(
+					this.getProcInfo(), this.valueswitch, arg0);
+			if (havoc != null) {
+				this.boogieStatements.add(havoc);
+			}
+			return;
+		}
 		// TODO: this is a very aggressive hack
 		// to avoid false positives that we encountered in Tomcat.
 		// For example: if (A) synchronized() { if (A) ...
@@ -280,7 +312,7 @@ public class SootStmtSwitch implements StmtSwitch {
 
 		injectLabelStatements(arg0);
 		boolean forceCloneAttibute = false;
-		if (TranslationHelpers.clonedFinallyBlocks.contains(arg0)) {
+		if (GlobalsCache.v().getClonedFinallyBlocks().contains(arg0)) {
 			forceCloneAttibute = true;
 		} else if (this.procInfo.duplicatedIfStatement.contains(arg0)) {
 			forceCloneAttibute = true;
@@ -367,28 +399,17 @@ public class SootStmtSwitch implements StmtSwitch {
 	@Override
 	public void caseLookupSwitchStmt(LookupSwitchStmt arg0) {
 		injectLabelStatements(arg0);
-		LinkedList<Expression> cases = new LinkedList<Expression>();
-		LinkedList<Statement[]> targets = new LinkedList<Statement[]>();
 
 		arg0.getKey().apply(this.valueswitch);
 		Expression key = this.valueswitch.getExpression();
-		for (int i = 0; i < arg0.getTargetCount(); i++) {
-			Expression cond = this.pf.mkBinaryExpression(
-
-			this.pf.getBoolType(), BinaryOperator.COMPEQ, key, this.pf
-					.mkIntLiteral(Integer.toString(arg0.getLookupValue(i))));
-			cases.add(cond);
-			Statement[] gototarget = { this.pf.mkGotoStatement(GlobalsCache.v()
-					.getUnitLabel((Stmt) arg0.getTarget(i))) };
-			targets.add(gototarget);
+		int[] values = new int[arg0.getTargetCount()];
+		String[] labels = new String[values.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = arg0.getLookupValue(i);
+			labels[i] = GlobalsCache.v().getUnitLabel((Stmt) arg0.getTarget(i));
 		}
-		{
-			Statement[] gototarget = { this.pf.mkGotoStatement(
-
-			GlobalsCache.v().getUnitLabel((Stmt) arg0.getDefaultTarget())) };
-			targets.add(gototarget);
-		}
-		translateSwitch(cases, targets);
+		translateSwitch(key, values, labels, GlobalsCache.v().getUnitLabel(
+				(Stmt) arg0.getDefaultTarget()));
 	}
 
 	/**
@@ -398,25 +419,146 @@ public class SootStmtSwitch implements StmtSwitch {
 	 * @param cases
 	 * @param targets
 	 */
-	private void translateSwitch(LinkedList<Expression> cases,
-			LinkedList<Statement[]> targets) {
-		Statement[] elseblock = targets.getLast();
-		Statement ifstatement = null;
-		int max = cases.size() - 1;
-		for (int i = max; i >= 0; i--) {
-			Statement[] thenblock = targets.get(i);
-			ifstatement = this.pf.mkIfStatement(cases.get(i), thenblock,
-					elseblock);
-			elseblock = new Statement[1];
-			elseblock[0] = ifstatement;
+	private void translateSwitch(Expression key, int[] values,
+			String[] labels, String defaultLabel) {
+		if (values.length == 0) {
+			Log.info("Warning: Found empty switch statement (or only default case).");
+			this.boogieStatements.add(this.pf.mkGotoStatement(defaultLabel));
+			return;
+		}
+		String encoding = "chain";
+		if (values.length > org.joogie.Options.v().getSwitchThreshold()) {
+			encoding = org.joogie.Options.v().getSwitchEncoding();
 		}
-		if (ifstatement != null) {
-			this.boogieStatements.add(ifstatement);
+		if ("chain".equals(encoding)) {
+			translateSwitchAsChain(key, values, labels, defaultLabel);
+		} else if ("tree".equals(encoding)) {
+			sortCases(values, labels);
+			this.boogieStatements.addAll(Arrays.asList(translateSwitchAsTree(
+					key, values, labels, defaultLabel, 0, values.length - 1)));
+		} else if ("goto".equals(encoding)) {
+			translateSwitchAsGoto(key, values, labels, defaultLabel);
 		} else {
-			Log.info("Warning: Found empty switch statement (or only default case).");
-			for (int i = 0; i < elseblock.length; i++) {
-				this.boogieStatements.add(elseblock[i]);
+			throw new RuntimeException("Unknown switch encoding " + encoding);
+		}
+	}
+
+	/**
+	 * Translates a switch to nested ifs, one per case. The nesting is as
+	 * deep as the number of cases.
+	 */
+	private void translateSwitchAsChain(Expression key, int[] values,
+			String[] labels, String defaultLabel) {
+		Statement[] elseblock = { this.pf.mkGotoStatement(defaultLabel) };
+		for (int i = values.length - 1; i >= 0; i--) {
+			Statement[] thenblock = { this.pf.mkGotoStatement(labels[i]) };
+			elseblock = new Statement[] { this.pf.mkIfStatement(
+					mkCompare(BinaryOperator.COMPEQ, key, values[i]),
+					thenblock, elseblock) };
+		}
+		this.boogieStatements.add(elseblock[0]);
+	}
+
+	/**
+	 * Translates the cases lo to hi of a switch to a balanced decision tree
+	 * on the key. The values must be sorted.
+	 */
+	private Statement[] translateSwitchAsTree(Expression key, int[] values,
+			String[] labels, String defaultLabel, int lo, int hi) {
+		if (lo > hi) {
+			return new Statement[] { this.pf.mkGotoStatement(defaultLabel) };
+		}
+		int mid = (lo + hi) >>> 1;
+		Statement[] thenblock = { this.pf.mkGotoStatement(labels[mid]) };
+		Statement[] elseblock;
+		if (lo == hi) {
+			elseblock = new Statement[] { this.pf.mkGotoStatement(defaultLabel) };
+		} else {
+			elseblock = new Statement[] { this.pf.mkIfStatement(
+					mkCompare(BinaryOperator.COMPLT, key, values[mid]),
+					translateSwitchAsTree(key, values, labels, defaultLabel,
+							lo, mid - 1),
+					translateSwitchAsTree(key, values, labels, defaultLabel,
+							mid + 1, hi)) };
+		}
+		return new Statement[] { this.pf.mkIfStatement(
+				mkCompare(BinaryOperator.COMPEQ, key, values[mid]), thenblock,
+				elseblock) };
+	}
+
+	/**
+	 * Translates a switch to a goto to one block per case, which assumes
+	 * that the key has the value of the case and jumps to its target.
+	 */
+	private void translateSwitchAsGoto(Expression key, int[] values,
+			String[] labels, String defaultLabel) {
+		String[] blocks = new String[values.length + 1];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = GlobalsCache.v().getBlockLabel();
+		}
+		// the factory only creates gotos with a single label
+		this.boogieStatements.add(new GotoStatement(this.pf.mkGotoStatement(
+				blocks[0]).getLocation(), blocks));
+		Attribute[] attributes = {};
+		for (int i = 0; i < values.length; i++) {
+			this.boogieStatements.add(this.pf.mkLabel(blocks[i]));
+			this.boogieStatements.add(this.pf.mkAssumeStatement(attributes,
+					mkCompare(BinaryOperator.COMPEQ, key, values[i])));
+			this.boogieStatements.add(this.pf.mkGotoStatement(labels[i]));
+		}
+		sortCases(values, labels);
+		Expression isDefault;
+		if (values[values.length - 1] - values[0] == values.length - 1) {
+			// no gaps, e.g., a table switch
+			isDefault = this.pf.mkBinaryExpression(this.pf.getBoolType(),
+					BinaryOperator.LOGICOR,
+					mkCompare(BinaryOperator.COMPLT, key, values[0]),
+					mkCompare(BinaryOperator.COMPGT, key,
+							values[values.length - 1]));
+		} else {
+			isDefault = mkDefaultGuard(key, values, 0, values.length - 1);
+		}
+		this.boogieStatements.add(this.pf.mkLabel(blocks[values.length]));
+		this.boogieStatements.add(this.pf.mkAssumeStatement(attributes,
+				isDefault));
+		this.boogieStatements.add(this.pf.mkGotoStatement(defaultLabel));
+	}
+
+	/**
+	 * Returns the conjunction of key != value for the values lo to hi as a
+	 * balanced tree, so it is not as deep as the number of cases.
+	 */
+	private Expression mkDefaultGuard(Expression key, int[] values, int lo,
+			int hi) {
+		if (lo == hi) {
+			return mkCompare(BinaryOperator.COMPNEQ, key, values[lo]);
+		}
+		int mid = (lo + hi) >>> 1;
+		return this.pf.mkBinaryExpression(this.pf.getBoolType(),
+				BinaryOperator.LOGICAND, mkDefaultGuard(key, values, lo, mid),
+				mkDefaultGuard(key, values, mid + 1, hi));
+	}
+
+	private Expression mkCompare(BinaryOperator op, Expression key, int value) {
+		return this.pf.mkBinaryExpression(this.pf.getBoolType(), op, key,
+				this.pf.mkIntLiteral(Integer.toString(value)));
+	}
+
+	/**
+	 * Sorts the cases by their values. The values of a lookupswitch are
+	 * sorted in the bytecode, so this rarely has to move anything.
+	 */
+	private static void sortCases(int[] values, String[] labels) {
+		for (int i = 1; i < values.length; i++) {
+			int value = values[i];
+			String label = labels[i];
+			int j = i - 1;
+			for (; j >= 0 && values[j] > value; j--) {
+				values[j + 1] = values[j];
+				labels[j + 1] = labels[j];
 			}
+			values[j + 1] = value;
+			labels[j + 1] = label;
 		}
 	}
 
@@ -485,30 +627,17 @@ public class SootStmtSwitch implements StmtSwitch {
 	@Override
 	public void caseTableSwitchStmt(TableSwitchStmt arg0) {
 		injectLabelStatements(arg0);
-		LinkedList<Expression> cases = new LinkedList<Expression>();
-		LinkedList<Statement[]> targets = new LinkedList<Statement[]>();
 
 		arg0.getKey().apply(this.valueswitch);
 		Expression key = this.valueswitch.getExpression();
-		int counter = 0;
-		for (int i = arg0.getLowIndex(); i <= arg0.getHighIndex(); i++) {
-			Expression cond = this.pf.mkBinaryExpression(this.pf.getBoolType(),
-					BinaryOperator.COMPEQ, key,
-					this.pf.mkIntLiteral(Integer.toString(i)));
-			cases.add(cond);
-			Statement[] gototarget = { this.pf.mkGotoStatement(
-
-			GlobalsCache.v().getUnitLabel((Stmt) arg0.getTarget(counter))) };
-			targets.add(gototarget);
-			counter++;
-		}
-		{
-			Statement[] gototarget = { this.pf.mkGotoStatement(
-
-			GlobalsCache.v().getUnitLabel((Stmt) arg0.getDefaultTarget())) };
-			targets.add(gototarget);
+		int[] values = new int[arg0.getHighIndex() - arg0.getLowIndex() + 1];
+		String[] labels = new String[values.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = arg0.getLowIndex() + i;
+			labels[i] = GlobalsCache.v().getUnitLabel((Stmt) arg0.getTarget(i));
 		}
-		translateSwitch(cases, targets);
+		translateSwitch(key, values, labels, GlobalsCache.v().getUnitLabel(
+				(Stmt) arg0.getDefaultTarget()));
 	}
 
 	private SootClass findExceptionType(ThrowStmt s) {
@@ -522,7 +651,7 @@ public class SootStmtSwitch implements StmtSwitch {
 			}
 		}
 		System.err.println("Unexpected value in throw stmt " + s.getOp());
-		return Scene.v().loadClass("java.lang.Throwable", SootClass.SIGNATURES);
+		return GlobalsCache.v().lookupSootClass("java.lang.Throwable");
 	}
 
 	/*
@@ -549,7 +678,7 @@ public class SootStmtSwitch implements StmtSwitch {
 		List<Trap> traps = new LinkedList<Trap>();
 		List<Trap> finally_traps = new LinkedList<Trap>(); // TODO: do we have
 		TranslationHelpers.getReachableTraps(arg0,
-				this.procInfo.getSootMethod(), traps, finally_traps);
+				this.procInfo, traps, finally_traps);
 		// TODO, maybe we need to consider the case that
 		// we don't know the exact type of arg0.getOp at this point?
 		for (Trap trap : traps) {
@@ -117,6 +117,14 @@ public class SootValueSwitch implements JimpleValueSwitch {
 		return this.expressionStack.pop();
 	}
 
+	/**
+	 * Drops the state of the last statement (see SootStmtSwitch.reset).
+	 */
+	public void reset() {
+		this.expressionStack.clear();
+		this.isLeftHandSide = false;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -955,7 +963,7 @@ public class SootValueSwitch implements JimpleValueSwitch {
 			// but it is not obvious when it throws an exception.
 			Local thislocal = null;
 			try {
-				thislocal =  pinfo.getSootMethod().getActiveBody().getThisLocal();
+				thislocal =  pinfo.getBody().getThisLocal();
 			} catch (Exception e) {
 				thislocal = null;
 			}
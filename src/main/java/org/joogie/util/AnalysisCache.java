@@ -0,0 +1,105 @@
+/**
+ *
+ */
+package org.joogie.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.joogie.Options;
+
+/**
+ * Keeps the results of the whole-program analyses that -threads needs
+ * (see MhpInfo) in a directory (see Options.getAnalysisCache), so that soot
+ * only builds the call graph and runs the side-effect and may-happen-in-
+ * parallel analyses if the program changed. A result is keyed by the
+ * arguments of soot and the content of the jars and directories in them.
+ */
+public class AnalysisCache {
+
+	/**
+	 * Arguments of soot that are followed by class path entries.
+	 */
+	private static final List<String> PATH_ARGS = Arrays.asList("-cp",
+			"-soot-class-path", "-process-dir", "-process-path",
+			"-android-jars");
+
+	private AnalysisCache() {
+	}
+
+	/**
+	 * Returns the file that holds the results for a run of soot with args,
+	 * which may not exist yet.
+	 *
+	 * @param args
+	 * @return
+	 */
+	public static File getFile(List<String> args) {
+		Profiler.Phase phase = Profiler.v().start("soot/analysis cache key");
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			update(md, "java=" + System.getProperty("java.version") + "\n");
+			for (int i = 0; i < args.size(); i++) {
+				update(md, args.get(i) + "\n");
+				if (i > 0 && PATH_ARGS.contains(args.get(i - 1))) {
+					for (String path : args.get(i).split(File.pathSeparator)) {
+						hashFile(md, new File(path), path);
+					}
+				}
+			}
+			return new File(Options.v().getAnalysisCache(),
+					TranslationCache.toHex(md.digest()) + ".mhp");
+		} catch (NoSuchAlgorithmException | IOException e) {
+			throw new RuntimeException("Cannot hash the class path: "
+					+ e.toString());
+		} finally {
+			phase.stop();
+		}
+	}
+
+	/**
+	 * Hashes the name and content of f, or of all files below f if it is a
+	 * directory, in the order of their names.
+	 *
+	 * @param md
+	 * @param f
+	 * @param name
+	 * @throws IOException
+	 */
+	private static void hashFile(MessageDigest md, File f, String name)
+			throws IOException {
+		if (f.isDirectory()) {
+			String[] children = f.list();
+			if (children == null) {
+				return;
+			}
+			Arrays.sort(children);
+			for (String child : children) {
+				hashFile(md, new File(f, child), name + "/" + child);
+			}
+		} else if (f.isFile()) {
+			update(md, name + "\n");
+			try (InputStream in = new FileInputStream(f)) {
+				byte[] buffer = new byte[65536];
+				int len;
+				while ((len = in.read(buffer)) != -1) {
+					md.update(buffer, 0, len);
+				}
+			}
+		}
+	}
+
+	private static void update(MessageDigest md, String s) {
+		try {
+			md.update(s.getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,369 @@
+/**
+ *
+ */
+package org.joogie.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import util.BoogiePrinter;
+import boogie.ProgramFactory;
+import boogie.ast.ArrayLHS;
+import boogie.ast.Attribute;
+import boogie.ast.Body;
+import boogie.ast.LeftHandSide;
+import boogie.ast.Unit;
+import boogie.ast.VarList;
+import boogie.ast.VariableLHS;
+import boogie.ast.asttypes.ASTType;
+import boogie.ast.asttypes.ArrayAstType;
+import boogie.ast.asttypes.NamedAstType;
+import boogie.ast.asttypes.PrimitiveAstType;
+import boogie.ast.declaration.Declaration;
+import boogie.ast.declaration.Implementation;
+import boogie.ast.declaration.ProcedureDeclaration;
+import boogie.ast.declaration.ProcedureOrImplementationDeclaration;
+import boogie.ast.declaration.VariableDeclaration;
+import boogie.ast.expression.IdentifierExpression;
+import boogie.ast.specification.ModifiesSpecification;
+import boogie.ast.specification.Specification;
+import boogie.ast.statement.AssignmentStatement;
+import boogie.ast.statement.CallStatement;
+import boogie.ast.statement.HavocStatement;
+import boogie.ast.statement.IfStatement;
+import boogie.ast.statement.Statement;
+import boogie.ast.statement.WhileStatement;
+import boogie.type.ArrayType;
+import boogie.type.BoogieType;
+import boogie.type.ConstructedType;
+import boogie.type.PrimitiveType;
+
+/**
+ * Writes the Boogie program to a file while it is translated. Each
+ * implementation is printed as soon as it is done and then dropped, so it
+ * does not stay in the ProgramFactory until the end. The declarations that
+ * are only complete at the end (constants, globals, procedure declarations
+ * with their modifies clauses) are printed in a trailing section by close.
+ *
+ * The ProgramFactory computes the modifies clauses from the implementations
+ * it holds. For the printed implementations, we only keep the identifiers
+ * they assign and the procedures they call, and compute the modifies
+ * clauses from those in close.
+ *
+ * The program is written to a temporary file next to the output file,
+ * which is only renamed to the output file by close. If the translation
+ * fails, there is no output file instead of one without declarations.
+ */
+public class BoogieStreamWriter {
+
+	private final File file;
+	private final File tmp;
+	private final PrintWriter writer;
+	private final BoogiePrinter printer;
+
+	/**
+	 * Identifiers that are assigned or havoced by each printed
+	 * implementation, excluding its locals and parameters.
+	 */
+	private final Map<String, Set<String>> assignedIdentifiers = new HashMap<String, Set<String>>();
+
+	/**
+	 * Procedures that are called by each printed implementation.
+	 */
+	private final Map<String, Set<String>> calledProcedures = new HashMap<String, Set<String>>();
+
+	private final Map<BoogieType, ASTType> astTypes = new HashMap<BoogieType, ASTType>();
+
+	public BoogieStreamWriter(String fileName) throws IOException {
+		this.file = new File(fileName);
+		this.tmp = new File(fileName + ".tmp");
+		this.writer = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(this.tmp),
+						"UTF-8")));
+		this.printer = new BoogiePrinter(this.writer);
+	}
+
+	/**
+	 * Prints the implementation of procdecl. Behaves like
+	 * ProgramFactory.mkProcedure, but the implementation is not added to the
+	 * program.
+	 *
+	 * @param procdecl
+	 * @param stmts
+	 *            the body of the implementation
+	 * @param localvars
+	 *            the local variables used in the implementation
+	 * @return the implementation, which is not referenced by the writer.
+	 */
+	public Implementation writeImplementation(ProcedureDeclaration procdecl,
+			Statement[] stmts, IdentifierExpression[] localvars) {
+		VariableDeclaration[] decls = new VariableDeclaration[localvars.length];
+		for (int i = 0; i < localvars.length; i++) {
+			String[] names = { localvars[i].getIdentifier() };
+			VarList[] variables = { new VarList(procdecl.getLocation(),
+					names, astTypeFromBoogieType(localvars[i].getType())) };
+			decls[i] = new VariableDeclaration(procdecl.getLocation(),
+					new Attribute[0], variables);
+		}
+		Body body = new Body(procdecl.getLocation(), decls, stmts);
+		Implementation impl = new Implementation(procdecl.getLocation(),
+				procdecl.getAttributes(), procdecl.getIdentifier(),
+				procdecl.getTypeParams(), procdecl.getInParams(),
+				procdecl.getOutParams(), new Specification[0], body);
+
+		summarize(impl);
+		this.printer.printProcedureOrImplementation(impl);
+		return impl;
+	}
+
+	/**
+	 * Prints all declarations of pf, closes the file, and renames it to the
+	 * output file. The procedure
+	 * declarations get modifies clauses that also cover the implementations
+	 * that have already been printed.
+	 *
+	 * @param pf
+	 */
+	public void close(ProgramFactory pf) {
+		boolean done = false;
+		try {
+			Unit root = pf.getASTRoot();
+
+			Set<String> globals = new HashSet<String>();
+			for (Declaration d : root.getDeclarations()) {
+				if (d instanceof VariableDeclaration) {
+					for (VarList vl : ((VariableDeclaration) d).getVariables()) {
+						for (String id : vl.getIdentifiers()) {
+							globals.add(id);
+						}
+					}
+				} else if (d instanceof Implementation) {
+					summarize((Implementation) d);
+				}
+			}
+
+			// the modifies clauses of the program only cover the
+			// implementations that have not been printed yet.
+			Map<String, Set<String>> modifies = new LinkedHashMap<String, Set<String>>();
+			for (Declaration d : root.getDeclarations()) {
+				if (d instanceof ProcedureDeclaration) {
+					ProcedureDeclaration p = (ProcedureDeclaration) d;
+					Set<String> modified = new LinkedHashSet<String>();
+					for (Specification spec : p.getSpecification()) {
+						if (spec instanceof ModifiesSpecification) {
+							for (String id : ((ModifiesSpecification) spec)
+									.getIdentifiers()) {
+								modified.add(id);
+							}
+						}
+					}
+					if (this.assignedIdentifiers.containsKey(p.getIdentifier())) {
+						for (String id : this.assignedIdentifiers.get(p
+								.getIdentifier())) {
+							if (globals.contains(id)) {
+								modified.add(id);
+							}
+						}
+					}
+					modifies.put(p.getIdentifier(), modified);
+				}
+			}
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (Map.Entry<String, Set<String>> entry : modifies.entrySet()) {
+					Set<String> callees = this.calledProcedures.get(entry
+							.getKey());
+					if (callees == null) {
+						continue;
+					}
+					for (String callee : callees) {
+						if (modifies.containsKey(callee)
+								&& entry.getValue().addAll(modifies.get(callee))) {
+							changed = true;
+						}
+					}
+				}
+			}
+
+			LinkedList<Declaration> newdecls = new LinkedList<Declaration>();
+			for (Declaration d : root.getDeclarations()) {
+				if (d instanceof ProcedureDeclaration) {
+					ProcedureDeclaration p = (ProcedureDeclaration) d;
+					LinkedList<Specification> newspec = new LinkedList<Specification>();
+					for (Specification spec : p.getSpecification()) {
+						if (!(spec instanceof ModifiesSpecification)) {
+							newspec.add(spec);
+						}
+					}
+					Set<String> identifiers = modifies.get(p.getIdentifier());
+					newspec.add(new ModifiesSpecification(p.getLocation(),
+							false, identifiers.toArray(new String[identifiers
+									.size()])));
+					newdecls.add(new ProcedureDeclaration(p.getLocation(), p
+							.getAttributes(), p.getIdentifier(), p
+							.getTypeParams(), p.getInParams(), p
+							.getOutParams(), newspec
+							.toArray(new Specification[newspec.size()]), p
+							.getBody()));
+				} else {
+					newdecls.add(d);
+				}
+			}
+			this.printer.printBoogieProgram(new Unit(root.getLocation(),
+					newdecls.toArray(new Declaration[newdecls.size()])));
+			done = true;
+		} finally {
+			this.writer.close();
+			if (!done) {
+				deleteTmp();
+			}
+		}
+		// PrintWriter does not throw on write errors.
+		if (this.writer.checkError()) {
+			deleteTmp();
+			throw new RuntimeException("Cannot write " + this.tmp);
+		}
+		if (!(this.tmp.renameTo(this.file) || (this.file.delete() && this.tmp
+				.renameTo(this.file)))) {
+			deleteTmp();
+			throw new RuntimeException("Cannot rename " + this.tmp + " to "
+					+ this.file);
+		}
+	}
+
+	/**
+	 * Closes and deletes the temporary file without writing the output file,
+	 * e.g., if the translation failed.
+	 */
+	public void abort() {
+		this.writer.close();
+		deleteTmp();
+	}
+
+	private void deleteTmp() {
+		if (this.tmp.exists() && !this.tmp.delete()) {
+			Log.error("Cannot delete " + this.tmp);
+		}
+	}
+
+	private void summarize(ProcedureOrImplementationDeclaration p) {
+		Set<String> locals = new HashSet<String>();
+		for (VarList vl : p.getInParams()) {
+			for (String id : vl.getIdentifiers()) {
+				locals.add(id);
+			}
+		}
+		for (VarList vl : p.getOutParams()) {
+			for (String id : vl.getIdentifiers()) {
+				locals.add(id);
+			}
+		}
+		for (VariableDeclaration decl : p.getBody().getLocalVars()) {
+			for (VarList vl : decl.getVariables()) {
+				for (String id : vl.getIdentifiers()) {
+					locals.add(id);
+				}
+			}
+		}
+		if (!this.assignedIdentifiers.containsKey(p.getIdentifier())) {
+			this.assignedIdentifiers.put(p.getIdentifier(),
+					new HashSet<String>());
+			this.calledProcedures.put(p.getIdentifier(),
+					new HashSet<String>());
+		}
+		summarize(p.getBody().getBlock(), locals,
+				this.assignedIdentifiers.get(p.getIdentifier()),
+				this.calledProcedures.get(p.getIdentifier()));
+	}
+
+	private void summarize(Statement[] statements, Set<String> locals,
+			Set<String> assigned, Set<String> called) {
+		for (Statement s : statements) {
+			if (s instanceof AssignmentStatement) {
+				for (LeftHandSide lhs : ((AssignmentStatement) s).getLhs()) {
+					while (lhs instanceof ArrayLHS) {
+						lhs = ((ArrayLHS) lhs).getArray();
+					}
+					if (lhs instanceof VariableLHS
+							&& !locals.contains(((VariableLHS) lhs)
+									.getIdentifier())) {
+						assigned.add(((VariableLHS) lhs).getIdentifier());
+					}
+				}
+			} else if (s instanceof HavocStatement) {
+				for (String id : ((HavocStatement) s).getIdentifiers()) {
+					if (!locals.contains(id)) {
+						assigned.add(id);
+					}
+				}
+			} else if (s instanceof CallStatement) {
+				CallStatement call = (CallStatement) s;
+				called.add(call.getMethodName());
+				for (String id : call.getLhs()) {
+					if (!locals.contains(id)) {
+						assigned.add(id);
+					}
+				}
+			} else if (s instanceof IfStatement) {
+				summarize(((IfStatement) s).getThenPart(), locals, assigned,
+						called);
+				summarize(((IfStatement) s).getElsePart(), locals, assigned,
+						called);
+			} else if (s instanceof WhileStatement) {
+				summarize(((WhileStatement) s).getBody(), locals, assigned,
+						called);
+			}
+		}
+	}
+
+	/**
+	 * Same as the private ProgramFactory.astTypeFromBoogieType for the types
+	 * of local variables.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private ASTType astTypeFromBoogieType(BoogieType type) {
+		ASTType astType = this.astTypes.get(type);
+		if (astType != null) {
+			return astType;
+		}
+		if (type instanceof PrimitiveType) {
+			astType = new PrimitiveAstType(null,
+					((PrimitiveType) type).toString(0, false));
+		} else if (type instanceof ArrayType) {
+			ArrayType arrtype = (ArrayType) type;
+			ASTType[] idxtype = new ASTType[arrtype.getIndexCount()];
+			for (int i = 0; i < arrtype.getIndexCount(); i++) {
+				idxtype[i] = astTypeFromBoogieType(arrtype.getIndexType(i));
+			}
+			astType = new ArrayAstType(null, new String[0], idxtype,
+					astTypeFromBoogieType(arrtype.getValueType()));
+		} else if (type instanceof ConstructedType) {
+			ConstructedType contype = (ConstructedType) type;
+			ASTType[] param = new ASTType[contype.getConstr().getParamCount()];
+			for (int i = 0; i < param.length; i++) {
+				param[i] = astTypeFromBoogieType(contype.getParameter(i));
+			}
+			astType = new NamedAstType(null, contype.getConstr().getName(),
+					param);
+		} else {
+			throw new RuntimeException("Cannot stream a local of type "
+					+ type);
+		}
+		this.astTypes.put(type, astType);
+		return astType;
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package org.joogie.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.joogie.Options;
+import org.joogie.soot.SootProcedureInfo;
+
+import soot.Body;
+
+/**
+ * Records the size and translation time of each method (see
+ * Options.getReportTop), so the methods that make a run slow or its output
+ * large can be found and scoped out. The slowest and largest methods are
+ * logged, and all methods are written to a CSV file next to the Boogie
+ * file.
+ */
+public class MethodReport {
+
+	public static final String CSV_SUFFIX = ".methods.csv";
+
+	private static class Entry {
+		String signature;
+		int units;
+		int traps;
+		int statements;
+		int locals;
+		int fakeLocals;
+		long nanos;
+		String budget;
+	}
+
+	private static MethodReport instance = null;
+
+	private final int top;
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	public static synchronized MethodReport v() {
+		if (null == instance) {
+			instance = new MethodReport();
+		}
+		return instance;
+	}
+
+	public static synchronized void resetInstance() {
+		instance = null;
+	}
+
+	private MethodReport() {
+		this.top = Options.v().getReportTop();
+	}
+
+	public boolean isEnabled() {
+		return this.top > 0;
+	}
+
+	/**
+	 * Records a translated method. Called by the thread that translated it.
+	 *
+	 * @param procInfo
+	 * @param statements
+	 *            number of Boogie statements in the implementation
+	 * @param nanos
+	 *            time spent on the translation
+	 * @param budget
+	 *            the budget that the method exceeded if it was replaced by a
+	 *            stub, or null
+	 */
+	public void record(SootProcedureInfo procInfo, int statements,
+			long nanos, String budget) {
+		if (!isEnabled()) {
+			return;
+		}
+		Entry entry = new Entry();
+		Body body = procInfo.getBody();
+		entry.signature = procInfo.getSootMethod().getSignature();
+		entry.units = body.getUnits().size();
+		entry.traps = body.getTraps().size();
+		entry.statements = statements;
+		entry.locals = procInfo.getLocalCount();
+		entry.fakeLocals = procInfo.getFakeLocalCount();
+		entry.nanos = nanos;
+		entry.budget = budget;
+		synchronized (this.entries) {
+			this.entries.add(entry);
+		}
+	}
+
+	/**
+	 * Logs the slowest and largest methods, and writes all methods to
+	 * boogieFile + CSV_SUFFIX if boogieFile is not null.
+	 *
+	 * @param boogieFile
+	 */
+	public void write(String boogieFile) {
+		if (!isEnabled()) {
+			return;
+		}
+		List<Entry> sorted;
+		synchronized (this.entries) {
+			sorted = new ArrayList<Entry>(this.entries);
+		}
+
+		Collections.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return Long.compare(b.nanos, a.nanos);
+			}
+		});
+		log("slowest", sorted);
+		Collections.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return Integer.compare(b.statements, a.statements);
+			}
+		});
+		log("largest", sorted);
+
+		if (boogieFile == null || boogieFile.isEmpty()) {
+			return;
+		}
+		String csvFile = boogieFile + CSV_SUFFIX;
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(csvFile), "UTF-8"))) {
+			out.println("method,units,traps,statements,locals,fakelocals,micros,budget");
+			for (Entry e : sorted) {
+				out.println("\"" + e.signature.replace("\"", "\"\"") + "\","
+						+ e.units + "," + e.traps + "," + e.statements + ","
+						+ e.locals + "," + e.fakeLocals + "," + e.nanos / 1000 + ","
+						+ (e.budget == null ? "" : e.budget));
+			}
+			Log.info("Method report written to " + csvFile);
+		} catch (IOException e) {
+			Log.error("Cannot write method report " + csvFile + ": "
+					+ e.toString());
+		}
+	}
+
+	private void log(String title, List<Entry> sorted) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("The " + Math.min(this.top, sorted.size()) + " " + title
+				+ " of " + sorted.size() + " methods:");
+		for (int i = 0; i < this.top && i < sorted.size(); i++) {
+			Entry e = sorted.get(i);
+			sb.append(String.format(
+					"%n  %8d ms %8d stmts %6d units %4d traps  %s%s",
+					e.nanos / 1000000, e.statements, e.units, e.traps,
+					e.signature, e.budget == null ? "" : " (stub, "
+							+ e.budget + ")"));
+		}
+		Log.info(sb.toString());
+	}
+}
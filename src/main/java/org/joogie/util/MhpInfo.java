@@ -3,11 +3,24 @@
  */
 package org.joogie.util;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.joogie.Options;
@@ -24,12 +37,33 @@ import soot.jimple.toolkits.thread.mhp.MhpTransformer;
  * @author schaef
  * Singleton class that collects information about which SootFields that are modified within a method
  * may be modified by other threads.
+ * 
+ * The fields are numbered densely and the read and write sets are bit sets.
+ * A field is shared by a thread if the thread reads or writes it and any 
+ * thread writes it, so the shared fields of all threads only need the union
+ * of the write sets instead of intersecting each pair of threads.
  */
 public class MhpInfo {
 
 	private HashMap<SootMethod, Set<SootField>> sharedFields = new HashMap<SootMethod, Set<SootField>>();
 	
+	/**
+	 * The fields in the order of their numbers.
+	 */
+	private final List<SootField> fields = new ArrayList<SootField>();
+	private final Map<SootField, Integer> fieldNumbers = new HashMap<SootField, Integer>();
+	
+	/**
+	 * The signatures of the shared fields of each method, if the results
+	 * have been loaded from the analysis cache. They are resolved on the 
+	 * first lookup, after soot has loaded the classes.
+	 */
+	private Map<String, List<String>> cached = null;
+	private volatile boolean resolved = true;
+	
 	private static MhpInfo instance = null;
+
+	private static final String CHARSET = "UTF-8";
 	
 	public static MhpInfo v() {
 		if (instance==null) {
@@ -50,14 +84,18 @@ public class MhpInfo {
 	/**
 	 * Returns the set of fields that are modified in "m" 
 	 * and may be modified by other threads at the same time.
+	 * The set is shared by the methods of a thread and must not be modified.
 	 * @param m
 	 * @return
 	 */
 	public Set<SootField> getSharedFields(SootMethod m) {
+		if (!this.resolved) {
+			resolve();
+		}
 		if (this.sharedFields.containsKey(m)) {
 			return this.sharedFields.get(m);
 		}
-		return new HashSet<SootField>();
+		return Collections.emptySet();
 	}
 	
 	/**
@@ -67,96 +105,251 @@ public class MhpInfo {
 				
 		MhpTester mhpt = MhpTransformer.v().getMhpTester();
 		
-		List<HashSet<SootField>> read_sets = new LinkedList<HashSet<SootField>>();
-		List<HashSet<SootField>> write_sets = new LinkedList<HashSet<SootField>>();
-		
 		List<AbstractRuntimeThread> arts = mhpt.getThreads();
 		if (arts == null) {
 			return;
 		}
 		
+		// the read and write set of each method, which is in many threads.
+		Map<SootMethod, BitSet[]> methodSets = new HashMap<SootMethod, BitSet[]>();
+		List<BitSet> used_sets = new ArrayList<BitSet>(arts.size());
+		BitSet all_writes = new BitSet();
 		for (AbstractRuntimeThread art : arts) {
 			
-			HashSet<SootField> read_fields = new HashSet<SootField>();
-			HashSet<SootField> write_fields = new HashSet<SootField>();
+			BitSet used_fields = new BitSet();
 			for (int i=0;  i<art.methodCount(); i++) {
 				Object o = art.getMethod(i);
 				if (o instanceof SootMethod) {					
-					SootMethod m = (SootMethod)o;					
-					RWSet read_set = Scene.v().getSideEffectAnalysis().nonTransitiveReadSet(m);
-					RWSet write_set = Scene.v().getSideEffectAnalysis().nonTransitiveWriteSet(m);
-					read_fields.addAll(collectFields(read_set));
-					write_fields.addAll(collectFields(write_set));
+					SootMethod m = (SootMethod)o;
+					BitSet[] rw = methodSets.get(m);
+					if (rw == null) {
+						RWSet read_set = Scene.v().getSideEffectAnalysis().nonTransitiveReadSet(m);
+						RWSet write_set = Scene.v().getSideEffectAnalysis().nonTransitiveWriteSet(m);
+						rw = new BitSet[] {collectFields(read_set), collectFields(write_set)};
+						methodSets.put(m, rw);
+					}
+					used_fields.or(rw[0]);
+					used_fields.or(rw[1]);
+					all_writes.or(rw[1]);
 				} else {
 					throw new RuntimeException("Not implemented "+o.getClass().toString());
 				}
 			}
-			read_sets.add(read_fields);
-			write_sets.add(write_fields);
+			used_sets.add(used_fields);
 		}
 		
-		for (int i=0; i<read_sets.size(); i++) {
-			HashSet<SootField> shared_vars = new HashSet<SootField>();
-			for (int j=0; j<read_sets.size(); j++) {
-				//if (i==j) continue;
-				HashSet<SootField> rw = new HashSet<SootField>(read_sets.get(i)); 
-				rw.retainAll(write_sets.get(j));
-				if (!rw.isEmpty()) {
-					shared_vars.addAll(rw);
-				}
-				HashSet<SootField> ww = new HashSet<SootField>(write_sets.get(i)); 
-				ww.retainAll(write_sets.get(j));
-				if (!ww.isEmpty()) {
-					shared_vars.addAll(ww);
-				}				
-			}	
+		// a method in several threads shares the union of their fields. 
+		Map<SootMethod, BitSet> methodFields = new HashMap<SootMethod, BitSet>();
+		for (int i=0; i<used_sets.size(); i++) {
+			BitSet shared_vars = used_sets.get(i);
+			shared_vars.and(all_writes);
 			
 			AbstractRuntimeThread art = arts.get(i); 
 			for (int j=0;  j< art.methodCount(); j++) {
-				Object o =  art.getMethod(j);
-				
-				if (o instanceof SootMethod) {
-					SootMethod m = (SootMethod)o;
-					if (!this.sharedFields.containsKey(m)) {
-						this.sharedFields.put(m, new HashSet<SootField>());
+				SootMethod m = (SootMethod) art.getMethod(j);
+				BitSet current = methodFields.get(m);
+				if (current == null) {
+					methodFields.put(m, shared_vars);
+				} else if (current != shared_vars) {
+					BitSet union = (BitSet) current.clone();
+					union.or(shared_vars);
+					methodFields.put(m, union);
+				}
+			}
+		}
+		putSharedFields(methodFields);
+
+	}
+
+	/**
+	 * Uses the shared fields of a run with the same program and arguments
+	 * of soot (see AnalysisCache). Returns false if they cannot be read.
+	 * @param file
+	 * @return
+	 */
+	public static boolean load(File file) {
+		Map<String, List<String>> cached = new HashMap<String, List<String>>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), CHARSET))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] header = line.split("\t");
+				int count = Integer.parseInt(header[1]);
+				List<String> fields = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					String field = in.readLine();
+					if (field == null) {
+						throw new IOException("Truncated file");
 					}
-					this.sharedFields.get(m).addAll(shared_vars);
-				} else {
-					throw new RuntimeException("Not implemented.");
+					fields.add(field);
 				}
+				cached.put(header[0], fields);
 			}
-			
+		} catch (IOException | RuntimeException e) {
+			Log.info("Ignoring analysis cache " + file + ": " + e.toString());
+			return false;
+		}
+		instance = new MhpInfo(cached);
+		return true;
+	}
+
+	/**
+	 * Writes the shared fields of each method for later runs (see load).
+	 * @param file
+	 */
+	public void store(File file) {
+		if (!this.resolved) {
+			resolve();
+		}
+		File tmp = new File(file.getPath() + ".tmp" + System.nanoTime());
+		if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+			Log.error("Cannot create analysis cache " + file.getParentFile());
+			return;
+		}
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(tmp), CHARSET))) {
+			for (Entry<SootMethod, Set<SootField>> entry : this.sharedFields.entrySet()) {
+				out.println(entry.getKey().getSignature() + "\t" + entry.getValue().size());
+				for (SootField sf : entry.getValue()) {
+					out.println(sf.getSignature());
+				}
+			}
+		} catch (IOException e) {
+			Log.error("Cannot write analysis cache " + tmp + ": " + e.toString());
+			return;
+		}
+		if (!(tmp.renameTo(file) || (file.delete() && tmp.renameTo(file)))) {
+			Log.error("Cannot write analysis cache " + file);
+			tmp.delete();
 		}
+	}
 
+	private MhpInfo(Map<String, List<String>> cached) {
+		this.cached = cached;
+		this.resolved = false;
+	}
+
+	/**
+	 * Looks up the methods and fields of the cached signatures. Classes 
+	 * that are not in the Scene are skipped.
+	 */
+	private synchronized void resolve() {
+		if (this.resolved) {
+			return;
+		}
+		Map<SootMethod, BitSet> methodFields = new HashMap<SootMethod, BitSet>();
+		for (Entry<String, List<String>> entry : this.cached.entrySet()) {
+			SootMethod m = Scene.v().grabMethod(entry.getKey());
+			if (m == null) {
+				continue;
+			}
+			BitSet fields = new BitSet();
+			for (String signature : entry.getValue()) {
+				SootField sf = Scene.v().grabField(signature);
+				if (sf != null) {
+					collectField(sf, fields);
+				}
+			}
+			methodFields.put(m, fields);
+		}
+		putSharedFields(methodFields);
+		this.cached = null;
+		this.resolved = true;
+	}
+
+	private void putSharedFields(Map<SootMethod, BitSet> methodFields) {
+		Map<BitSet, FieldSet> views = new HashMap<BitSet, FieldSet>();
+		for (Entry<SootMethod, BitSet> entry : methodFields.entrySet()) {
+			FieldSet view = views.get(entry.getValue());
+			if (view == null) {
+				view = new FieldSet(entry.getValue());
+				views.put(entry.getValue(), view);
+			}
+			this.sharedFields.put(entry.getKey(), view);
+		}
 	}
 	
-	private Set<SootField> collectFields(RWSet rwset) {
-		HashSet<SootField> fields = new HashSet<SootField>();
+	private BitSet collectFields(RWSet rwset) {
+		BitSet fields = new BitSet();
 		if (rwset!=null) {
 			for (Object obj : rwset.getGlobals()) {
-				if (obj instanceof SootField) {
-					SootField sf = (SootField)obj;
-					fields.add(sf);
-				} else if (obj instanceof String) {
-					Log.error("String case not implemented "+((String)obj));					
-				} else {
-					throw new RuntimeException("case not implemented "+obj.getClass().toString());
-				}
+				collectField(obj, fields);
 			}
 			for (Object obj : rwset.getFields()) {
-				if (obj instanceof SootField) {
-					SootField sf = (SootField)obj;
-					fields.add(sf);
-				} else if (obj instanceof String) {
-					Log.error("String case not implemented "+((String)obj));
-				} else {
-					throw new RuntimeException("case not implemented "+obj.getClass().toString());
-				}				
+				collectField(obj, fields);
 			}
 		}
 		return fields;
 	}
 
+	private void collectField(Object obj, BitSet fields) {
+		if (obj instanceof SootField) {
+			SootField sf = (SootField)obj;
+			Integer number = this.fieldNumbers.get(sf);
+			if (number == null) {
+				number = this.fields.size();
+				this.fields.add(sf);
+				this.fieldNumbers.put(sf, number);
+			}
+			fields.set(number);
+		} else if (obj instanceof String) {
+			Log.error("String case not implemented "+((String)obj));					
+		} else {
+			throw new RuntimeException("case not implemented "+obj.getClass().toString());
+		}
+	}
+
+	/**
+	 * The fields of a bit set.
+	 */
+	private class FieldSet extends AbstractSet<SootField> {
+		private final BitSet bits;
+		private final int size;
+
+		FieldSet(BitSet bits) {
+			this.bits = bits;
+			this.size = bits.cardinality();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			Integer number = fieldNumbers.get(o);
+			return number != null && this.bits.get(number);
+		}
+
+		@Override
+		public int size() {
+			return this.size;
+		}
+
+		@Override
+		public Iterator<SootField> iterator() {
+			return new Iterator<SootField>() {
+				private int next = bits.nextSetBit(0);
+
+				@Override
+				public boolean hasNext() {
+					return this.next >= 0;
+				}
+
+				@Override
+				public SootField next() {
+					if (this.next < 0) {
+						throw new NoSuchElementException();
+					}
+					SootField sf = fields.get(this.next);
+					this.next = bits.nextSetBit(this.next + 1);
+					return sf;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
 	/**
 	 * Debug print the set of shared variables for each SootMethod.
 	 */
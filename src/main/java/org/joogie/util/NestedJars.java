@@ -0,0 +1,292 @@
+/**
+ *
+ */
+package org.joogie.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.joogie.Options;
+
+/**
+ * The jars and classes inside a fat jar, e.g., BOOT-INF/lib/*.jar and
+ * BOOT-INF/classes of a Spring Boot jar, or the jars of a shaded jar. Soot
+ * can only read them from files, so they are extracted to a directory that
+ * is named after the hash of the fat jar (see Options.getNestedJarCache)
+ * and reused by later runs as long as the fat jar does not change.
+ *
+ * Every changed fat jar gets a new directory, so only the MAX_EXTRACTED
+ * most recently used directories are kept, and extractions that a crashed
+ * run left behind are deleted after a day.
+ */
+public class NestedJars {
+
+	/**
+	 * Prefixes of the class directories inside fat jars.
+	 */
+	private static final String[] CLASS_DIRS = { "BOOT-INF/classes/",
+			"WEB-INF/classes/" };
+
+	/**
+	 * Written when the extraction is complete. Lists the nested jars in the
+	 * order of the fat jar.
+	 */
+	private static final String COMPLETE = "complete";
+
+	private static final String CHARSET = "UTF-8";
+
+	/**
+	 * The number of extracted fat jars that are kept in the cache.
+	 */
+	public static final int MAX_EXTRACTED = 8;
+
+	private static final long STALE_MILLIS = 24L * 60 * 60 * 1000;
+
+	private final List<File> libraries = new ArrayList<File>();
+
+	private File classesDir = null;
+
+	private NestedJars() {
+	}
+
+	/**
+	 * Returns the extracted jars.
+	 *
+	 * @return
+	 */
+	public List<File> getLibraries() {
+		return this.libraries;
+	}
+
+	/**
+	 * Returns the directory with the extracted classes of the class
+	 * directories, or null if there are none.
+	 *
+	 * @return
+	 */
+	public File getClassesDir() {
+		return this.classesDir;
+	}
+
+	/**
+	 * Returns true if the entry of a jar is not a class or resource of the
+	 * jar itself but belongs to a nested jar or class directory.
+	 *
+	 * @param entryName
+	 * @return
+	 */
+	public static boolean isNested(String entryName) {
+		return entryName.endsWith(".jar") || classDir(entryName) != null;
+	}
+
+	/**
+	 * Extracts the nested jars and classes of a jar, unless an earlier run
+	 * has already extracted them.
+	 *
+	 * @param jar
+	 * @return
+	 * @throws IOException
+	 */
+	public static NestedJars extract(File jar) throws IOException {
+		NestedJars ret = new NestedJars();
+		if (!hasNestedEntries(jar)) {
+			return ret;
+		}
+		File root = Options.v().getNestedJarCache() != null ? new File(
+				Options.v().getNestedJarCache()) : new File(
+				System.getProperty("java.io.tmpdir"), "jar2bpl-nested");
+		File dir = new File(root, hash(jar));
+		if (!new File(dir, COMPLETE).isFile()) {
+			Log.info("Extracting the nested jars of " + jar + " to " + dir);
+			File tmp = new File(root, dir.getName() + ".tmp" + System.nanoTime());
+			try {
+				extractTo(jar, tmp);
+				if (!tmp.renameTo(dir) && !new File(dir, COMPLETE).isFile()) {
+					throw new IOException("Cannot rename " + tmp + " to " + dir);
+				}
+			} finally {
+				delete(tmp);
+			}
+		} else {
+			Log.debug("Using the nested jars of " + jar + " in " + dir);
+		}
+		if (!dir.setLastModified(System.currentTimeMillis())) {
+			Log.debug("Cannot update access time of " + dir);
+		}
+		evict(root);
+
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(new File(dir, COMPLETE)), CHARSET))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				ret.libraries.add(new File(dir, line));
+			}
+		}
+		File classes = new File(dir, "classes");
+		if (classes.isDirectory()) {
+			ret.classesDir = classes;
+		}
+		return ret;
+	}
+
+	/**
+	 * Deletes all but the MAX_EXTRACTED most recently used extractions in
+	 * root, and the unfinished extractions that are older than a day.
+	 * Unfinished extractions of running runs are younger.
+	 *
+	 * @param root
+	 */
+	private static void evict(File root) {
+		File[] dirs = root.listFiles();
+		if (dirs == null) {
+			return;
+		}
+		List<File> extracted = new ArrayList<File>();
+		long now = System.currentTimeMillis();
+		for (File dir : dirs) {
+			if (!dir.isDirectory()) {
+				continue;
+			}
+			if (new File(dir, COMPLETE).isFile()) {
+				extracted.add(dir);
+			} else if (dir.getName().contains(".tmp")
+					&& now - dir.lastModified() > STALE_MILLIS) {
+				delete(dir);
+			}
+		}
+		if (extracted.size() <= MAX_EXTRACTED) {
+			return;
+		}
+		Collections.sort(extracted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		for (File dir : extracted.subList(MAX_EXTRACTED, extracted.size())) {
+			Log.debug("Deleting the nested jars in " + dir);
+			// runs that find the directory from now on extract it again.
+			if (new File(dir, COMPLETE).delete()) {
+				delete(dir);
+			}
+		}
+	}
+
+	private static boolean hasNestedEntries(File jar) throws IOException {
+		try (ZipFile zip = new ZipFile(jar)) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory() && isNested(entry.getName())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void extractTo(File jar, File dir) throws IOException {
+		List<String> libraries = new ArrayList<String>();
+		try (ZipFile zip = new ZipFile(jar)) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (entry.isDirectory() || !isNested(name)) {
+					continue;
+				}
+				if (name.startsWith("/") || name.contains("..")) {
+					Log.info("Ignoring entry " + name + " of " + jar);
+					continue;
+				}
+				String path;
+				String prefix = classDir(name);
+				if (prefix != null) {
+					path = "classes/" + name.substring(prefix.length());
+				} else {
+					path = "lib/" + name;
+					libraries.add(path);
+				}
+				File file = new File(dir, path);
+				if (!file.getParentFile().isDirectory()
+						&& !file.getParentFile().mkdirs()) {
+					throw new IOException("Cannot create "
+							+ file.getParentFile());
+				}
+				try (InputStream in = zip.getInputStream(entry);
+						OutputStream out = new FileOutputStream(file)) {
+					byte[] buffer = new byte[8192];
+					int len;
+					while ((len = in.read(buffer)) != -1) {
+						out.write(buffer, 0, len);
+					}
+				}
+			}
+		}
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(new File(dir, COMPLETE)), CHARSET))) {
+			for (String path : libraries) {
+				out.println(path);
+			}
+		}
+	}
+
+	private static String classDir(String entryName) {
+		for (String prefix : CLASS_DIRS) {
+			if (entryName.startsWith(prefix)) {
+				return prefix;
+			}
+		}
+		return null;
+	}
+
+	private static String hash(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = new byte[65536];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				md.update(buffer, 0, len);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest()) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void delete(File f) {
+		if (!f.exists()) {
+			return;
+		}
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		if (!f.delete()) {
+			Log.debug("Cannot delete " + f);
+		}
+	}
+}
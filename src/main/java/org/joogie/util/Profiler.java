@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package org.joogie.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joogie.Options;
+
+/**
+ * Measures the time spent in the phases of a run (see Options.getProfileFile)
+ * and writes it as JSON.
+ *
+ * Phases are named by their path, e.g., "soot/translate/statements", so
+ * they can be started and stopped on any thread. A phase that runs several
+ * times (e.g., once per body) is reported once with the number of times it
+ * ran and the sum of its wall and CPU times. If bodies are translated by
+ * several jobs, the time of a phase can exceed the time of its parent.
+ * Besides the phases, a run can report counters, e.g., the hits of the
+ * translation cache.
+ */
+public class Profiler {
+
+	/**
+	 * A started phase. Stop it in a finally block.
+	 */
+	public static class Phase {
+		private final String path;
+		private final StopWatch stopWatch;
+		private final long startCpu;
+
+		private Phase(String path) {
+			this.path = path;
+			this.startCpu = cpuTime();
+			this.stopWatch = StopWatch.getInstanceAndStart();
+		}
+
+		public void stop() {
+			if (this.stopWatch.isEnabled()) {
+				this.stopWatch.stop();
+				Profiler.v().record(this.path, this.stopWatch.getNanoTime(),
+						cpuTime() - this.startCpu);
+			}
+		}
+	}
+
+	/**
+	 * Returned by start if profiling is disabled.
+	 */
+	private static final Phase noPhase = new Phase(null) {
+		@Override
+		public void stop() {
+			// nothing to record
+		}
+	};
+
+	private static class Stats {
+		long count = 0;
+		long wallNanos = 0;
+		long cpuNanos = 0;
+		final Map<String, Stats> children = new LinkedHashMap<String, Stats>();
+	}
+
+	private static Profiler instance = null;
+
+	private static final ThreadMXBean threadBean = ManagementFactory
+			.getThreadMXBean();
+
+	private final boolean enabled;
+
+	/**
+	 * The phases without parent.
+	 */
+	private final Stats root = new Stats();
+
+	private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+
+	public static Profiler v() {
+		if (null == instance) {
+			instance = new Profiler();
+		}
+		return instance;
+	}
+
+	public static void resetInstance() {
+		instance = null;
+	}
+
+	private Profiler() {
+		this.enabled = Options.v().getProfileFile() != null;
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/**
+	 * Starts the phase with the given path, where the names of the nested
+	 * phases are separated by slashes.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public Phase start(String path) {
+		if (!this.enabled) {
+			return noPhase;
+		}
+		return new Phase(path);
+	}
+
+	/**
+	 * Adds a run of the phase path.
+	 *
+	 * @param path
+	 * @param wallNanos
+	 * @param cpuNanos
+	 *            or a negative number if the JVM does not measure CPU time
+	 */
+	public synchronized void record(String path, long wallNanos, long cpuNanos) {
+		Stats stats = this.root;
+		for (String name : path.split("/")) {
+			Stats child = stats.children.get(name);
+			if (child == null) {
+				child = new Stats();
+				stats.children.put(name, child);
+			}
+			stats = child;
+		}
+		stats.count++;
+		stats.wallNanos += wallNanos;
+		stats.cpuNanos += cpuNanos;
+	}
+
+	/**
+	 * Adds n to the counter with the given name.
+	 *
+	 * @param name
+	 * @param n
+	 */
+	public synchronized void count(String name, long n) {
+		if (!this.enabled) {
+			return;
+		}
+		Long old = this.counters.get(name);
+		this.counters.put(name, (old == null) ? n : old + n);
+	}
+
+	/**
+	 * Writes the phases and counters to a JSON file.
+	 *
+	 * @param fileName
+	 * @param wallNanos
+	 *            the time of the whole run
+	 */
+	public synchronized void write(String fileName, long wallNanos) {
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(fileName), "UTF-8"))) {
+			out.println("{");
+			out.println("  \"wallNanos\": " + wallNanos + ",");
+			out.println("  \"cpuTimeSupported\": "
+					+ threadBean.isCurrentThreadCpuTimeSupported() + ",");
+			out.println("  \"counters\": {");
+			int i = 0;
+			for (Map.Entry<String, Long> counter : this.counters.entrySet()) {
+				out.println("    \"" + escape(counter.getKey()) + "\": "
+						+ counter.getValue()
+						+ (++i < this.counters.size() ? "," : ""));
+			}
+			out.println("  },");
+			out.print("  \"phases\": ");
+			writePhases(out, this.root, "  ");
+			out.println();
+			out.println("}");
+		} catch (IOException e) {
+			Log.error("Cannot write profile " + fileName + ": " + e.toString());
+		}
+	}
+
+	private void writePhases(PrintWriter out, Stats stats, String indent) {
+		if (stats.children.isEmpty()) {
+			out.print("[]");
+			return;
+		}
+		out.println("[");
+		List<Map.Entry<String, Stats>> entries = new ArrayList<Map.Entry<String, Stats>>(
+				stats.children.entrySet());
+		for (int i = 0; i < entries.size(); i++) {
+			Stats child = entries.get(i).getValue();
+			String inner = indent + "    ";
+			out.println(indent + "  {");
+			out.println(inner + "\"name\": \"" + escape(entries.get(i).getKey())
+					+ "\",");
+			out.println(inner + "\"count\": " + child.count + ",");
+			out.println(inner + "\"wallNanos\": " + child.wallNanos + ",");
+			out.println(inner + "\"cpuNanos\": " + child.cpuNanos + ",");
+			out.print(inner + "\"phases\": ");
+			writePhases(out, child, inner);
+			out.println();
+			out.println(indent + "  }" + (i + 1 < entries.size() ? "," : ""));
+		}
+		out.print(indent + "]");
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static long cpuTime() {
+		if (threadBean.isCurrentThreadCpuTimeSupported()) {
+			return threadBean.getCurrentThreadCpuTime();
+		}
+		return -1;
+	}
+}
@@ -34,6 +34,13 @@ public class StopWatch {
 	 */
 	private long stopTime;
 
+	/**
+	 * Start and stop time in nanoseconds, for phases that are too short for
+	 * milliseconds.
+	 */
+	private long startNanos;
+	private long stopNanos;
+
 	/**
 	 * Enabled or Disabled
 	 */
@@ -55,6 +62,7 @@ public class StopWatch {
 	 */
 	public void start() {
 		startTime = System.currentTimeMillis();
+		startNanos = System.nanoTime();
 		enabled = true;
 	}
 
@@ -68,6 +76,7 @@ public class StopWatch {
 			return 0;
 
 		stopTime = System.currentTimeMillis();
+		stopNanos = System.nanoTime();
 		enabled = false;
 
 		return getTime();
@@ -85,6 +94,18 @@ public class StopWatch {
 		return stopTime - startTime;
 	}
 
+	/**
+	 * Returns the time in nanoseconds
+	 * 
+	 * @return Time
+	 */
+	public long getNanoTime() {
+		if (isEnabled())
+			return System.nanoTime() - startNanos;
+
+		return stopNanos - startNanos;
+	}
+
 	/**
 	 * Checks whether the stop watch is enabled
 	 * 
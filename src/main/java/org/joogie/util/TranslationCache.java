@@ -0,0 +1,657 @@
+/**
+ *
+ */
+package org.joogie.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joogie.GlobalsCache;
+import org.joogie.Options;
+import org.joogie.soot.SootPrelude;
+
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.jimple.ClassConstant;
+import soot.jimple.DoubleConstant;
+import soot.jimple.FloatConstant;
+import soot.jimple.LongConstant;
+import soot.jimple.StringConstant;
+import util.BoogiePrinter;
+import boogie.ast.declaration.Implementation;
+import boogie.ast.expression.IdentifierExpression;
+import boogie.type.BoogieType;
+
+/**
+ * Singleton class that caches the translation of classes on disk, so
+ * classes that did not change since the last run are not sent through
+ * soot and the SootBodyTransformer again.
+ *
+ * An entry is addressed by the hash of the class file, the options that
+ * affect the output, and the prelude. It stores the Boogie text of the
+ * implementations of the class and the globals they refer to. The globals
+ * are stored by what they stand for (a class, a field, a string constant,
+ * ...) and created again through the GlobalsCache when the entry is used.
+ * Names that depend on the order in which soot or the GlobalsCache number
+ * things (e.g., $StringConst3 or the number of a method in its procedure
+ * name) are renamed in the text accordingly.
+ *
+ * The translation also depends on the throws clauses and the hierarchy of
+ * the classes that are referenced. Hence, each entry also stores the hashes
+ * of the referenced input classes and is only used if none of them changed.
+ */
+public class TranslationCache {
+
+	private static final String FORMAT_VERSION = "1";
+	private static final String FILE_SUFFIX = ".cache";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A Boogie identifier.
+	 */
+	private static final Pattern identifier = Pattern
+			.compile("[A-Za-z_.$#'~^?`\\\\][A-Za-z0-9_.$#'~^?`\\\\]*");
+
+	private static TranslationCache instance = null;
+
+	public static TranslationCache v() {
+		if (instance == null) {
+			instance = new TranslationCache();
+		}
+		return instance;
+	}
+
+	public static void resetInstance() {
+		instance = null;
+	}
+
+	private final File cacheDir;
+	private final long maxSize;
+	private final String configHash;
+
+	private int hits = 0;
+	private int misses = 0;
+	private int evictions = 0;
+
+	// hash of the class file of each input class
+	private HashMap<String, String> classHashes = new HashMap<String, String>();
+	// entries that are taken from the cache in this run
+	private LinkedHashMap<String, Entry> cachedEntries = new LinkedHashMap<String, Entry>();
+	// entries that are recorded while translating in this run
+	private LinkedHashMap<String, Entry> newEntries = new LinkedHashMap<String, Entry>();
+
+	/**
+	 * The translation of one class. Created either while the class is
+	 * translated or when it is read from the cache.
+	 */
+	public static class Entry {
+		private final String className;
+		private LinkedHashMap<String, String> dependencies = new LinkedHashMap<String, String>();
+		private LinkedHashSet<String> requirements = new LinkedHashSet<String>();
+		private StringBuilder implementations = new StringBuilder();
+		private boolean cacheable = true;
+
+		private Entry(String className) {
+			this.className = className;
+		}
+
+		public void requireClass(SootClass c) {
+			if (c.isPhantom()) {
+				this.cacheable = false;
+			}
+			addDependency(c);
+			this.requirements.add("class\t" + c.getName() + "\t"
+					+ TranslationHelpers.getQualifiedName(c));
+		}
+
+		public void requireProcedure(SootMethod m) {
+			if (m.isPhantom() || m.getDeclaringClass().isPhantom()) {
+				this.cacheable = false;
+			}
+			addDependency(m.getDeclaringClass());
+			this.requirements.add("proc\t" + m.getSignature() + "\t"
+					+ TranslationHelpers.getQualifiedName(m));
+		}
+
+		public void requireField(SootField f) {
+			if (f.isPhantom() || f.getDeclaringClass().isPhantom()) {
+				this.cacheable = false;
+			}
+			addDependency(f.getDeclaringClass());
+			this.requirements.add("field\t" + f.getSignature() + "\t"
+					+ TranslationHelpers.getQualifiedName(f));
+		}
+
+		public void requireConstant(StringConstant c, IdentifierExpression ide) {
+			this.requirements.add("string\t" + toHex(c.value.getBytes(UTF8))
+					+ "\t" + ide.getIdentifier());
+		}
+
+		public void requireConstant(FloatConstant c, IdentifierExpression ide) {
+			this.requirements.add("float\t" + Float.floatToIntBits(c.value)
+					+ "\t" + ide.getIdentifier());
+		}
+
+		public void requireConstant(DoubleConstant c, IdentifierExpression ide) {
+			this.requirements.add("double\t"
+					+ Double.doubleToLongBits(c.value) + "\t"
+					+ ide.getIdentifier());
+		}
+
+		public void requireConstant(LongConstant c, IdentifierExpression ide) {
+			this.requirements.add("long\t" + c.value + "\t"
+					+ ide.getIdentifier());
+		}
+
+		public void requireConstant(ClassConstant c, IdentifierExpression ide) {
+			this.requirements.add("classconst\t"
+					+ toHex(c.value.getBytes(UTF8)) + "\t"
+					+ ide.getIdentifier());
+		}
+
+		public void requireHavocGlobal(BoogieType t, IdentifierExpression ide) {
+			String type;
+			if (t == GlobalsCache.v().getPf().getIntType()) {
+				type = "int";
+			} else if (t == SootPrelude.v().getReferenceType()) {
+				type = "ref";
+			} else {
+				this.cacheable = false;
+				return;
+			}
+			this.requirements.add("havoc\t" + type + "\t"
+					+ ide.getIdentifier());
+		}
+
+		public void requireFreshGlobal(IdentifierExpression ide) {
+			this.requirements.add("fresh\t-\t" + ide.getIdentifier());
+		}
+
+		/**
+		 * Keeps the class out of the cache, e.g., because the translation
+		 * of one of its methods was replaced by a stub.
+		 */
+		public void setNotCacheable() {
+			this.cacheable = false;
+		}
+
+		public void addImplementation(Implementation impl) {
+			StringWriter sw = new StringWriter();
+			PrintWriter pw = new PrintWriter(sw);
+			new BoogiePrinter(pw).printProcedureOrImplementation(impl);
+			pw.flush();
+			this.implementations.append(sw.toString());
+		}
+
+		private void addDependency(SootClass c) {
+			String hash = TranslationCache.v().classHashes.get(c.getName());
+			if (hash != null && !c.getName().equals(this.className)) {
+				this.dependencies.put(c.getName(), hash);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if classes are cached in this run.
+	 *
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return this.cacheDir != null;
+	}
+
+	/**
+	 * Registers a class of the input. Must be called for all input classes
+	 * before any of them is looked up.
+	 *
+	 * @param className
+	 * @param classFile
+	 *            the bytes of the class file
+	 */
+	public void addClass(String className, byte[] classFile) {
+		this.classHashes.put(className, hash(classFile));
+	}
+
+	/**
+	 * Checks if the translation of className can be taken from the cache.
+	 * If not, the class has to be translated and its translation will be
+	 * stored in the cache.
+	 *
+	 * @param className
+	 * @return true if the class does not need to be translated.
+	 */
+	public boolean lookup(String className) {
+		if (!isEnabled() || !this.classHashes.containsKey(className)) {
+			return false;
+		}
+		File file = entryFile(className);
+		Entry entry = null;
+		if (file.isFile()) {
+			try {
+				entry = readEntry(file, className);
+			} catch (IOException e) {
+				Log.error("Cannot read cache entry " + file + ": "
+						+ e.toString());
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			this.misses++;
+			this.newEntries.put(className, new Entry(className));
+			return false;
+		}
+		if (!file.setLastModified(System.currentTimeMillis())) {
+			Log.debug("Cannot update access time of " + file);
+		}
+		this.hits++;
+		this.cachedEntries.put(className, entry);
+		return true;
+	}
+
+	/**
+	 * Returns the classes that soot has to load (at least with their
+	 * signatures) to use the cached entries.
+	 *
+	 * @return
+	 */
+	public Set<String> getRequiredClasses() {
+		Set<String> ret = new LinkedHashSet<String>();
+		for (Entry entry : this.cachedEntries.values()) {
+			ret.add(entry.className);
+			for (String req : entry.requirements) {
+				String[] parts = req.split("\t");
+				if (parts[0].equals("class")) {
+					ret.add(parts[1]);
+				} else if (parts[0].equals("proc")
+						|| parts[0].equals("field")) {
+					ret.add(Scene.v().signatureToClass(parts[1]));
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the entry that records the translation of class c or null if c
+	 * is not cached.
+	 *
+	 * @param c
+	 * @return
+	 */
+	public Entry getRecorder(SootClass c) {
+		return this.newEntries.get(c.getName());
+	}
+
+	/**
+	 * Writes the entries recorded in this run to the cache directory and
+	 * evicts the least recently used entries if the cache gets too big.
+	 */
+	public void store() {
+		if (!isEnabled()) {
+			return;
+		}
+		for (Entry entry : this.newEntries.values()) {
+			if (!entry.cacheable) {
+				Log.debug("Not caching " + entry.className);
+				continue;
+			}
+			try {
+				writeEntry(entryFile(entry.className), entry);
+			} catch (IOException e) {
+				Log.error("Cannot write cache entry for " + entry.className
+						+ ": " + e.toString());
+			}
+		}
+		this.newEntries.clear();
+		evict();
+	}
+
+	/**
+	 * Creates the globals of the static fields that the cached classes use,
+	 * which are otherwise only created by splice.
+	 */
+	public void internRequiredFields() {
+		for (Entry entry : this.cachedEntries.values()) {
+			for (String req : entry.requirements) {
+				String[] parts = req.split("\t");
+				if (parts[0].equals("field")) {
+					replay(parts[0], parts[1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the cached classes to the Boogie program. Must be called after
+	 * soot is done.
+	 */
+	public void splice() {
+		for (Entry entry : this.cachedEntries.values()) {
+			HashMap<String, String> renaming = new HashMap<String, String>();
+			for (String req : entry.requirements) {
+				String[] parts = req.split("\t");
+				String name = replay(parts[0], parts[1]);
+				if (!name.equals(parts[2])) {
+					renaming.put(parts[2], name);
+				}
+			}
+			String text = renameIdentifiers(entry.implementations.toString(),
+					renaming);
+			try {
+				GlobalsCache
+						.v()
+						.getPf()
+						.importBoogieFile(entry.className,
+								new ByteArrayInputStream(text.getBytes(UTF8)));
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot use cached translation of "
+						+ entry.className + ". Delete " + this.cacheDir
+						+ " and try again. " + e.toString());
+			}
+		}
+		this.cachedEntries.clear();
+	}
+
+	public int getHits() {
+		return this.hits;
+	}
+
+	public int getMisses() {
+		return this.misses;
+	}
+
+	public int getEvictions() {
+		return this.evictions;
+	}
+
+	/**
+	 * Creates the global described by kind and arg and returns its name.
+	 */
+	private String replay(String kind, String arg) {
+		GlobalsCache gc = GlobalsCache.v();
+		if (kind.equals("class")) {
+			return gc.lookupClassVariable(gc.lookupSootClass(arg))
+					.getIdentifier();
+		} else if (kind.equals("proc")) {
+			return gc.lookupProcedure(Scene.v().getMethod(arg))
+					.getBoogieName();
+		} else if (kind.equals("field")) {
+			SootField f = Scene.v().getField(arg);
+			gc.lookupSootField(f);
+			return TranslationHelpers.getQualifiedName(f);
+		} else if (kind.equals("string")) {
+			return gc.lookupInternString(
+					StringConstant.v(new String(fromHex(arg), UTF8)))
+					.getIdentifier();
+		} else if (kind.equals("float")) {
+			return gc.lookupInternFloat(
+					FloatConstant.v(Float.intBitsToFloat(Integer
+							.parseInt(arg)))).getIdentifier();
+		} else if (kind.equals("double")) {
+			return gc.lookupInternDouble(
+					DoubleConstant.v(Double.longBitsToDouble(Long
+							.parseLong(arg)))).getIdentifier();
+		} else if (kind.equals("long")) {
+			return gc.lookupInternLong(LongConstant.v(Long.parseLong(arg)))
+					.getIdentifier();
+		} else if (kind.equals("classconst")) {
+			return ((IdentifierExpression) gc
+					.lookupClassConstant(ClassConstant.v(new String(
+							fromHex(arg), UTF8)))).getIdentifier();
+		} else if (kind.equals("havoc")) {
+			BoogieType t = arg.equals("int") ? gc.getPf().getIntType()
+					: SootPrelude.v().getReferenceType();
+			return gc.getHavocGlobal(t).getIdentifier();
+		} else if (kind.equals("fresh")) {
+			return gc.makeFreshGlobal(SootPrelude.v().getReferenceType(),
+					true, true).getIdentifier();
+		}
+		throw new RuntimeException("Unknown cache entry " + kind);
+	}
+
+	/**
+	 * Replaces the identifiers in text according to renaming. All names are
+	 * replaced at once, so a renaming may swap names.
+	 *
+	 * @param text
+	 *            Boogie text
+	 * @param renaming
+	 *            maps old names to new names
+	 * @return
+	 */
+	public static String renameIdentifiers(String text,
+			Map<String, String> renaming) {
+		if (renaming.isEmpty()) {
+			return text;
+		}
+		Matcher m = identifier.matcher(text);
+		StringBuffer sb = new StringBuffer();
+		while (m.find()) {
+			String name = renaming.get(m.group());
+			m.appendReplacement(sb,
+					Matcher.quoteReplacement(name != null ? name : m.group()));
+		}
+		m.appendTail(sb);
+		return sb.toString();
+	}
+
+	private File entryFile(String className) {
+		return new File(this.cacheDir, hash((FORMAT_VERSION + "\n"
+				+ className + "\n" + this.classHashes.get(className) + "\n" + this.configHash)
+				.getBytes(UTF8))
+				+ FILE_SUFFIX);
+	}
+
+	private Entry readEntry(File file, String className) throws IOException {
+		Entry entry = new Entry(className);
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), UTF8))) {
+			String line = reader.readLine();
+			if (!("jar2bpl-cache\t" + FORMAT_VERSION).equals(line)) {
+				return null;
+			}
+			while ((line = reader.readLine()) != null) {
+				if (line.equals("impl")) {
+					break;
+				}
+				String[] parts = line.split("\t", 2);
+				if (parts[0].equals("dep")) {
+					String[] dep = parts[1].split("\t");
+					if (!dep[1].equals(this.classHashes.get(dep[0]))) {
+						// a referenced class changed.
+						return null;
+					}
+					entry.dependencies.put(dep[0], dep[1]);
+				} else if (parts[0].equals("req")) {
+					entry.requirements.add(parts[1]);
+				}
+			}
+			if (line == null) {
+				// incomplete entry
+				return null;
+			}
+			char[] buffer = new char[8192];
+			int read;
+			while ((read = reader.read(buffer)) > 0) {
+				entry.implementations.append(buffer, 0, read);
+			}
+		}
+		return entry;
+	}
+
+	private void writeEntry(File file, Entry entry) throws IOException {
+		// write to a temporary file first, so other runs never see a
+		// partial entry.
+		File tmp = new File(file.getPath() + ".tmp");
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(tmp), UTF8))) {
+			writer.write("jar2bpl-cache\t" + FORMAT_VERSION + "\n");
+			for (Map.Entry<String, String> dep : entry.dependencies.entrySet()) {
+				writer.write("dep\t" + dep.getKey() + "\t" + dep.getValue()
+						+ "\n");
+			}
+			for (String req : entry.requirements) {
+				writer.write("req\t" + req + "\n");
+			}
+			writer.write("impl\n");
+			writer.write(entry.implementations.toString());
+		}
+		if (file.exists() && !file.delete()) {
+			Log.error("Cannot replace cache entry " + file);
+		}
+		if (!tmp.renameTo(file)) {
+			Log.error("Cannot write cache entry " + file);
+		}
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache is smaller
+	 * than the maximal size.
+	 */
+	private void evict() {
+		File[] files = this.cacheDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> entries = new LinkedList<File>();
+		long size = 0;
+		for (File f : files) {
+			if (f.isFile() && f.getName().endsWith(FILE_SUFFIX)) {
+				entries.add(f);
+				size += f.length();
+			}
+		}
+		if (size <= this.maxSize) {
+			return;
+		}
+		File[] sorted = entries.toArray(new File[entries.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File f : sorted) {
+			if (size <= this.maxSize) {
+				break;
+			}
+			long length = f.length();
+			if (f.delete()) {
+				size -= length;
+				this.evictions++;
+			}
+		}
+	}
+
+	private static String hash(byte[] bytes) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return toHex(md.digest(bytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] fromHex(String s) {
+		byte[] ret = new byte[s.length() / 2];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return ret;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private TranslationCache() {
+		Options o = Options.v();
+		if (!o.hasCacheDir()) {
+			this.cacheDir = null;
+			this.maxSize = 0;
+			this.configHash = null;
+			return;
+		}
+		if (o.useSoundThreads()) {
+			// shared fields are computed for the whole program, so the
+			// translation of a class depends on all other classes.
+			Log.info("The translation cache is not used with -threads");
+			this.cacheDir = null;
+			this.maxSize = 0;
+			this.configHash = null;
+			return;
+		}
+		if (o.hasEntryPoints()) {
+			// which methods of a class are translated depends on the
+			// classes that call them.
+			Log.info("The translation cache is not used with -entry-points");
+			this.cacheDir = null;
+			this.maxSize = 0;
+			this.configHash = null;
+			return;
+		}
+		File dir = new File(o.getCacheDir());
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new RuntimeException("Cannot create cache directory " + dir);
+		}
+		this.cacheDir = dir;
+		this.maxSize = o.getCacheSize() * 1024L * 1024L;
+
+		String prelude;
+		try (InputStream in = (o.getPreludeFileName() != null) ? new FileInputStream(
+				o.getPreludeFileName()) : SootPrelude.class
+				.getResourceAsStream("/basic_prelude.bpl")) {
+			prelude = hash(readAll(in));
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read prelude: " + e.toString());
+		}
+		this.configHash = hash(("err=" + o.isExceptionErrorModel() + ";rtr="
+				+ o.isRuntimeExceptionReturns() + ";threads="
+				+ o.useSoundThreads() + ";vcalls=" + o.useSoundCalls()
+				+ ";soot=" + o.getSootProfile() + ";switch="
+				+ o.getSwitchEncoding() + ">" + o.getSwitchThreshold()
+				+ ";monitor=" + o.getMonitorHavoc() + ";prelude=" + prelude).getBytes(UTF8));
+	}
+}
@@ -19,22 +19,22 @@
 
 package org.joogie.util;
 
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.joogie.GlobalsCache;
+import org.joogie.Options;
 import org.joogie.soot.SootPrelude;
 import org.joogie.soot.SootProcedureInfo;
 import org.joogie.soot.SootValueSwitch;
 
 import soot.Local;
-import soot.Scene;
 import soot.SootClass;
 import soot.SootField;
 import soot.SootMethod;
 import soot.Trap;
-import soot.TrapManager;
 import soot.Unit;
 import soot.jimple.StaticFieldRef;
 import soot.jimple.Stmt;
@@ -82,44 +82,70 @@ public class TranslationHelpers {
 								.size()]));
 	}
 
-	public static void getReachableTraps(Unit s, SootMethod m,
-			List<Trap> out_traps, List<Trap> out_finally) {
-		if (m.getActiveBody() == null) {
-			throw new RuntimeException("cannot look into " + m.getSignature());
+	/**
+	 * Havocs what may change while a thread waits to enter the monitor at
+	 * s: the locals that are live after s and, with -threads, the static
+	 * fields that other threads may write (see MhpInfo.getSharedFields).
+	 * The heap is only havoced if other threads may write one of its
+	 * fields. Returns null if there is nothing to havoc.
+	 * 
+	 * @param procInfo
+	 * @param valueswitch
+	 * @param s
+	 * @return
+	 */
+	public static Statement havocAtMonitor(SootProcedureInfo procInfo,
+			SootValueSwitch valueswitch, Stmt s) {
+		LinkedList<IdentifierExpression> havoc_var = new LinkedList<IdentifierExpression>();
+		List<Local> live = procInfo.getLiveLocals().getLiveLocalsAfter(s);
+		// in the order of the body, so the output does not depend on the
+		// flow sets.
+		for (Local local : procInfo.getBody().getLocals()) {
+			if (live.contains(local)) {
+				havoc_var.add(procInfo.lookupLocalVariable(local));
+			}
 		}
-		out_traps.addAll(TrapManager.getTrapsAt(s, m.getActiveBody()));
-
-		SootClass throwable = Scene.v().loadClass("java.lang.Throwable",
-				SootClass.SIGNATURES);
-		
-		Unit trap_begin = null;
-		Unit trap_end = null;
-		SootClass trap_exception = null;
-		// Unit trap_handler = null;
-		for (Trap trap : new LinkedList<Trap>(out_traps)) {
-			if (trap.getBeginUnit() == trap_begin
-					&& trap.getEndUnit() == trap_end
-					&& trap.getException() == trap_exception) {
-				out_traps.remove(trap);
-				if (trap.getException() == throwable) {
-					// in that case the second trap was most likely
-					// of type "any" and thus is a finally block, but
-					// soot translated that into Throwable.
-					out_finally.add(trap);
-					// System.err.println("unreachable finally "+GlobalsCache.v().getUnitLabel((Stmt)
-					// trap.getHandlerUnit()));
-					// System.err.println("\t\t"+GlobalsCache.v().getUnitLabel((Stmt)
-					// trap_handler));
+		if (Options.v().useSoundThreads()) {
+			Set<SootField> shared = MhpInfo.v().getSharedFields(
+					procInfo.getSootMethod());
+			for (StaticFieldRef sr : procInfo.usedStaticFields) {
+				if (shared.contains(sr.getField())) {
+					sr.apply(valueswitch);
+					havoc_var.add((IdentifierExpression) valueswitch
+							.getExpression());
+				}
+			}
+			for (SootField sf : shared) {
+				if (!sf.isStatic()) {
+					havoc_var.add(SootPrelude.v().getHeapVariable());
+					break;
 				}
-			} else {
-				// everything fine.
 			}
-			trap_begin = trap.getBeginUnit();
-			trap_end = trap.getEndUnit();
-			trap_exception = trap.getException();
-			// trap_handler = trap.getHandlerUnit();
 		}
+		if (havoc_var.isEmpty()) {
+			return null;
+		}
+		return GlobalsCache
+				.v()
+				.getPf()
+				.mkHavocStatement(
+						new Attribute[] {},
+						havoc_var.toArray(new IdentifierExpression[havoc_var
+								.size()]));
+	}
 
+	public static void getReachableTraps(Unit s, SootProcedureInfo procInfo,
+			List<Trap> out_traps, List<Trap> out_finally) {
+		if (procInfo.getBody() == null) {
+			throw new RuntimeException("cannot look into "
+					+ procInfo.getSootMethod().getSignature());
+		}
+		// duplicated traps are removed by the index. A duplicate that
+		// catches Throwable was most likely of type "any" and thus is a
+		// finally block, but soot translated that into Throwable.
+		TrapIndex index = procInfo.getTrapIndex();
+		out_traps.addAll(index.getTrapsAt(s));
+		out_finally.addAll(index.getFinallyTrapsAt(s));
 	}
 
 	public static Statement mkLocationAssertion(Stmt s) {
@@ -141,8 +167,6 @@ public class TranslationHelpers {
 						GlobalsCache.v().getPf().mkBooleanLiteral(true));
 	}
 
-	public static final HashSet<Stmt> clonedFinallyBlocks = new HashSet<Stmt>();
-
 	public static Attribute[] javaLocation2Attribute(Stmt s) {
 		return javaLocation2Attribute(s, false, null);
 	}
@@ -150,7 +174,8 @@ public class TranslationHelpers {
 	public static Attribute[] javaLocation2Attribute(Stmt s,
 			boolean forceCloneAttribute, String comment) {
 		return javaLocation2Attribute(s.getTags(),
-				clonedFinallyBlocks.contains(s) || forceCloneAttribute, comment);
+				GlobalsCache.v().getClonedFinallyBlocks().contains(s)
+						|| forceCloneAttribute, comment);
 	}
 
 	public static Attribute[] javaLocation2Attribute(List<Tag> list) {
@@ -194,9 +219,9 @@ public class TranslationHelpers {
 		endcol = -1;
 		String filename = null;
 
-		if (GlobalsCache.v().currentMethod != null) {
-			filename = getFileName(GlobalsCache.v().currentMethod
-					.getDeclaringClass());
+		SootMethod currentMethod = GlobalsCache.v().getCurrentMethod();
+		if (currentMethod != null) {
+			filename = getFileName(currentMethod.getDeclaringClass());
 		}
 
 		for (Tag tag : list) {
@@ -230,9 +255,8 @@ public class TranslationHelpers {
 			return new Attribute[0];
 		}
 
-		if (filename == null && GlobalsCache.v().currentMethod != null) {
-			filename = GlobalsCache.v().currentMethod.getDeclaringClass()
-					.getName();
+		if (filename == null && currentMethod != null) {
+			filename = currentMethod.getDeclaringClass().getName();
 		}
 
 		ProgramFactory pf = GlobalsCache.v().getPf();
@@ -260,28 +284,61 @@ public class TranslationHelpers {
 		return res;
 	}
 
+	/*
+	 * The Boogie names of methods, fields, and locals are needed for every
+	 * lookup, so each of them is only computed once per run. Numbers are
+	 * assigned when an object is added to the scene, so names are only
+	 * remembered once the number is set.
+	 */
+	private static final ConcurrentHashMap<SootMethod, String> methodNames = new ConcurrentHashMap<SootMethod, String>();
+	private static final ConcurrentHashMap<SootField, String> fieldNames = new ConcurrentHashMap<SootField, String>();
+	private static final ConcurrentHashMap<Local, String> localNames = new ConcurrentHashMap<Local, String>();
+
+	/**
+	 * Forgets the names of the current run.
+	 */
+	public static void resetNames() {
+		methodNames.clear();
+		fieldNames.clear();
+		localNames.clear();
+	}
+
 	public static String getQualifiedName(SootClass c) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(c.getName());
-		return replaceIllegalChars(sb.toString());
+		return replaceIllegalChars(c.getName());
 	}
 
 	public static String getQualifiedName(SootMethod m) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(m.getReturnType().toString() + "$");
-		sb.append(m.getDeclaringClass().getName() + "$");
-		sb.append(m.getName() + "$");
-		sb.append(m.getNumber());
-		return replaceIllegalChars(sb.toString());
+		String name = methodNames.get(m);
+		if (name == null) {
+			StringBuilder sb = new StringBuilder();
+			appendLegalChars(sb, m.getReturnType().toString());
+			sb.append('$');
+			appendLegalChars(sb, m.getDeclaringClass().getName());
+			sb.append('$');
+			appendLegalChars(sb, m.getName());
+			sb.append('$');
+			sb.append(m.getNumber());
+			name = sb.toString();
+			if (m.getNumber() != 0) {
+				methodNames.put(m, name);
+			}
+		}
+		return name;
 	}
 
 	public static String getQualifiedName(Local l) {
 		// TODO: check if the name is really unique
-		StringBuilder sb = new StringBuilder();
-		sb.append(replaceIllegalChars(l.getName()));
-
-		sb.append(l.getNumber());
-		return sb.toString();
+		String name = localNames.get(l);
+		if (name == null) {
+			StringBuilder sb = new StringBuilder();
+			appendLegalChars(sb, l.getName());
+			sb.append(l.getNumber());
+			name = sb.toString();
+			if (l.getNumber() != 0) {
+				localNames.put(l, name);
+			}
+		}
+		return name;
 	}
 
 	public static String getQualifiedName(StaticFieldRef f) {
@@ -289,23 +346,74 @@ public class TranslationHelpers {
 	}
 
 	public static String getQualifiedName(SootField f) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(f.getType() + "$");
-		sb.append(f.getDeclaringClass().getName() + "$");
-		sb.append(f.getName());
-		sb.append(f.getNumber());
-		return replaceIllegalChars(sb.toString());
+		String name = fieldNames.get(f);
+		if (name == null) {
+			StringBuilder sb = new StringBuilder();
+			appendLegalChars(sb, f.getType().toString());
+			sb.append('$');
+			appendLegalChars(sb, f.getDeclaringClass().getName());
+			sb.append('$');
+			appendLegalChars(sb, f.getName());
+			sb.append(f.getNumber());
+			name = sb.toString();
+			if (f.getNumber() != 0) {
+				fieldNames.put(f, name);
+			}
+		}
+		return name;
 	}
 
 	public static String replaceIllegalChars(String s) {
-		String ret = s.replace("<", "$la$");
-		ret = ret.replace("@", "$at$");
-		ret = ret.replace(">", "$ra$");
-		ret = ret.replace("[", "$lp$");
-		ret = ret.replace("]", "$rp$");
-		ret = ret.replace("/", "$_$");
-		ret = ret.replace(";", "$");
-		return ret;
+		for (int i = 0; i < s.length(); i++) {
+			if (replacement(s.charAt(i)) != null) {
+				StringBuilder sb = new StringBuilder(s.length() + 16);
+				sb.append(s, 0, i);
+				appendLegalChars(sb, s, i);
+				return sb.toString();
+			}
+		}
+		return s;
+	}
+
+	private static void appendLegalChars(StringBuilder sb, String s) {
+		appendLegalChars(sb, s, 0);
+	}
+
+	/**
+	 * Appends s from index start to sb, replacing the characters that are
+	 * not allowed in Boogie identifiers.
+	 */
+	private static void appendLegalChars(StringBuilder sb, String s, int start) {
+		for (int i = start; i < s.length(); i++) {
+			char c = s.charAt(i);
+			String r = replacement(c);
+			if (r == null) {
+				sb.append(c);
+			} else {
+				sb.append(r);
+			}
+		}
+	}
+
+	private static String replacement(char c) {
+		switch (c) {
+		case '<':
+			return "$la$";
+		case '@':
+			return "$at$";
+		case '>':
+			return "$ra$";
+		case '[':
+			return "$lp$";
+		case ']':
+			return "$rp$";
+		case '/':
+			return "$_$";
+		case ';':
+			return "$";
+		default:
+			return null;
+		}
 	}
 
 	/**
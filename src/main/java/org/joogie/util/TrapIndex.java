@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package org.joogie.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.joogie.GlobalsCache;
+
+import soot.Body;
+import soot.SootClass;
+import soot.Trap;
+import soot.Unit;
+import soot.util.Chain;
+
+/**
+ * The traps that cover each unit of a body. Same as TrapManager.getTrapsAt,
+ * but the trap chain is only walked once per body instead of once per
+ * query.
+ *
+ * If the bytecode contains a trap twice in a row, the second one is
+ * dropped. If it catches Throwable, it most likely was an "any" trap, i.e.,
+ * a finally block, and it is reported as such (see
+ * TranslationHelpers.getReachableTraps).
+ */
+public class TrapIndex {
+
+	/**
+	 * The traps that cover a unit, and the duplicates of Throwable traps.
+	 */
+	private static class CoveringTraps {
+		final List<Trap> traps;
+		final List<Trap> finallyTraps;
+
+		CoveringTraps(List<Trap> traps, List<Trap> finallyTraps) {
+			this.traps = traps;
+			this.finallyTraps = finallyTraps;
+		}
+	}
+
+	private final Map<Unit, List<Trap>> traps = new HashMap<Unit, List<Trap>>();
+	private final Map<Unit, List<Trap>> finallyTraps = new HashMap<Unit, List<Trap>>();
+
+	public TrapIndex(Body body) {
+		Chain<Unit> units = body.getUnits();
+		Map<Unit, List<Trap>> covering = new HashMap<Unit, List<Trap>>();
+		for (Trap trap : body.getTraps()) {
+			Iterator<Unit> it = units.iterator(trap.getBeginUnit(),
+					units.getPredOf(trap.getEndUnit()));
+			while (it.hasNext()) {
+				Unit u = it.next();
+				List<Trap> list = covering.get(u);
+				if (list == null) {
+					list = new ArrayList<Trap>();
+					covering.put(u, list);
+				}
+				list.add(trap);
+			}
+		}
+
+		SootClass throwable = GlobalsCache.v().lookupSootClass(
+				"java.lang.Throwable");
+		// units in the same try blocks have equal lists, which share the
+		// result.
+		Map<List<Trap>, CoveringTraps> results = new HashMap<List<Trap>, CoveringTraps>();
+		for (Map.Entry<Unit, List<Trap>> entry : covering.entrySet()) {
+			CoveringTraps result = results.get(entry.getValue());
+			if (result == null) {
+				result = removeDuplicates(entry.getValue(), throwable);
+				results.put(entry.getValue(), result);
+			}
+			this.traps.put(entry.getKey(), result.traps);
+			if (!result.finallyTraps.isEmpty()) {
+				this.finallyTraps.put(entry.getKey(), result.finallyTraps);
+			}
+		}
+	}
+
+	/**
+	 * Returns the traps that cover u, without duplicates.
+	 *
+	 * @param u
+	 * @return
+	 */
+	public List<Trap> getTrapsAt(Unit u) {
+		List<Trap> ret = this.traps.get(u);
+		return ret == null ? Collections.<Trap> emptyList() : ret;
+	}
+
+	/**
+	 * Returns the duplicates of Throwable traps that cover u.
+	 *
+	 * @param u
+	 * @return
+	 */
+	public List<Trap> getFinallyTrapsAt(Unit u) {
+		List<Trap> ret = this.finallyTraps.get(u);
+		return ret == null ? Collections.<Trap> emptyList() : ret;
+	}
+
+	private CoveringTraps removeDuplicates(List<Trap> covering,
+			SootClass throwable) {
+		List<Trap> traps = new ArrayList<Trap>(covering.size());
+		List<Trap> finallyTraps = new ArrayList<Trap>();
+		Trap previous = null;
+		for (Trap trap : covering) {
+			if (previous != null
+					&& trap.getBeginUnit() == previous.getBeginUnit()
+					&& trap.getEndUnit() == previous.getEndUnit()
+					&& trap.getException() == previous.getException()) {
+				if (trap.getException() == throwable) {
+					finallyTraps.add(trap);
+				}
+			} else {
+				traps.add(trap);
+			}
+			previous = trap;
+		}
+		return new CoveringTraps(Collections.unmodifiableList(traps),
+				Collections.unmodifiableList(finallyTraps));
+	}
+}
@@ -1,23 +1,50 @@
 package jar2bpl_test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.ProcessBuilder.Redirect;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
 
+import org.joogie.Daemon;
 import org.joogie.Dispatcher;
 import org.joogie.Options;
+import org.joogie.soot.ReachableMethods;
+import org.joogie.util.MethodReport;
+import org.joogie.util.NestedJars;
+import org.joogie.util.TranslationHelpers;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+import boogie.ProgramFactory;
 
 /**
  * Abstract class for all test cases that detect inconsistent code.
@@ -34,6 +61,12 @@ public class SnippetTest {
 
 	private final File sourceFile;
 	private final String name;
+
+	/**
+	 * The compiled snippet and the files written by translate.
+	 */
+	private File classFileDir = null;
+	private final List<File> tempFiles = new ArrayList<File>();
 //	private File goldenFile;
 
 	@Parameterized.Parameters(name = "{index}: check ({1})")
@@ -80,8 +113,866 @@ public class SnippetTest {
 		runTranslation();
 	}
 
+	@Test
+	public void testSwitchEncodings() throws IOException {
+		assumeTrue(fileToString(this.sourceFile).contains("wideSwitch"));
+		File treeFile = translate("tree", switchEncoding("tree"));
+		File gotoFile = translate("goto", switchEncoding("goto"));
+
+		// the 16 cases are a balanced tree, not a chain of 16 ifs, which
+		// is printed as one level of else ifs.
+		int nesting = ifNesting(implementation(treeFile, "wideSwitch"));
+		assertTrue(nesting > 1);
+		assertTrue(nesting <= 32 - Integer.numberOfLeadingZeros(16));
+		// one goto jumps to a block per case and one for the default.
+		for (String method : new String[] { "tableSwitch", "lookupSwitch" }) {
+			assertTrue(Pattern.compile("goto [^;]*, ")
+					.matcher(implementation(gotoFile, method)).find());
+		}
+		typeCheck(treeFile);
+		typeCheck(gotoFile);
+	}
+
+	private static Runnable switchEncoding(final String encoding) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setSwitchThreshold(0);
+				Options.v().setSwitchEncoding(encoding);
+			}
+		};
+	}
+
+	@Test
+	public void testInvalidOptions() {
+		String[][] invalid = { { "-switch-encoding", "ifs" },
+				{ "-switch-threshold", "-1" }, { "-monitor-havoc", "some" },
+				{ "-soot-profile", "slow" } };
+		for (String[] args : invalid) {
+			Options.resetInstance();
+			try {
+				new CmdLineParser(Options.v()).parseArgument(args);
+				fail("Accepted " + Arrays.toString(args));
+			} catch (CmdLineException e) {
+				// expected
+			}
+		}
+		Options.resetInstance();
+	}
+
+	@Test
+	public void testTargetedMonitorHavoc() throws IOException {
+		assumeTrue(fileToString(this.sourceFile).contains("synchronizedRead"));
+		File targetedFile = translate("targeted", monitorHavoc("targeted"));
+		File allFile = translate("all", monitorHavoc("all"));
+
+		// no thread writes bases, so the heap is not havoced.
+		Pattern havoc = Pattern.compile("havoc [^;]*;");
+		Pattern heap = Pattern.compile("havoc [^;]*\\$heap[,;]");
+		String targeted = implementation(targetedFile, "synchronizedRead");
+		assertTrue(havoc.matcher(targeted).find());
+		assertFalse(heap.matcher(targeted).find());
+		assertTrue(heap.matcher(implementation(allFile, "synchronizedRead"))
+				.find());
+		typeCheck(targetedFile);
+	}
+
+	private static Runnable monitorHavoc(final String mode) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setSoundThreads(true);
+				Options.v().setMonitorHavoc(mode);
+			}
+		};
+	}
+
+	@Test
+	public void testDuplicatedStatements() throws IOException {
+		assumeTrue(fileToString(this.sourceFile).contains("finallyTwice"));
+		File outFile = translate("duplicates", null);
+
+		// exactly the lines marked in the snippet are flagged as clones.
+		Set<Integer> expected = new HashSet<Integer>();
+		String[] lines = fileToString(this.sourceFile).split("\n");
+		for (int i = 0; i < lines.length; i++) {
+			if (lines[i].contains("// cloned")) {
+				expected.add(i + 1);
+			}
+		}
+		Set<Integer> cloned = new HashSet<Integer>();
+		for (String method : new String[] { "finallyTwice",
+				"repeatedConditions" }) {
+			Matcher m = Pattern.compile(
+					"\\{ :sourceloc \"[^\"]*\",([0-9]+),[^}]*\\} \\{ :clone \\}")
+					.matcher(implementation(outFile, method));
+			while (m.find()) {
+				cloned.add(Integer.parseInt(m.group(1)));
+			}
+		}
+		assertEquals(expected, cloned);
+		typeCheck(outFile);
+	}
+
+	@Test
+	public void testAnalysisCache() throws IOException {
+		final File cacheDir = createTempDir();
+		Runnable setOptions = new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setSoundThreads(true);
+				Options.v().setAnalysisCache(cacheDir.getAbsolutePath());
+			}
+		};
+		File firstFile = translate("first", setOptions);
+		File[] cached = cacheDir.listFiles();
+		assertTrue(cached != null && cached.length == 1);
+		long stored = cached[0].lastModified();
+
+		// the second run reads the analyses instead of writing them, and
+		// havocs and guards the same shared fields. Without the
+		// whole-program analyses, soot loads fewer classes and numbers the
+		// methods and fields differently.
+		File outFile = translate("cached", setOptions);
+		assertTrue(cached[0].lastModified() == stored);
+		assertSameProgram(firstFile, outFile, true);
+	}
+
+	@Test
+	public void testTranslationCache() throws IOException {
+		File cacheDir = createTempDir();
+		File profile = createTempFile("profile", ".json");
+		File coldFile = translate("cold",
+				translationCache(cacheDir, profile, 256, null));
+		assertEquals(0, counter(profile, "cache/hits"));
+		long misses = counter(profile, "cache/misses");
+		assertTrue(misses > 0);
+		String[] stored = cacheDir.list();
+		assertTrue(stored != null && stored.length > 0);
+
+		// the warm run splices the classes from the cache. Soot and the
+		// GlobalsCache number the names in a different order then.
+		File warmFile = translate("warm",
+				translationCache(cacheDir, profile, 256, null));
+		long hits = counter(profile, "cache/hits");
+		assertTrue(hits > 0);
+		assertEquals(misses, hits + counter(profile, "cache/misses"));
+		assertSameProgram(coldFile, warmFile, true);
+
+		// the switch encoding is part of the key of an entry.
+		translate("goto", translationCache(cacheDir, profile, 256, "goto"));
+		assertEquals(0, counter(profile, "cache/hits"));
+		assertEquals(misses, counter(profile, "cache/misses"));
+
+		// an entry that was not used for long is evicted first.
+		File stale = new File(cacheDir, "stale.cache");
+		writeFile(stale, new String(new char[1024 * 1024]).replace('\0', ' '));
+		assertTrue(stale.setLastModified(1000));
+		translate("lru", translationCache(cacheDir, profile, 1, null));
+		assertEquals(1, counter(profile, "cache/evictions"));
+		assertFalse(stale.exists());
+		assertTrue(counter(profile, "cache/hits") > 0);
+
+		translate("evict", translationCache(cacheDir, profile, 0, null));
+		assertTrue(counter(profile, "cache/evictions") > 0);
+		String[] left = cacheDir.list();
+		assertTrue(left != null && left.length == 0);
+	}
+
+	private static Runnable translationCache(final File cacheDir,
+			final File profile, final long cacheSize, final String encoding) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setCacheDir(cacheDir.getAbsolutePath());
+				Options.v().setCacheSize(cacheSize);
+				Options.v().setProfileFile(profile.getAbsolutePath());
+				if (encoding != null) {
+					Options.v().setSwitchEncoding(encoding);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the value of a counter in a profile written by the run.
+	 * 
+	 * @param profile
+	 * @param name
+	 * @return
+	 */
+	private long counter(File profile, String name) {
+		Matcher m = Pattern.compile("\"" + Pattern.quote(name) + "\": ([0-9]+)")
+				.matcher(fileToString(profile));
+		assertTrue("No counter " + name + " in " + profile, m.find());
+		return Long.parseLong(m.group(1));
+	}
+
+	@Test
+	public void testParallelTranslation() throws IOException {
+		// the output must not depend on the number of jobs, not even in
+		// the order of the declarations.
+		File seqFile = translate("seq", null);
+		File parFile = translate("par", new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setJobs(4);
+			}
+		});
+		assertTrue(compareFiles(seqFile, parFile));
+	}
+
+	@Test
+	public void testStreamingTranslation() throws IOException {
+		assertSameProgram("stream", new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setStreaming(true);
+			}
+		});
+	}
+
+	@Test
+	public void testShardedTranslation() throws IOException {
+		assertSameProgram("shard", new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setShards(2);
+			}
+		});
+	}
+
+	@Test
+	public void testReachableTranslation() throws IOException {
+		File allFile = translate("all", null);
+		File reachableFile = translate("reachable", new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setEntryPoints(ReachableMethods.SCOPE);
+			}
+		});
+
+		// the reachable methods are translated as before, the others
+		// are at most declared.
+		Set<String> reachable = implementations(reachableFile);
+		assertFalse(reachable.isEmpty());
+		assertTrue(implementations(allFile).containsAll(reachable));
+		assertTrue(hasImplementation(allFile, "unusedHelper"));
+		assertFalse(hasImplementation(reachableFile, "unusedHelper"));
+		typeCheck(reachableFile);
+	}
+
+	@Test
+	public void testMethodReport() throws IOException {
+		File outFile = translate("report", new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setReportTop(1);
+			}
+		});
+
+		// only the top method is logged, but all of them are written.
+		File csvFile = new File(outFile.getPath() + MethodReport.CSV_SUFFIX);
+		this.tempFiles.add(csvFile);
+		assertTrue(csvFile.isFile());
+		String[] rows = fileToString(csvFile).split("\n");
+		assertEquals(
+				"method,units,traps,statements,locals,fakelocals,micros,budget",
+				rows[0]);
+		assertEquals(implementations(outFile).size(), rows.length - 1);
+		Pattern row = Pattern
+				.compile("\"<[^:]*: [^ ]* ([^(]*)\\(.*\\)>\"(,[0-9]+){6},");
+		for (int i = 1; i < rows.length; i++) {
+			Matcher m = row.matcher(rows[i]);
+			assertTrue(rows[i], m.matches());
+			assertTrue(hasImplementation(outFile,
+					TranslationHelpers.replaceIllegalChars(m.group(1))));
+		}
+	}
+
+	@Test
+	public void testBudgetStubs() throws IOException {
+		File fullFile = translate("full", null);
+		File stubFile = translate("stub", new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setBudgetUnits(1);
+				Options.v().setReportTop(1);
+			}
+		});
+
+		// the stub keeps the declaration, only the modifies clause grows
+		// by the havoced globals.
+		String stub = implementation(stubFile, "unusedHelper");
+		assertTrue(Pattern.compile("havoc [^;]*\\$heap[,;]").matcher(stub)
+				.find());
+		assertFalse(stub.equals(implementation(fullFile, "unusedHelper")));
+		assertEquals(
+				declaration(fullFile, "procedure ", "unusedHelper")
+						.replaceAll("modifies [^;]*;", ""),
+				declaration(stubFile, "procedure ", "unusedHelper")
+						.replaceAll("modifies [^;]*;", ""));
+
+		String signature = "<jar2bpl.test_snippets."
+				+ this.name.replace(".java", "") + ": int unusedHelper(int)>";
+		boolean reported = false;
+		for (String row : fileToString(
+				new File(stubFile.getPath() + MethodReport.CSV_SUFFIX)).split(
+				"\n")) {
+			if (row.startsWith("\"" + signature + "\",")) {
+				assertTrue(row.endsWith(",more than 1 units"));
+				reported = true;
+			}
+		}
+		assertTrue(reported);
+		typeCheck(stubFile);
+	}
+
+	@Test
+	public void testClassPathIndex() throws IOException {
+		File dir = createTempDir();
+		File jar = new File(dir, "snippet.jar");
+		writeJar(jar, null);
+		final File index = new File(dir, "classpath.index");
+		Runnable useIndex = new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setClassPathIndex(index.getAbsolutePath());
+			}
+		};
+		File plainFile = translate("plain", jar, null);
+		File indexedFile = translate("indexed", jar, useIndex);
+
+		// the index replaces soot's class providers, so every class of the
+		// program was found through it.
+		List<String> indexed = indexEntry(index, jar);
+		assertTrue(indexed.contains("jar2bpl.test_snippets."
+				+ this.name.replace(".java", "")));
+		assertSameProgram(plainFile, indexedFile, false);
+
+		// a jar is read again if its modification time changed ...
+		assertTrue(jar.setLastModified(jar.lastModified() - 60000));
+		translate("touched", jar, useIndex);
+		assertEquals(jar.lastModified() + "\t" + jar.length(),
+				indexStamp(index, jar));
+
+		// ... or its size.
+		long lastModified = jar.lastModified();
+		writeJar(jar, "changed");
+		assertTrue(jar.setLastModified(lastModified));
+		translate("resized", jar, useIndex);
+		assertEquals(lastModified + "\t" + jar.length(),
+				indexStamp(index, jar));
+	}
+
+	@Test
+	public void testNestedJars() throws IOException {
+		File dir = createTempDir();
+		final File cacheDir = new File(dir, "nested");
+		String className = this.name.replace(".java", "");
+		File pkg = new File(getClassFileDir(), "jar2bpl/test_snippets");
+
+		// the snippet is in BOOT-INF/classes and its inner classes are in a
+		// nested jar, which is only on the class path.
+		List<String> libClasses = new ArrayList<String>();
+		ByteArrayOutputStream lib = new ByteArrayOutputStream();
+		try (JarOutputStream out = new JarOutputStream(lib)) {
+			addToJar(out, "META-INF/note.txt", "lib".getBytes("UTF-8"));
+			for (File f : pkg.listFiles()) {
+				if (f.getName().startsWith(className + "$")) {
+					addToJar(out, "jar2bpl/test_snippets/" + f.getName(),
+							Files.readAllBytes(f.toPath()));
+					libClasses.add(f.getName().replace(".class", ""));
+				}
+			}
+		}
+		File fatJar = new File(dir, "fat.jar");
+		try (JarOutputStream out = new JarOutputStream(new FileOutputStream(
+				fatJar))) {
+			addToJar(out, "BOOT-INF/classes/jar2bpl/test_snippets/"
+					+ className + ".class", Files.readAllBytes(new File(pkg,
+					className + ".class").toPath()));
+			addToJar(out, "BOOT-INF/lib/lib.jar", lib.toByteArray());
+		}
+
+		// extractions of other fat jars, which are used less recently.
+		for (int i = 0; i < NestedJars.MAX_EXTRACTED; i++) {
+			File old = new File(cacheDir, "old" + i);
+			assertTrue(old.mkdirs());
+			writeFile(new File(old, "complete"), "");
+			assertTrue(old.setLastModified(1000 * (i + 1)));
+		}
+
+		Runnable setOptions = new Runnable() {
+			@Override
+			public void run() {
+				Options.v().setNestedJarCache(cacheDir.getAbsolutePath());
+			}
+		};
+		File plainFile = translate("plain", null);
+		File fatFile = translate("fat", fatJar, setOptions);
+		assertTrue(hasImplementation(fatFile, "main"));
+		for (String libClass : libClasses) {
+			for (String impl : implementations(fatFile)) {
+				assertFalse(impl, impl.contains("$jar2bpl.test_snippets."
+						+ libClass + "$"));
+			}
+		}
+		assertTrue(withoutNumbers(declarations(plainFile, "implementation "))
+				.containsAll(withoutNumbers(declarations(fatFile,
+						"implementation "))));
+		typeCheck(fatFile);
+
+		// the least recently used extraction was evicted.
+		String[] extracted = cacheDir.list();
+		assertTrue(extracted != null
+				&& extracted.length == NestedJars.MAX_EXTRACTED);
+		assertFalse(new File(cacheDir, "old0").exists());
+		assertTrue(new File(cacheDir, "old1").exists());
+
+		// the second run uses the extraction of the first one.
+		File againFile = translate("again", fatJar, setOptions);
+		assertTrue(compareFiles(fatFile, againFile));
+		assertEquals(NestedJars.MAX_EXTRACTED, cacheDir.list().length);
+	}
+
+	/**
+	 * Returns the line of jar in a class path index, followed by the classes
+	 * in the jar.
+	 * 
+	 * @param index
+	 * @param jar
+	 * @return
+	 */
+	private List<String> indexEntry(File index, File jar) {
+		List<String> lines = Arrays.asList(fileToString(index).split("\n"));
+		for (int i = 0; i < lines.size(); i++) {
+			String[] header = lines.get(i).split("\t");
+			if (header.length == 4
+					&& header[0].equals(jar.getAbsolutePath())) {
+				return lines.subList(i, i + 1 + Integer.parseInt(header[3]));
+			}
+		}
+		fail("No entry for " + jar + " in " + index);
+		return null;
+	}
+
+	/**
+	 * Returns the modification time and size of jar in a class path index,
+	 * separated by a tab.
+	 */
+	private String indexStamp(File index, File jar) {
+		String[] header = indexEntry(index, jar).get(0).split("\t");
+		return header[1] + "\t" + header[2];
+	}
+
+	@Test
+	public void testDaemon() throws IOException, InterruptedException {
+		final File tokenFile = new File(createTempDir(), "daemon.token");
+		final int port = getFreePort();
+		Options.v().setDaemonToken(tokenFile.getAbsolutePath());
+		Thread daemon = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Daemon.serve(port);
+			}
+		});
+		daemon.start();
+		for (int i = 0; i < 100 && !tokenFile.isFile(); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue(tokenFile.isFile());
+
+		String classDir = getClassFileDir().getAbsolutePath();
+		File coldFile = createTempFile("cold", ".bpl");
+		assertTrue(sendJob(port, tokenFile, "-j", classDir, "-cp", classDir,
+				"-b", coldFile.getAbsolutePath()));
+		// a failed job is answered and the daemon keeps serving.
+		assertFalse(sendJob(port, tokenFile, "-j", classDir + "/missing",
+				"-b", createTempFile("missing", ".bpl").getAbsolutePath()));
+		// the second job loads the snippet into the Scene of the first one,
+		// so soot numbers its methods differently.
+		File warmFile = createTempFile("warm", ".bpl");
+		assertTrue(sendJob(port, tokenFile, "-j", classDir, "-cp", classDir,
+				"-b", warmFile.getAbsolutePath()));
+		assertSameProgram(coldFile, warmFile, true);
+
+		assertTrue(sendJob(port, tokenFile, "stop"));
+		daemon.join(10000);
+		assertFalse(daemon.isAlive());
+		assertFalse(tokenFile.exists());
+	}
+
+	@Test
+	public void testBatchManifest() throws IOException {
+		String classDir = getClassFileDir().getAbsolutePath();
+		File dir = createTempDir();
+		File brokenFile = new File(dir, "broken.bpl");
+		File outFile = new File(dir, "snippet.bpl");
+		File reportFile = new File(dir, "report.csv");
+		File manifest = new File(dir, "batch.xml");
+		writeFile(manifest, "<batch report=\"" + reportFile.getName()
+				+ "\">\n" + "  <entry input=\"missing\" output=\""
+				+ brokenFile.getName() + "\"/>\n" + "  <entry input=\""
+				+ classDir + "\" output=\"" + outFile.getName()
+				+ "\" classpath=\"" + classDir + "\"/>\n" + "</batch>\n");
+		Dispatcher.run(manifest.getAbsolutePath(), null);
+
+		// the broken entry does not stop the batch.
+		assertFalse(brokenFile.exists());
+		assertTrue(outFile.isFile());
+		assertFalse(implementations(outFile).isEmpty());
+		typeCheck(outFile);
+		String[] report = fileToString(reportFile).split("\n");
+		assertEquals(3, report.length);
+		assertEquals("input,output,status,millis,message", report[0]);
+		assertTrue(report[1].startsWith("\"" + new File(dir, "missing")
+				+ "\",\"" + brokenFile + "\",failed,"));
+		assertTrue(report[2].startsWith("\"" + classDir + "\",\"" + outFile
+				+ "\",ok,"));
+	}
+
+	private static boolean sendJob(int port, File tokenFile, String... args) {
+		// the daemon resets the options after each job.
+		Options.v().setDaemonToken(tokenFile.getAbsolutePath());
+		return Daemon.send(port, Arrays.asList(args));
+	}
+
+	private static int getFreePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Translates the snippet with the default options and with the options
+	 * set by setOptions, and checks that both runs create the same program.
+	 * 
+	 * @param suffix
+	 * @param setOptions
+	 * @throws IOException
+	 */
+	protected void assertSameProgram(String suffix, Runnable setOptions)
+			throws IOException {
+		assertSameProgram(translate("default", null),
+				translate(suffix, setOptions), false);
+	}
+
+	/**
+	 * Checks that actual has the same implementations and procedure
+	 * declarations as expected, in any order, and that it type checks.
+	 * 
+	 * @param expected
+	 * @param actual
+	 * @param ignoreNumbers
+	 *            compare the declarations without their numbers (see
+	 *            withoutNumbers), e.g., if the runs loaded the classes in a
+	 *            different order.
+	 */
+	protected void assertSameProgram(File expected, File actual,
+			boolean ignoreNumbers) {
+		for (String keyword : new String[] { "implementation ", "procedure " }) {
+			Set<String> expectedDecls = declarations(expected, keyword);
+			Set<String> actualDecls = declarations(actual, keyword);
+			if (ignoreNumbers) {
+				expectedDecls = withoutNumbers(expectedDecls);
+				actualDecls = withoutNumbers(actualDecls);
+			}
+			assertFalse(expectedDecls.isEmpty());
+			assertEquals(expectedDecls, actualDecls);
+		}
+		typeCheck(actual);
+	}
+
+	/**
+	 * Replaces all numbers in the declarations, e.g., the soot numbers in
+	 * procedure names and the numbers of constants, which depend on the
+	 * order in which they are created.
+	 * 
+	 * @param declarations
+	 * @return
+	 */
+	private static Set<String> withoutNumbers(Set<String> declarations) {
+		Set<String> ret = new HashSet<String>();
+		for (String declaration : declarations) {
+			ret.add(sortModifies(declaration.replaceAll("[0-9]+", "#")));
+		}
+		return ret;
+	}
+
+	/**
+	 * Translates the snippet to a temporary file, which is deleted after
+	 * the test. The options are reset by each run, so setOptions (which may
+	 * be null) sets them before the run.
+	 * 
+	 * @param suffix
+	 * @param setOptions
+	 * @return
+	 * @throws IOException
+	 */
+	protected File translate(String suffix, Runnable setOptions)
+			throws IOException {
+		return translate(suffix, getClassFileDir(), setOptions);
+	}
+
+	/**
+	 * Translates input, a directory or jar that is also the class path, to
+	 * a temporary file.
+	 * 
+	 * @param suffix
+	 * @param input
+	 * @param setOptions
+	 * @return
+	 * @throws IOException
+	 */
+	protected File translate(String suffix, File input, Runnable setOptions)
+			throws IOException {
+		System.out.println("Running " + suffix + " translation: "
+				+ sourceFile.getName());
+		File outFile = createTempFile(suffix, ".bpl");
+		if (setOptions != null) {
+			setOptions.run();
+		}
+		Options.v().setClasspath(input.getAbsolutePath());
+		Dispatcher.run(input.getAbsolutePath(), outFile.getAbsolutePath());
+		return outFile;
+	}
 
+	/**
+	 * Writes the compiled snippet to jar. If note is not null, the jar also
+	 * gets a text file with that content.
+	 * 
+	 * @param jar
+	 * @param note
+	 * @throws IOException
+	 */
+	protected void writeJar(File jar, String note) throws IOException {
+		try (JarOutputStream out = new JarOutputStream(new FileOutputStream(
+				jar))) {
+			addToJar(out, getClassFileDir(), "");
+			if (note != null) {
+				addToJar(out, "META-INF/note.txt", note.getBytes("UTF-8"));
+			}
+		}
+	}
+
+	/**
+	 * Adds the files in dir to a jar, with prefix in front of their paths.
+	 */
+	protected void addToJar(JarOutputStream out, File dir, String prefix)
+			throws IOException {
+		for (File f : dir.listFiles()) {
+			if (f.isDirectory()) {
+				addToJar(out, f, prefix + f.getName() + "/");
+			} else {
+				addToJar(out, prefix + f.getName(),
+						Files.readAllBytes(f.toPath()));
+			}
+		}
+	}
+
+	protected void addToJar(JarOutputStream out, String name, byte[] bytes)
+			throws IOException {
+		out.putNextEntry(new ZipEntry(name));
+		out.write(bytes);
+		out.closeEntry();
+	}
+
+	/**
+	 * Returns the directory with the compiled snippet, which is compiled on
+	 * the first call.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	protected File getClassFileDir() throws IOException {
+		if (this.classFileDir == null) {
+			this.classFileDir = compileJavaFile(this.sourceFile);
+			assertTrue(this.classFileDir != null
+					&& this.classFileDir.isDirectory());
+			this.tempFiles.add(this.classFileDir);
+		}
+		return this.classFileDir;
+	}
+
+	/**
+	 * Creates a temporary file that is deleted after the test.
+	 * 
+	 * @param suffix
+	 * @param extension
+	 * @return
+	 * @throws IOException
+	 */
+	protected File createTempFile(String suffix, String extension)
+			throws IOException {
+		File f = File.createTempFile("jar2bpl_test_" + suffix, extension);
+		this.tempFiles.add(f);
+		return f;
+	}
+
+	/**
+	 * Creates a temporary directory that is deleted after the test.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	protected File createTempDir() throws IOException {
+		File dir = getTempDir();
+		this.tempFiles.add(dir);
+		return dir;
+	}
+
+	protected void typeCheck(File f) {
+		try {
+			new ProgramFactory(f.getAbsolutePath()).runTypeChecker();
+		} catch (Exception e) {
+			fail("Cannot type check " + f + ": " + e.toString());
+		}
+	}
+
+	@After
+	public void deleteTempFiles() throws IOException {
+		for (File f : this.tempFiles) {
+			if (f.exists()) {
+				delete(f);
+			}
+		}
+		this.tempFiles.clear();
+		this.classFileDir = null;
+	}
+
+	/**
+	 * Returns the full text of the declarations of a printed program that
+	 * start with keyword, e.g., "procedure ". The identifiers of modifies
+	 * clauses are sorted, because their order depends on the order in which
+	 * the implementations were translated.
+	 * 
+	 * @param f
+	 * @param keyword
+	 * @return
+	 */
+	protected Set<String> declarations(File f, String keyword) {
+		Set<String> ret = new HashSet<String>();
+		StringBuilder current = null;
+		for (String line : fileToString(f).split("\n")) {
+			if (line.startsWith("procedure ")
+					|| line.startsWith("implementation ")
+					|| line.startsWith("var ") || line.startsWith("const ")
+					|| line.startsWith("type ")
+					|| line.startsWith("function ")
+					|| line.startsWith("axiom ")) {
+				if (current != null) {
+					ret.add(sortModifies(current.toString().trim()));
+				}
+				current = line.startsWith(keyword) ? new StringBuilder() : null;
+			}
+			if (current != null) {
+				current.append(line).append("\n");
+			}
+		}
+		if (current != null) {
+			ret.add(sortModifies(current.toString().trim()));
+		}
+		return ret;
+	}
+
+	private static String sortModifies(String declaration) {
+		Matcher m = Pattern.compile("modifies ([^;]*);").matcher(declaration);
+		StringBuffer sb = new StringBuffer();
+		while (m.find()) {
+			String[] ids = m.group(1).split(", ");
+			Arrays.sort(ids);
+			StringBuilder sorted = new StringBuilder();
+			for (String id : ids) {
+				sorted.append(sorted.length() > 0 ? ", " : "").append(id);
+			}
+			m.appendReplacement(sb,
+					Matcher.quoteReplacement("modifies " + sorted + ";"));
+		}
+		m.appendTail(sb);
+		return sb.toString();
+	}
+
+	protected Set<String> implementations(File f) {
+		Set<String> ret = new HashSet<String>();
+		for (String line : fileToString(f).split("\n")) {
+			if (line.startsWith("implementation ")) {
+				ret.add(line);
+			}
+		}
+		return ret;
+	}
 	
+	/**
+	 * Returns true if f has an implementation of a method called
+	 * methodName.
+	 * 
+	 * @param f
+	 * @param methodName
+	 * @return
+	 */
+	protected boolean hasImplementation(File f, String methodName) {
+		for (String line : implementations(f)) {
+			if (line.contains("$" + methodName + "$")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the full text of the implementation of the method called
+	 * methodName in f.
+	 * 
+	 * @param f
+	 * @param methodName
+	 * @return
+	 */
+	protected String implementation(File f, String methodName) {
+		return declaration(f, "implementation ", methodName);
+	}
+
+	/**
+	 * Returns the full text of the declaration that starts with keyword
+	 * (see declarations) of the method called methodName in f.
+	 * 
+	 * @param f
+	 * @param keyword
+	 * @param methodName
+	 * @return
+	 */
+	protected String declaration(File f, String keyword, String methodName) {
+		for (String decl : declarations(f, keyword)) {
+			if (decl.split("\n", 2)[0].contains("$" + methodName + "$")) {
+				return decl;
+			}
+		}
+		fail("No " + keyword + "of " + methodName + " in " + f);
+		return null;
+	}
+
+	/**
+	 * Returns how deep the if statements in the printed implementation are
+	 * nested. An else if is printed on the same level as its if.
+	 * 
+	 * @param impl
+	 * @return
+	 */
+	private static int ifNesting(String impl) {
+		int top = -1, deepest = -1;
+		for (String line : impl.split("\n")) {
+			String stmt = line.trim();
+			int indent = line.indexOf(stmt);
+			if (stmt.startsWith("if (")) {
+				if (top < 0 || indent < top) {
+					top = indent;
+				}
+				deepest = Math.max(deepest, indent);
+			}
+		}
+		return top < 0 ? 0 : (deepest - top) / 4 + 1;
+	}
+
 	public void runTranslation() {
 		System.out.println("Running test: " + sourceFile.getName());
 		File classFileDir = null;
@@ -137,6 +1028,13 @@ public class SnippetTest {
 		return sb.toString();
 	}
 
+	protected void writeFile(File f, String text) throws IOException {
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(f),
+				"UTF-8")) {
+			out.write(text);
+		}
+	}
+
 	@edu.umd.cs.findbugs.annotations.SuppressFBWarnings(value = "DM_DEFAULT_ENCODING")
 	protected boolean compareFiles(File out, File gold) {
 		try (FileReader fR1 = new FileReader(out);
@@ -54,6 +54,12 @@ public class Snippet01 {
 		mNumUpperEps += (newBound.mEps - oldBound.mEps) * coeff.signum();
 	}
 	
+	@SuppressWarnings("unused")
+	private int unusedHelper(int i) {
+		// not reachable from the public methods.
+		return i + 1;
+	}
+
 	public void fixEpsilon() {
 		if (mBasic) {
 			BigInteger epsilons = BigInteger.ZERO;
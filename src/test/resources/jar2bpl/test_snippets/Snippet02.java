@@ -118,6 +118,96 @@ public class Snippet02 {
 			repos = 0; // unreachable
 		}
 	}	
+
+	public int tableSwitch(int i) {
+		switch (i) {
+		case 1: return 10;
+		case 2: return 20;
+		case 3: return 30;
+		case 4: return 40;
+		default: return 0;
+		}
+	}
+
+	public int synchronizedRead(Snippet02 other) {
+		int before = other.hashCode();
+		synchronized (this) {
+			if (bases != null) {
+				return before;
+			}
+		}
+		return 0;
+	}
+
+	public int lookupSwitch(int i) {
+		switch (i) {
+		case -100: return 1;
+		case 7: return 2;
+		case 1000: return 3;
+		default: return 0;
+		}
+	}
+
+	public int wideSwitch(int i) {
+		switch (i) {
+		case 0: return 1;
+		case 1: return 2;
+		case 2: return 3;
+		case 3: return 5;
+		case 4: return 7;
+		case 5: return 11;
+		case 6: return 13;
+		case 7: return 17;
+		case 8: return 19;
+		case 9: return 23;
+		case 10: return 29;
+		case 11: return 31;
+		case 12: return 37;
+		case 13: return 41;
+		case 14: return 43;
+		case 15: return 47;
+		default: return 0;
+		}
+	}
+
+	// the lines marked with "cloned" are flagged as duplicates. The jumps
+	// that leave the copies of a finally block count as equal.
+	public int finallyTwice(int[] arr) {
+		int r = 0;
+		try {
+			r = arr[0];
+		} finally {
+			mCount = mCount * 2 + 1; // cloned
+		} // cloned
+		return r;
+	}
+
+	public int repeatedConditions(int x) {
+		int r = 0;
+		if (x > 0) { // cloned
+			r = 1;
+		}
+		if (x > 0) { // cloned
+			r += 2;
+		}
+		if (x == 0) { // cloned
+			r = 3;
+		}
+		if (x != 0) { // cloned
+			r += 4;
+		}
+		if (x > 5) {
+			r = 5;
+		}
+		return r;
+	}
+
+	private int mCount;
+
+	private int unusedHelper(int i) {
+		// not reachable from the public methods.
+		return i + 1;
+	}
 }
 
 